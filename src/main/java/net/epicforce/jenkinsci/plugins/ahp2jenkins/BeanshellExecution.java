@@ -0,0 +1,420 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins;
+
+/*
+ * BeanshellExecution.java
+ *
+ * How a2j and a2jAll run values with beanshell in them.  Beanshell can
+ * do anything, including take forever, so rather than tie up a thread
+ * the way SynchronousStepExecution does, it runs on a small pool of
+ * our own with two budgets:
+ *
+ * * Wall clock: how long one evaluation may take, start to finish.
+ * * CPU: how much processor time it may burn.  A stuck loop on a busy
+ *   controller might not hit the wall clock limit for a while, but it
+ *   will hit this.
+ *
+ * Both come from the global configuration.  A watchdog checks them
+ * every second; going over fails the step and interrupts the thread.
+ * Aborting the build does the same.
+ *
+ * Beanshell doesn't notice interrupts on its own, so a script that
+ * truly never ends keeps its pool thread.  The build carries on
+ * (failed) regardless, and since the pool is bounded, a storm of
+ * runaway scripts can't take more than its share of the controller.
+ *
+ * That's any value with beanshell in it, or with a property whose value
+ * has; the steps lex the values and their properties' raw values to
+ * find out, without resolving anything.  Values with no beanshell stay
+ * synchronous; they're cheap.
+ *
+ * Every call is counted in A2jMetrics once it's done, whichever way
+ * it ended; the time runs from the step's start, so it includes any
+ * wait for a pool thread.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import jenkins.util.Timer;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpGlobalConfiguration;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.metrics.A2jMetrics;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class BeanshellExecution extends StepExecution
+{
+    // All steps must be serializable.
+    private static final long serialVersionUID = 1L;
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // Pool size, and how many evaluations may wait for it before we
+    // start turning them away
+    private static final int THREADS = Math.max(1, Integer.getInteger(
+                            BeanshellExecution.class.getName() + ".threads",
+                            4
+    ));
+    private static final int QUEUE = Math.max(1, Integer.getInteger(
+                            BeanshellExecution.class.getName() + ".queue",
+                            256
+    ));
+
+    // Where beanshell runs
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        POOL = new ThreadPoolExecutor(THREADS, THREADS,
+                            60L, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(QUEUE),
+                            new NamingThreadFactory(
+                                new DaemonThreadFactory(),
+                                "AHP2Jenkins.Beanshell"
+                            )
+        );
+
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    // For CPU time
+    private static final ThreadMXBean THREAD_MX =
+                                        ManagementFactory.getThreadMXBean();
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // What we're processing, and whether to hand back one string
+    // (a2j) or a list (a2jAll)
+    private final ArrayList<String> values;
+    private final boolean           single;
+
+    // The running evaluation; none of this survives a restart, and
+    // doesn't need to: we just start over.
+    private transient volatile Future<?>            task;
+    private transient volatile ScheduledFuture<?>   watchdog;
+    private transient volatile Thread               worker;
+    private transient volatile long                 submittedAt;
+    private transient volatile PipelineStep.PipelineExecution exec;
+    private transient volatile long                 startedAt;
+    private transient volatile long                 cpuAtStart;
+    private transient AtomicBoolean                 finished;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param context   Our pipeline context
+     * @param values    Values for processing
+     * @param single    True to return just the first result, as a2j
+     *                  does, rather than the list
+     */
+    public BeanshellExecution(StepContext context, List<String> values,
+                              boolean single)
+    {
+        this(context, values, single, 0);
+    }
+
+    /**
+     * @param context   Our pipeline context
+     * @param values    Values for processing
+     * @param single    True to return just the first result
+     * @param started   System.nanoTime() when the step started
+     */
+    BeanshellExecution(StepContext context, List<String> values,
+                       boolean single, long started)
+    {
+        super(context);
+        this.values = new ArrayList<String>(values);
+        this.single = single;
+        this.submittedAt = started;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Queue up the evaluation.
+     *
+     * @return false; we finish later
+     */
+    @Override
+    public boolean start()
+    {
+        submit();
+        return false;
+    }
+
+    /**
+     * The build is being aborted.
+     *
+     * @param cause     Why
+     */
+    @Override
+    public void stop(Throwable cause)
+    {
+        fail(cause, A2jMetrics.Cause.ABORTED);
+    }
+
+    /**
+     * Jenkins restarted while we were running.  Whatever we had going
+     * is gone, so start again; it's just string processing.
+     */
+    @Override
+    public void onResume()
+    {
+        submit();
+    }
+
+    /**
+     * @return what we're up to, for the thread dump
+     */
+    @Override
+    public String getStatus()
+    {
+        if(worker != null) {
+            return "Running beanshell for " +
+                   ((System.nanoTime() - startedAt) / 1000000000L) + "s";
+        }
+
+        return "Waiting for a beanshell thread";
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * Hand the evaluation to the pool.
+     */
+    private void submit()
+    {
+        finished = new AtomicBoolean(false);
+
+        // From the step's start, unless we're starting over after a
+        // restart
+        if(submittedAt == 0) {
+            submittedAt = System.nanoTime();
+        }
+
+        try {
+            task = POOL.submit(this::evaluate);
+        } catch(RejectedExecutionException e) {
+            fail(new MigrateException(
+                "Too much beanshell waiting to run (" + QUEUE +
+                " values); try again when the controller is less busy", e
+            ), A2jMetrics.Cause.OVERLOADED);
+        }
+    }
+
+    /**
+     * Run on the pool: process the values and report back.
+     */
+    private void evaluate()
+    {
+        if(finished.get()) {
+            // Stopped while we were waiting
+            return;
+        }
+
+        startedAt = System.nanoTime();
+        cpuAtStart = cpuTime();
+        worker = Thread.currentThread();
+        startWatchdog();
+
+        try {
+            exec = new PipelineStep.PipelineExecution(null, getContext());
+            exec.allowBeanshell();
+
+            List<String> ret = new ArrayList<String>(values.size());
+
+            for(String val : values) {
+                ret.add(exec.process(val));
+            }
+
+            if(finish()) {
+                record(null);
+                getContext().onSuccess(single ? ret.get(0) : ret);
+            }
+        } catch(Throwable t) {
+            // Errors too: the pool's FutureTask would swallow them,
+            // and the step would never finish.  A deep PropertyLookup
+            // chain can overflow the stack, for one.
+            fail(t, A2jMetrics.classify(t));
+        } finally {
+            worker = null;
+
+            // If we were interrupted over budget, don't let it leak
+            // into the pool's next job
+            Thread.interrupted();
+
+            // The watchdog is stopped by finish(), once the step is
+            // done one way or the other; not before.
+        }
+    }
+
+    /**
+     * Check the budgets once a second while we're running.
+     */
+    private void startWatchdog()
+    {
+        AhpGlobalConfiguration config = AhpGlobalConfiguration.get();
+        final int timeout;
+        final int cpuBudget;
+
+        if(config == null) {
+            timeout = AhpGlobalConfiguration.DEFAULT_BEANSHELL_TIMEOUT;
+            cpuBudget = AhpGlobalConfiguration.DEFAULT_BEANSHELL_CPU_BUDGET;
+        } else {
+            timeout = config.getBeanshellTimeout();
+            cpuBudget = config.getBeanshellCpuBudget();
+        }
+
+        if((timeout <= 0) && (cpuBudget <= 0)) {
+            return;
+        }
+
+        watchdog = Timer.get().scheduleAtFixedRate(
+            () -> checkBudgets(timeout, cpuBudget),
+            1, 1, TimeUnit.SECONDS
+        );
+    }
+
+    /**
+     * Fail the step if it's gone over either budget.
+     *
+     * @param timeout       Wall clock seconds, or 0
+     * @param cpuBudget     CPU seconds, or 0
+     */
+    private void checkBudgets(int timeout, int cpuBudget)
+    {
+        if(worker == null) {
+            return;
+        }
+
+        long wall = (System.nanoTime() - startedAt) / 1000000000L;
+
+        if((timeout > 0) && (wall >= timeout)) {
+            fail(new MigrateException(
+                "Beanshell took longer than " + timeout + " seconds"
+            ), A2jMetrics.Cause.TIMEOUT);
+            return;
+        }
+
+        long cpu = cpuTime();
+
+        if((cpuBudget > 0) && (cpu >= 0) && (cpuAtStart >= 0) &&
+           (((cpu - cpuAtStart) / 1000000000L) >= cpuBudget)) {
+            fail(new MigrateException(
+                "Beanshell used more than " + cpuBudget + " seconds of CPU"
+            ), A2jMetrics.Cause.CPU_BUDGET);
+        }
+    }
+
+    /**
+     * @return the worker's CPU time in nanoseconds, or -1 if we can't
+     *         tell
+     */
+    private long cpuTime()
+    {
+        Thread t = worker;
+
+        if(t == null) {
+            t = Thread.currentThread();
+        }
+
+        if(!THREAD_MX.isThreadCpuTimeSupported()) {
+            return -1;
+        }
+
+        return THREAD_MX.getThreadCpuTime(t.getId());
+    }
+
+    /**
+     * Fail the step, if nothing else has finished it, and stop the
+     * evaluation.
+     *
+     * @param e         Why
+     * @param cause     Why, for the metrics
+     */
+    private void fail(Throwable e, A2jMetrics.Cause cause)
+    {
+        if(finish()) {
+            record(cause);
+            getContext().onFailure(e);
+        }
+    }
+
+    /**
+     * Count the call, once it's finished.
+     *
+     * @param failure   Why it failed, or null
+     */
+    private void record(A2jMetrics.Cause failure)
+    {
+        PipelineStep.PipelineExecution e = exec;
+
+        // Stopped after a restart, before we were resubmitted
+        long start = (submittedAt == 0) ? System.nanoTime() : submittedAt;
+
+        A2jMetrics.record(getContext(), A2jMetrics.Kind.BEANSHELL,
+                          start,
+                          (e == null) ? 0 : e.getCacheHits(),
+                          (e == null) ? 0 : e.getCacheMisses(),
+                          failure
+        );
+    }
+
+    /**
+     * Claim the right to report the result; only the first caller
+     * gets it.  Also stops the evaluation and the watchdog.
+     *
+     * @return true if it's ours to report
+     */
+    private synchronized boolean finish()
+    {
+        // Stopped after a restart, before we got going again
+        if(finished == null) {
+            finished = new AtomicBoolean(false);
+        }
+
+        if(!finished.compareAndSet(false, true)) {
+            return false;
+        }
+
+        ScheduledFuture<?> w = watchdog;
+
+        if(w != null) {
+            w.cancel(false);
+        }
+
+        Future<?> t = task;
+
+        if((t != null) && (worker != Thread.currentThread())) {
+            t.cancel(true);
+        }
+
+        return true;
+    }
+}
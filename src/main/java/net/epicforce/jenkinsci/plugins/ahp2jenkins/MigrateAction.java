@@ -9,6 +9,8 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins;
  * Copyright 2017 Epic Force
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -29,9 +31,17 @@ import hudson.util.NamingThreadFactory;
 
 import jenkins.model.Jenkins;
 
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.beanshell.ScriptCache;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpGlobalConfiguration;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpInstance;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.SystemPropertyCache;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials.KeystoreCache;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.AhpSessionPool;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationJob;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationJournal;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationRecord;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.StageMetrics;
 import net.epicforce.migrate.ahp.Migration;
 import net.epicforce.migrate.ahp.exception.MigrateException;
 
@@ -57,8 +67,9 @@ public class MigrateAction extends ItemListener
      * PROPERTIES
      ****************************************************************/
 
-    private MigrateEngine   engine = null;
-    private Thread          engineThread = null;
+    private MigrateEngine       engine = null;
+    private Thread              engineThread = null;
+    private MigrationJournal    engineJournal = null;
 
     /*****************************************************************
      * WEB ACTION METHODS
@@ -100,11 +111,14 @@ public class MigrateAction extends ItemListener
         // Make an instance out of our instance string.
         AhpInstance ahp = new AhpInstance(instance);
 
+        // Borrow a session for this
+        AhpSessionPool pool = AhpSessionPool.forInstance(ahp);
+
         // Our migrate object
         Migration migrate = null;
 
         try {
-            migrate = ahp.getMigration();
+            migrate = pool.lease();
 
             // Do a search
             Map<String, Map<String, Long>> ahpResults =
@@ -135,10 +149,16 @@ public class MigrateAction extends ItemListener
                     e
             );
 
+            return null;
+        } catch(InterruptedException e) {
+            LOG.log(Level.WARNING, "Interrupted waiting for an AHP session",
+                    e
+            );
+
             return null;
         } finally {
             if(migrate != null) {
-                migrate.close();
+                pool.release(migrate);
                 migrate = null;
             }
         }
@@ -166,27 +186,59 @@ public class MigrateAction extends ItemListener
 
         StringBuilder sb = new StringBuilder(128);
 
-        // Get workflow list
-        for(Migration m : engine.getJobs()) {
+        // Finished ones first; these are just records now.
+        for(MigrationRecord rec : MigrateEngine.getRecords()) {
             String[] cols = new String[3];
-            sb.setLength(0); // reset
 
-            // Name column
-            if(m.getWorkflowName() != null) {
-                sb.append(m.getWorkflowName())
-                  .append(" (")
-                  .append(m.getWorkflowId())
-                  .append(")");
+            cols[0] = describeWorkflow(rec.getWorkflowName(),
+                                       rec.getWorkflowId()
+            );
+
+            if(rec.getJenkinsJobName() == null) {
+                cols[1] = "Jenkins job not created";
             } else {
-                sb.append("Workflow Not Loaded (")
-                  .append(m.getWorkflowId())
-                  .append(")");
+                cols[1] = rec.getJenkinsJobName();
             }
 
-            cols[0] = sb.toString();
             sb.setLength(0);
 
-            JenkinsContext jc = (JenkinsContext)m.getContext();
+            if(rec.getError() != null) {
+                sb.append("Error: ").append(rec.getError());
+            } else if(rec.isUpToDate()) {
+                sb.append("Up to date");
+            } else {
+                sb.append("Success");
+            }
+
+            if(rec.getStartedAt() != 0) {
+                sb.append(" (")
+                  .append(rec.getRunTime() / 1000L)
+                  .append("s)");
+            }
+
+            // What became of its beanshell
+            describeBeanshell(sb, "translated to Groovy",
+                              rec.getBeanshellTranslated()
+            );
+            describeBeanshell(sb, "left for beanshell",
+                              rec.getBeanshellInterpreted()
+            );
+
+            cols[2] = sb.toString();
+            ret.add(cols);
+        }
+
+        // Then whatever is still going
+        for(MigrationJob job : MigrateEngine.getJobs()) {
+            String[] cols = new String[3];
+            sb.setLength(0); // reset
+
+            // Name column
+            cols[0] = describeWorkflow(job.getWorkflowName(),
+                                       job.getWorkflowId()
+            );
+
+            JenkinsContext jc = job.getContext();
 
             // Jenkins job column
             if((jc == null) || (jc.getJenkinsJobName() == null)) {
@@ -196,36 +248,42 @@ public class MigrateAction extends ItemListener
             }
 
             // Status
-            switch(m.getStatus()) {
-                case Migration.NEED_SETUP:
-                case Migration.READY:
-                    cols[2] = "Initializing...";
-                    break;
-                case Migration.RUNNING:
-                    sb.append("Running: ")
-                      .append(m.getProgress())
-                      .append("%");
-                    cols[2] = sb.toString();
-                    break;
-                case Migration.SUCCESS:
-                case Migration.ERROR:
-                case Migration.CLOSED:
-                    // Success can't be reliably used since it is
-                    // superceded by close status.  Use the error
-                    // presence to determine success instead.
-                    if(m.getError() != null) {
-                        sb.append("Error: ");
-                        sb.append(m.getError().getMessage());
+            Migration m = job.getMigration();
+
+            if(job.isDone()) {
+                cols[2] = describeResult(job.getError());
+            } else if(job.isFetched()) {
+                cols[2] = (job.getError() == null) ?
+                            "Writing Jenkins job..." :
+                            describeResult(job.getError());
+            } else if(m == null) {
+                cols[2] = "Waiting for an AHP session...";
+            } else {
+                switch(m.getStatus()) {
+                    case Migration.NEED_SETUP:
+                    case Migration.READY:
+                        cols[2] = "Initializing...";
+                        break;
+                    case Migration.RUNNING:
+                        sb.append("Running: ")
+                          .append(m.getProgress())
+                          .append("%");
                         cols[2] = sb.toString();
-                    } else {
-                        cols[2] = "Success";
-                    }
-                    break;
-                default:
-                    cols[2] = "Entered unknown status";
-                    LOG.log(Level.SEVERE, "Unknown status: " +
-                            String.valueOf(m.getStatus())
-                    );
+                        break;
+                    case Migration.SUCCESS:
+                    case Migration.ERROR:
+                    case Migration.CLOSED:
+                        // Success can't be reliably used since it is
+                        // superceded by close status.  Use the error
+                        // presence to determine success instead.
+                        cols[2] = describeResult(job.getError());
+                        break;
+                    default:
+                        cols[2] = "Entered unknown status";
+                        LOG.log(Level.SEVERE, "Unknown status: " +
+                                String.valueOf(m.getStatus())
+                        );
+                }
             }
 
             ret.add(cols);
@@ -234,6 +292,142 @@ public class MigrateAction extends ItemListener
         return ret;
     }
 
+    /**
+     * RPC method to return how each stage of the migration pipeline
+     * is doing, so it is clear whether AHP or Jenkins is the hold up.
+     *
+     * The array columns are [0] Stage, [1] Threads, [2] Active,
+     * [3] Queued, [4] Completed, [5] Failed, [6] Average seconds,
+     * [7] Max seconds
+     *
+     * @return as described
+     */
+    @JavaScriptMethod
+    public List<String[]> doStageMetrics()
+    {
+        List<String[]> ret = new ArrayList<String[]>();
+
+        if(engine == null) {
+            return ret;
+        }
+
+        for(StageMetrics stage : engine.getStageMetrics()) {
+            ret.add(new String[] {
+                stage.getName(),
+                String.valueOf(stage.getThreads()),
+                String.valueOf(stage.getActive()),
+                String.valueOf(stage.getQueued()),
+                String.valueOf(stage.getCompleted()),
+                String.valueOf(stage.getFailed()),
+                String.format("%.1f", stage.getAverageMs() / 1000.0),
+                String.format("%.1f", stage.getMaxMs() / 1000.0)
+            });
+        }
+
+        return ret;
+    }
+
+    /**
+     * RPC method to return how the beanshell script cache is doing,
+     * for sizing it.
+     *
+     * The array is [0] Scripts cached, [1] Maximum, [2] Hits,
+     * [3] Misses, [4] Evictions, [5] Hit rate
+     *
+     * @return as described
+     */
+    @JavaScriptMethod
+    public String[] doScriptCacheStats()
+    {
+        ScriptCache cache = ScriptCache.getInstance();
+        long hits = cache.getHits();
+        long total = hits + cache.getMisses();
+
+        return new String[] {
+            String.valueOf(cache.getSize()),
+            String.valueOf(cache.getMaxSize()),
+            String.valueOf(hits),
+            String.valueOf(cache.getMisses()),
+            String.valueOf(cache.getEvictions()),
+            (total == 0) ? "-" :
+                           String.format("%.1f%%", (hits * 100.0) / total)
+        };
+    }
+
+    /**
+     * Add a list of beanshell scripts to a results column.
+     *
+     * @param sb        The column so far
+     * @param what      What happened to them
+     * @param scripts   The scripts; nothing is added if empty
+     */
+    private static void describeBeanshell(StringBuilder sb, String what,
+                                          List<String> scripts)
+    {
+        if(scripts.isEmpty()) {
+            return;
+        }
+
+        sb.append("; ").append(scripts.size()).append(" beanshell ")
+          .append(what).append(":");
+
+        for(String script : scripts) {
+            sb.append(" ${bsh:").append(script).append("}");
+        }
+    }
+
+    /**
+     * Workflow column text.
+     *
+     * @param name      Workflow name, or null if not loaded
+     * @param id        Workflow ID, negative if there isn't one
+     * @return display string
+     */
+    private static String describeWorkflow(String name, long id)
+    {
+        if((name != null) && (id < 0)) {
+            return name;
+        }
+
+        if(name != null) {
+            return name + " (" + id + ")";
+        }
+
+        return "Workflow Not Loaded (" + id + ")";
+    }
+
+    /**
+     * Status text for a finished migration.
+     *
+     * @param error     The migration's error, or null
+     * @return "Success" or the error
+     */
+    private static String describeResult(MigrateException error)
+    {
+        if(error != null) {
+            return "Error: " + error.getMessage();
+        }
+
+        return "Success";
+    }
+
+    /**
+     * RPC method to drop the cached system properties for an instance,
+     * for when they've been changed in AHP and the cache hasn't caught
+     * up yet.  The next workflow migrated loads them fresh.
+     *
+     * @param instance      A string representation of our AHP instance
+     */
+    @JavaScriptMethod
+    public void doRefreshSystemProperties(final String instance)
+    {
+        AhpInstance ahp = new AhpInstance(instance);
+
+        SystemPropertyCache.invalidate(ahp.getHostname() + ":" +
+                                       ahp.getPort()
+        );
+    }
+
     /**
      * RPC method to fire off a migration batch.  This is fire and
      * forget; the migration batch will always be accepted, and any
@@ -249,26 +443,102 @@ public class MigrateAction extends ItemListener
         // Make an instance out of our instance string.
         AhpInstance ahp = new AhpInstance(instance);
 
-        // Start our engine if we need to
-        if(engineThread == null) {
-            if(engine != null) {
-                // This shouldn't happen
-                LOG.log(Level.SEVERE,
-                        "engineThread was null, but engine was not null."
-                );
-            }
+        AhpGlobalConfiguration config = AhpGlobalConfiguration.get();
 
-            engine = new MigrateEngine();
-            engineThread = (new NamingThreadFactory(
-                                new DaemonThreadFactory(),
-                                "AHP2Jenkins.MigrateEngine"
-                            )
-            ).newThread(engine);
-            engineThread.start();
+        getEngine().migrateWorkflows(ahp, workflows,
+                                     config.getThreadCount(),
+                                     config.getAdaptiveThreads(),
+                                     config.getMaxThreadCount()
+        );
+    }
+
+    /*****************************************************************
+     * ENGINE MANAGEMENT
+     ****************************************************************/
+
+    /**
+     * Get our engine, starting it if we need to.  Starting it opens
+     * the migration journal and queues up anything left over from
+     * before the last restart.
+     *
+     * @return the engine
+     */
+    private synchronized MigrateEngine getEngine()
+    {
+        if(engineThread != null) {
+            return engine;
         }
 
-        // AM-37: Make thread count configurable
-        engine.migrateWorkflows(ahp, workflows, 5);
+        if(engine != null) {
+            // This shouldn't happen
+            LOG.log(Level.SEVERE,
+                    "engineThread was null, but engine was not null."
+            );
+        }
+
+        // Without a journal we can still migrate; we just can't
+        // resume after a restart.
+        MigrationJournal journal = new MigrationJournal(getJournalFile());
+        List<MigrationJournal.Pending> pending;
+
+        try {
+            pending = journal.open();
+        } catch(IOException e) {
+            LOG.log(Level.SEVERE, "Could not open migration journal; " +
+                                  "migrations won't resume after a restart",
+                    e
+            );
+
+            journal = null;
+            pending = new ArrayList<MigrationJournal.Pending>();
+        }
+
+        engine = new MigrateEngine(journal);
+        engineJournal = journal;
+        engineThread = (new NamingThreadFactory(
+                            new DaemonThreadFactory(),
+                            "AHP2Jenkins.MigrateEngine"
+                        )
+        ).newThread(engine);
+        engineThread.start();
+
+        AhpGlobalConfiguration config = AhpGlobalConfiguration.get();
+
+        for(MigrationJournal.Pending p : pending) {
+            LOG.log(Level.INFO, "Resuming " + p.getWorkflowIds().size() +
+                                " migrations from before restart"
+            );
+
+            engine.resumeWorkflows(p, config.getThreadCount(),
+                                   config.getAdaptiveThreads(),
+                                   config.getMaxThreadCount()
+            );
+        }
+
+        return engine;
+    }
+
+    /**
+     * @return where the migration journal lives
+     */
+    private static File getJournalFile()
+    {
+        return new File(new File(Jenkins.getActiveInstance().getRootDir(),
+                                 "ahp2jenkins"),
+                        "migrations.journal"
+        );
+    }
+
+    /**
+     * Once Jenkins has loaded its jobs, pick up any migrations a
+     * restart interrupted.
+     */
+    @Override
+    public void onLoaded()
+    {
+        if(getJournalFile().length() > 0) {
+            getEngine();
+        }
     }
 
     /*****************************************************************
@@ -347,6 +617,17 @@ public class MigrateAction extends ItemListener
                 }
             }
         }
+
+        // Everything the engine journaled is queued; write it out
+        if(engineJournal != null) {
+            engineJournal.close();
+        }
+
+        // Close down any AHP sessions still open
+        AhpSessionPool.closeAll();
+
+        // And remove keystores we wrote out for them
+        KeystoreCache.clear();
     }
 
     /**
@@ -6,39 +6,62 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins;
  * The MigrateEngine does the 'heavy lifting' of actually running a
  * migration of different parts of Anthill to Jenkins.
  *
- * It manages the thread pool and provides status accessors and
+ * It manages the thread pools and provides status accessors and
  * controls.  It also handles the Jenkins-specific thread ACL management.
  *
+ * A migration runs in two stages.  The fetch stage leases an AHP
+ * session and runs the workflow through the migrators, which is all
+ * network and CPU.  The write stage creates or updates the Jenkins job,
+ * which is all disk.  Each has its own pool, sized separately, with a
+ * bounded queue between them; when the writers fall behind, fetch
+ * threads wait to hand off rather than piling up finished workflows.
+ *
  * Its designed to run in a thread itself so it doesn't block the UI
  * in any particular way.
  *
  * @author sconley (sconley@epicforce.net)
  */
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import hudson.security.ACL;
 import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 import net.epicforce.migrate.ahp.Migration;
 import net.epicforce.migrate.ahp.exception.MigrateException;
 
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpInstance;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JobWrite;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.AdaptiveConcurrency;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.AhpSessionPool;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationBatch;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationJob;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationJournal;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.MigrationRecord;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.engine.StageMetrics;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.loader.JenkinsLoader;
 
 public class MigrateEngine implements Runnable
@@ -50,36 +73,163 @@ public class MigrateEngine implements Runnable
      * PROPERTIES
      ****************************************************************/
 
+    // This is put on the completion queue to wake the monitor thread
+    // up when it is time to shut down.  It is never run.
+    private static final Future<MigrationJob> WAKEUP =
+                                new FutureTask<MigrationJob>(() -> {}, null);
+
     // Keep track of our shutdown state.
-    private boolean             doShutdown = false;
+    private volatile boolean    doShutdown = false;
     private volatile boolean    isShutdown = false;
 
-    // Keep track of our list of jobs.
-    private static ConcurrentLinkedQueue<Migration> ahpJobs =
-                                    new ConcurrentLinkedQueue<Migration>();
-
-    // Keep track of our queued up jobs (futures)
-    private List<Pair> futures = new LinkedList<Pair>();
-
-    // Our thread pool
-    private ExecutorService         threadService = null;
+    // How many finished migrations to remember, and for how long
+    private static final int  MAX_RECORDS = Integer.getInteger(
+                            MigrateEngine.class.getName() + ".maxRecords", 1000
+    );
+    private static final long MAX_RECORD_AGE = TimeUnit.MINUTES.toMillis(
+        Long.getLong(MigrateEngine.class.getName() + ".maxRecordAgeMinutes",
+                     24 * 60L)
+    );
+
+    // Write stage threads, and how many fetched workflows may wait
+    // for them before fetch threads have to wait too.
+    private static final int  WRITE_THREADS = Math.max(1, Integer.getInteger(
+                            MigrateEngine.class.getName() + ".writeThreads", 2
+    ));
+    private static final int  WRITE_QUEUE = Math.max(1, Integer.getInteger(
+                            MigrateEngine.class.getName() + ".writeQueue", 16
+    ));
+
+    // Keep track of our list of jobs that aren't finished yet.
+    private static ConcurrentLinkedQueue<MigrationJob> ahpJobs =
+                                    new ConcurrentLinkedQueue<MigrationJob>();
+
+    // And what we remember about finished ones, oldest first.  Guarded
+    // by itself.
+    private static final Deque<MigrationRecord> records =
+                                        new ArrayDeque<MigrationRecord>();
+
+    // Keep track of our queued up writes (futures) and the job each
+    // one belongs to.
+    private Map<Future<MigrationJob>, MigrationJob> futures =
+                new ConcurrentHashMap<Future<MigrationJob>, MigrationJob>();
+
+    // Batches that still have jobs outstanding
+    private final Set<MigrationBatch> batches =
+                                    ConcurrentHashMap.newKeySet();
+
+    // Futures land here as soon as their write finishes.  The
+    // monitor thread blocks on this, so it sleeps when there is no work
+    // and wakes up the moment something completes.
+    private final BlockingQueue<Future<MigrationJob>> completed =
+                            new LinkedBlockingQueue<Future<MigrationJob>>();
+
+    // Our fetch stage pool and the controller that sizes it, and our
+    // write stage pool.
+    private ThreadPoolExecutor              threadService = null;
+    private AdaptiveConcurrency             concurrency = null;
+    private ThreadPoolExecutor              writeService = null;
+
+    // One per write running or waiting to.  Fetch threads take one
+    // before handing off, and wait when there are none left; that is
+    // what keeps the fetch stage from racing ahead of the writers.
+    private final Semaphore         writeSlots =
+                                    new Semaphore(WRITE_THREADS + WRITE_QUEUE);
+
+    // How each stage is doing
+    private final StageMetrics      fetchMetrics = new StageMetrics("AHP fetch");
+    private final StageMetrics      writeMetrics =
+                                        new StageMetrics("Jenkins write");
 
     // This can be shared by everyone
     private JenkinsLoader           loader = new JenkinsLoader();
 
+    // Where we write down what we're doing, or null to not bother
+    private final MigrationJournal  journal;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param journal   Journal to record work in, so it can be resumed
+     *                  after a restart.  May be null.
+     */
+    public MigrateEngine(MigrationJournal journal)
+    {
+        this.journal = journal;
+    }
+
     /*****************************************************************
      * METHODS
      ****************************************************************/
 
     /**
-     * Get a list of our migration jobs.  Copy it out of
-     * the queue so its more or less static.
+     * Get a list of our migration jobs that haven't been closed out
+     * yet.  Copy it out of the queue so its more or less static.
      *
-     * @return array of Migration objects
+     * @return array of MigrationJob objects
      */
-    public static Migration[] getJobs()
+    public static MigrationJob[] getJobs()
     {
-        return (Migration[])ahpJobs.toArray(new Migration[0]);
+        return (MigrationJob[])ahpJobs.toArray(new MigrationJob[0]);
+    }
+
+    /**
+     * Get records of finished migrations, oldest first.
+     *
+     * @return array of MigrationRecord objects
+     */
+    public static MigrationRecord[] getRecords()
+    {
+        synchronized(records) {
+            trimRecords();
+            return records.toArray(new MigrationRecord[0]);
+        }
+    }
+
+    /**
+     * Remember a finished migration, forgetting old ones to stay
+     * within our limits.
+     *
+     * @param record        What to remember
+     */
+    private static void addRecord(MigrationRecord record)
+    {
+        synchronized(records) {
+            records.addLast(record);
+            trimRecords();
+        }
+    }
+
+    /**
+     * Drop records over the count limit or past the age limit.  Caller
+     * holds the records lock.
+     */
+    private static void trimRecords()
+    {
+        while(records.size() > MAX_RECORDS) {
+            records.removeFirst();
+        }
+
+        long cutoff = System.currentTimeMillis() - MAX_RECORD_AGE;
+
+        while((!records.isEmpty()) &&
+              (records.peekFirst().getFinishedAt() < cutoff)) {
+            records.removeFirst();
+        }
+    }
+
+    /**
+     * @return metrics for each stage, in pipeline order
+     */
+    public List<StageMetrics> getStageMetrics()
+    {
+        List<StageMetrics> ret = new ArrayList<StageMetrics>(2);
+
+        ret.add(fetchMetrics);
+        ret.add(writeMetrics);
+        return ret;
     }
 
     /**
@@ -88,6 +238,7 @@ public class MigrateEngine implements Runnable
     public void shutdown()
     {
         doShutdown = true;
+        completed.offer(WAKEUP);
     }
 
     /**
@@ -106,67 +257,175 @@ public class MigrateEngine implements Runnable
      * Jobs are always accepted; this will never error or otherwise abort.
      * If there's a problem, it will show up as a migration error.
      *
+     * The pool is resized to the latest settings on every call; jobs
+     * already running are not affected.
+     *
      * @param ahp            The instance to run against.
      * @param workflowIds    Our list of workflow ID's in string format
-     * @param threadCount    A suggested thread count.  Suggestion may be ignored.
-     *                       In practice, only the first call will pay attention
-     *                       to this right now.
+     * @param threadCount    Thread count, or the starting count if adaptive
+     * @param adaptive       Adapt the thread count to how AHP is coping
+     * @param maxThreadCount The most threads adaptive mode may use
      */
     public void migrateWorkflows(final AhpInstance ahp,
                                  final List<String> workflowIds,
-                                 final int threadCount)
+                                 final int threadCount,
+                                 final boolean adaptive,
+                                 final int maxThreadCount)
     {
-        try {
-            // Initialize if we need to
-            if(threadService == null) {
-                threadService = Executors.newFixedThreadPool(threadCount);
+        List<Long> ids = new ArrayList<Long>(workflowIds.size());
+
+        for(String id : workflowIds) {
+            try {
+                ids.add(Long.parseLong(id));
+            } catch(NumberFormatException e) {
+                LOG.log(Level.WARNING,
+                        "The UI allowed an invalid workflow id: " + id
+                );
+
+                // Set it to something invalid.
+                // The UI shouldn't allow this
+                ids.add(-1L);
             }
+        }
 
-            for(String id : workflowIds) {
-                // Create a context
-                JenkinsContext context = new JenkinsContext();
+        configure(threadCount, adaptive, maxThreadCount);
 
-                // Create a migrate -- if this crashes, skip it
-                Migration migrate;
+        MigrationBatch batch = new MigrationBatch();
+        List<MigrationJob> jobs = makeJobs(ahp, batch, ids);
 
-                try {
-                    migrate = ahp.getMigration();
-                } catch(MigrateException e) {
-                    LOG.log(Level.WARNING,
-                            "Got exception during migrate attempt", e
-                    );
+        // Write it down before it runs, so a restart can pick it up
+        if(journal != null) {
+            journal.submitted(ahp, jobs);
+        }
 
-                    continue;
-                }
+        submit(batch, jobs);
+    }
 
-                // Configure it
-                try {
-                    migrate.setWorkflowId(Long.parseLong(id));
-                } catch(NumberFormatException e) {
-                    LOG.log(Level.WARNING,
-                            "The UI allowed an invalid workflow id: " + id
-                    );
+    /**
+     * Queue up work left over from before a restart.  The jobs are
+     * already in the journal, so they keep their journal IDs.
+     *
+     * @param pending        An unfinished batch from the journal
+     * @param threadCount    Thread count, or the starting count if adaptive
+     * @param adaptive       Adapt the thread count to how AHP is coping
+     * @param maxThreadCount The most threads adaptive mode may use
+     */
+    public void resumeWorkflows(final MigrationJournal.Pending pending,
+                                final int threadCount,
+                                final boolean adaptive,
+                                final int maxThreadCount)
+    {
+        configure(threadCount, adaptive, maxThreadCount);
 
-                    // Set it to something invalid.
-                    // The UI shouldn't allow this
-                    migrate.setWorkflowId(-1L);
-                }
+        MigrationBatch batch = new MigrationBatch();
+        List<MigrationJob> jobs = makeJobs(pending.getAhpInstance(), batch,
+                                           pending.getWorkflowIds()
+        );
 
-                migrate.setContext(context);
-                migrate.setLoader(loader);
+        for(int i = 0; i < jobs.size(); i++) {
+            jobs.get(i).setJournalId(pending.getJobIds().get(i));
+        }
 
-                // Make a shell for it
-                JenkinsThread shell = new JenkinsThread(migrate);
+        submit(batch, jobs);
+    }
 
-                // queue it up
-                Future<Migration> future = threadService.submit(shell,
-                                                                migrate
-                );
+    /**
+     * Set up the thread pools if we haven't yet, and apply the latest
+     * thread settings to the fetch stage.
+     *
+     * @param threadCount    Thread count, or the starting count if adaptive
+     * @param adaptive       Adapt the thread count to how AHP is coping
+     * @param maxThreadCount The most threads adaptive mode may use
+     */
+    private synchronized void configure(final int threadCount,
+                                        final boolean adaptive,
+                                        final int maxThreadCount)
+    {
+        if(threadService == null) {
+            int size = Math.max(1, threadCount);
+
+            threadService = new ThreadPoolExecutor(size, size,
+                                60L, TimeUnit.SECONDS,
+                                new LinkedBlockingQueue<Runnable>()
+            );
+            concurrency = new AdaptiveConcurrency(threadService);
+            fetchMetrics.setPool(threadService);
+
+            // The queue is bounded by writeSlots, not here, so the
+            // pool only ever rejects anything once it's shut down.
+            writeService = new ThreadPoolExecutor(WRITE_THREADS, WRITE_THREADS,
+                                60L, TimeUnit.SECONDS,
+                                new LinkedBlockingQueue<Runnable>(),
+                                new NamingThreadFactory(
+                                    new DaemonThreadFactory(),
+                                    "AHP2Jenkins.JobWriter"
+                                )
+            );
+            writeMetrics.setPool(writeService);
+        }
 
-                Pair entry = new Pair(future, migrate);
+        concurrency.configure(threadCount, adaptive, maxThreadCount);
+    }
 
-                futures.add(entry);
-                ahpJobs.add(migrate);
+    /**
+     * Make the jobs for a batch.  The batch is filled before anything
+     * is submitted, so it can't look finished while we're still adding
+     * to it.
+     *
+     * @param ahp           The instance to run against
+     * @param batch         The batch they belong to
+     * @param workflowIds   AHP workflow IDs
+     * @return the jobs, in workflow ID order
+     */
+    private List<MigrationJob> makeJobs(AhpInstance ahp, MigrationBatch batch,
+                                        List<Long> workflowIds)
+    {
+        List<MigrationJob> jobs =
+                            new ArrayList<MigrationJob>(workflowIds.size());
+
+        for(Long workflowId : workflowIds) {
+            // The AHP session is leased when the job actually
+            // starts, so a big batch doesn't open a connection per
+            // workflow up front.
+            JenkinsContext context = new JenkinsContext();
+            context.setCredentialBatch(batch.getCredentials());
+            context.setProjectCache(batch.getProjects());
+            context.setSource(ahp.getHostname() + ":" + ahp.getPort());
+            context.setAhpWorkflowId(workflowId);
+
+            MigrationJob job = new MigrationJob(ahp, workflowId, context,
+                                                batch
+            );
+
+            batch.add(job);
+            jobs.add(job);
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Queue a batch's jobs on the fetch stage.
+     *
+     * @param batch         The batch
+     * @param jobs          Its jobs
+     */
+    private void submit(MigrationBatch batch, List<MigrationJob> jobs)
+    {
+        batches.add(batch);
+
+        try {
+            for(MigrationJob job : jobs) {
+                // Make a shell for it
+                JenkinsThread shell = new JenkinsThread(job, loader,
+                                                        concurrency, journal,
+                                                        fetchMetrics,
+                                                        this::write
+                );
+
+                // queue it up.
+                ahpJobs.add(job);
+                threadService.execute(shell);
             }
         } catch(RejectedExecutionException | IllegalArgumentException e) {
             // Neither of these should happen.
@@ -174,9 +433,64 @@ public class MigrateEngine implements Runnable
         }
     }
 
+    /**
+     * Hand a fetched job to the write stage.  Called from fetch
+     * threads; blocks while the write stage is full up.
+     *
+     * @param job           The job, done with AHP
+     */
+    private void write(final MigrationJob job)
+    {
+        // Whether we hold a write slot for this one
+        final AtomicBoolean held = new AtomicBoolean(false);
+
+        // The future goes in the map before it can run, so the monitor
+        // always finds it.  However it ends, run or cancelled, done()
+        // hands back the slot and queues it to be closed out.
+        FutureTask<MigrationJob> task = new FutureTask<MigrationJob>(
+                                    new JobWriter(job, writeMetrics), job) {
+            @Override
+            protected void done()
+            {
+                if(held.getAndSet(false)) {
+                    writeSlots.release();
+                }
+
+                completed.offer(this);
+            }
+        };
+
+        futures.put(task, job);
+
+        try {
+            writeSlots.acquire();
+            held.set(true);
+
+            // If the pool shuts down on the way in, this throws rather
+            // than leaving the task in a queue nobody will run
+            writeService.execute(task);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.setError(new MigrateException("Interrupted waiting to write",
+                                              e
+            ));
+            job.setInterrupted();
+            task.cancel(false);
+        } catch(RejectedExecutionException e) {
+            // Only happens if we're being torn down.  Close it out here
+            // so it isn't lost.
+            job.setError(new MigrateException("Migration was shut down", e));
+            task.cancel(false);
+        }
+    }
+
     /**
      * This thread manages jobs and passes status information around.
      *
+     * It blocks on the completion queue, so it costs nothing while
+     * migrations are running and closes each one out the moment it
+     * finishes.
+     *
      * It also does the shutdown of subjobs if necessary
      */
     public void run()
@@ -184,173 +498,380 @@ public class MigrateEngine implements Runnable
         // Run as a system thread
         try(ACLContext notUsed = ACL.as(ACL.SYSTEM)) {
             while(!doShutdown) {
-                if(futures.size() == 0) {
-                    // AM-39 : It would be more efficient to let this shut down
-                    // when there's no work.  But it makes adding new jobs to
-                    // the migration difficult, because you could theoretically
-                    // be adding a job while this thread has decided to shut
-                    // down, thus leaving the new job in limbo.
-                    try {
-                        Thread.sleep(5000);
-                    } catch(InterruptedException e) {
-                        // shutdown
-                        doShutdown = true;
-                    }
-                    continue;
-                }
+                // AM-39 : This thread never exits while idle, because a
+                // job could be added while it is deciding to shut down.
+                // Waiting on the queue is free, though.
+                Future<MigrationJob> future;
 
-                // Otherwise, let's monitor our futures.
-                for(Iterator<Pair> it = futures.iterator(); it.hasNext(); ) {
-                    Pair pair = it.next();
-                    Future<Migration> future = pair.getKey();
-
-                    try {
-                        Migration result = future.get(0, TimeUnit.SECONDS);
-
-                        // This one is done -- we can close it.
-                        result.close();
-                        it.remove();
-                    } catch(TimeoutException e) {
-                        // don't care
-                    } catch(InterruptedException | CancellationException e) {
-                        // We're shutting down in thise case.  Close it
-                        // nicely
-                        LOG.log(Level.WARNING,
-                                "Received early exit of Migration object",
-                                e
-                        );
-
-                        pair.getValue().close();
-                        it.remove();
-                    } catch(ExecutionException e) {
-                        // Got an error
-                        LOG.log(Level.WARNING, "Received migration exception",
-                                e
-                        );
-
-                        // set the error
-                        pair.getValue().setError(
-                            new MigrateException("Received exception", e)
-                        );
-
-                        pair.getValue().close();
-
-                        // remove it
-                        it.remove();
-                    }
-                }
-
-                // sleep if we've got this far.
-                // This is duplicated at the top of the loop by the empty queue
-                // handler, but I'm hoping to remediate that into something more
-                // tidy later.
                 try {
-                    Thread.sleep(5000);
+                    future = completed.take();
                 } catch(InterruptedException e) {
                     // shutdown - we got a cancel
                     doShutdown = true;
+                    continue;
+                }
+
+                if(future != WAKEUP) {
+                    finish(future);
                 }
             }
 
-            // do our shutdown
-            if(threadService != null) {
-                threadService.shutdown();
+            // do our shutdown.  Fetch stage first, since it feeds the
+            // write stage.
+            if(threadService == null) {
+                isShutdown = true;
+                return;
             }
 
-            // Wait to shut down
-            while(true) {
-                try {
-                    if(threadService.awaitTermination(1, TimeUnit.HOURS)) {
-                        for(Migration m : ahpJobs) {
-                            m.close();
-                        }
+            // If we're journaling, work that hasn't started yet can wait
+            // for the next start up; no need to hold up shutdown for it.
+            if(journal != null) {
+                List<Runnable> dropped = new ArrayList<Runnable>();
 
-                        ahpJobs.clear();
+                threadService.getQueue().drainTo(dropped);
 
-                        // AM-40 : Is this a thread leak?  Do we need to
-                        // iterate over futures and get() each one?
-                        futures.clear();
+                if(!dropped.isEmpty()) {
+                    LOG.log(Level.INFO, dropped.size() + " queued " +
+                            "migrations will resume after restart"
+                    );
+                }
+            }
+
+            threadService.shutdown();
+            awaitTermination(threadService);
 
-                        isShutdown = true;
-                        return;
+            // Every session has gone back to its pool, and everything
+            // fetched has been handed off.
+            writeService.shutdown();
+            awaitTermination(writeService);
+
+            // Everything is done now.  Close out whatever finished
+            // while we waited.
+            Future<MigrationJob> future;
+
+            while((future = completed.poll()) != null) {
+                if(future != WAKEUP) {
+                    finish(future);
+                }
+            }
+
+            // Save what any batch cut short was holding on to.
+            for(MigrationBatch batch : batches) {
+                commit(batch);
+            }
+
+            batches.clear();
+            ahpJobs.clear();
+            futures.clear();
+            completed.clear();
+
+            isShutdown = true;
+        }
+    }
+
+    /**
+     * Wait for a pool to finish up.  If we are interrupted while we
+     * wait, interrupt the pool's threads too.
+     *
+     * @param pool          A pool that has been shut down
+     */
+    private void awaitTermination(ThreadPoolExecutor pool)
+    {
+        while(true) {
+            try {
+                if(pool.awaitTermination(1, TimeUnit.HOURS)) {
+                    return;
+                }
+            } catch(InterruptedException e) {
+                // In this case, let's upgrade to shutdownNow.  The
+                // jobs we interrupt notice and say so, which keeps
+                // them pending in the journal.
+                //
+                // Writes that never started still have to be closed
+                // out, so cancel them rather than just drop them
+                for(Runnable r : pool.shutdownNow()) {
+                    if(r instanceof Future) {
+                        ((Future<?>)r).cancel(false);
                     }
-                } catch(InterruptedException e) {
-                    // In this case, let's upgrade to shutdownNow
-                    threadService.shutdownNow();
                 }
             }
         }
     }
 
     /**
-     * This is a class to support a pair of Future and Migration.
+     * Close out a future that came off the completion queue, setting
+     * the error on its job if it blew up.
      *
-     * I wish Java had a Pair but it doesn't.  I tried to use
-     * Map.Entry but that turned into a stupid-fest.
+     * @param future        The completed future
+     */
+    private void finish(Future<MigrationJob> future)
+    {
+        MigrationJob job = futures.remove(future);
+
+        // This shouldn't happen
+        if(job == null) {
+            LOG.log(Level.SEVERE, "Completed future has no MigrationJob");
+            return;
+        }
+
+        try {
+            // It's done, so this won't block
+            future.get();
+        } catch(InterruptedException | CancellationException e) {
+            // We're shutting down in this case.  Close it nicely, but
+            // it never got written, so it isn't finished.
+            LOG.log(Level.WARNING, "Received early exit of Migration object",
+                    e
+            );
+
+            job.setInterrupted();
+        } catch(ExecutionException e) {
+            // Got an error
+            LOG.log(Level.WARNING, "Received migration exception", e);
+
+            // set the error
+            job.setError(new MigrateException("Received exception", e));
+        }
+
+        // A write that never ran didn't get to do this
+        job.finish();
+
+        // The job's written, so the credentials it uses have to be
+        // too, before the journal says it's finished; otherwise a
+        // crash now would lose them for good.  Whatever else the
+        // batch is holding goes along with them, in the same save.
+        MigrationBatch batch = job.getBatch();
+        boolean saved = commit(batch);
+
+        // If they didn't save, or a shutdown cut this job off, leave
+        // it unfinished so a resume does it over
+        if((journal != null) && (!job.isInterrupted()) && saved) {
+            journal.finished(job);
+        }
+
+        // We're done with the job itself; keep the short version so
+        // the context can be let go.
+        ahpJobs.remove(job);
+        addRecord(MigrationRecord.of(job));
+
+        // Last one out does the rest of the batch's deferred work
+        if(batch.jobDone()) {
+            commit(batch);
+            batches.remove(batch);
+        }
+    }
+
+    /**
+     * Do a batch's deferred work.  The jobs in it are probably closed
+     * out already, so a failure gets a status line of its own.
      *
-     * To minimize code flux from my failed attempt, the signature
-     * is like a Map.Entry and it uses getKey for the Future and
-     * getValue for the Migration.
+     * @param batch         The batch
+     * @return true if it all saved
      */
-    public static class Pair
+    private boolean commit(MigrationBatch batch)
     {
-        private Future<Migration> key;
-        private Migration value;
+        try {
+            batch.commit();
+            return true;
+        } catch(MigrateException e) {
+            LOG.log(Level.SEVERE, "Could not save imported credentials", e);
 
-        /**
-         * @return the future... oooOOOooo
-         */
-        public Future<Migration> getKey()
-        {
-            return key;
+            long now = System.currentTimeMillis();
+
+            addRecord(new MigrationRecord("Saving imported credentials",
+                                          -1L, null, e.getMessage(),
+                                          false, now, now, now
+            ));
+
+            return false;
         }
+    }
+
+    /**
+     * This is a thread shell to set Jenkins ACL on a Migration.  It
+     * leases the AHP session, runs the workflow, gives the session
+     * straight back to the pool when done, and hands the job on to the
+     * write stage.
+     */
+    public static class JenkinsThread implements Runnable
+    {
+        // The job we are running
+        private MigrationJob        job;
+
+        // Our class loader
+        private JenkinsLoader       loader;
+
+        // Who to report our timing to.  May be null.
+        private AdaptiveConcurrency concurrency;
+
+        // Where to journal that we started.  May be null.
+        private MigrationJournal    journal;
+
+        // Fetch stage metrics
+        private StageMetrics        metrics;
+
+        // Where the job goes next
+        private Consumer<MigrationJob> handOff;
 
         /**
-         * @return the migration
+         * Basic constructor for the shell
+         *
+         * @param job           the job to run
+         * @param loader        the class loader for the Migration
+         * @param concurrency   pool controller to report timing to, or null
+         * @param journal       journal to record our start in, or null
+         * @param metrics       fetch stage metrics
+         * @param handOff       takes the job once we're done with AHP
          */
-        public Migration getValue()
+        public JenkinsThread(MigrationJob job, JenkinsLoader loader,
+                             AdaptiveConcurrency concurrency,
+                             MigrationJournal journal,
+                             StageMetrics metrics,
+                             Consumer<MigrationJob> handOff)
         {
-            return value;
+            this.job = job;
+            this.loader = loader;
+            this.concurrency = concurrency;
+            this.journal = journal;
+            this.metrics = metrics;
+            this.handOff = handOff;
         }
 
         /**
-         * Simple constructor
-         *
-         * @param key the future
-         * @param value the migration
+         * Thin wrapper to run a migration using a Jenkins ACL
          */
-        public Pair(Future<Migration> key, Migration value)
+        public void run()
         {
-            this.key = key;
-            this.value = value;
+            long start = System.nanoTime();
+            boolean failed = true;
+
+            AhpSessionPool pool =
+                            AhpSessionPool.forInstance(job.getAhpInstance());
+            Migration migrate = null;
+
+            metrics.begin();
+
+            try(ACLContext notUsed = ACL.as(ACL.SYSTEM)) {
+                migrate = pool.leaseFor(job.getWorkflowId(), job.getContext(),
+                                        loader
+                );
+
+                job.start(migrate);
+
+                if(journal != null) {
+                    journal.started(job);
+                }
+
+                migrate.run();
+                failed = (migrate.getError() != null);
+            } catch(MigrateException e) {
+                LOG.log(Level.WARNING,
+                        "Got exception during migrate attempt", e
+                );
+
+                job.setError(e);
+            } catch(InterruptedException e) {
+                job.setError(
+                    new MigrateException("Interrupted waiting for AHP", e)
+                );
+                job.setInterrupted();
+            } catch(RuntimeException e) {
+                LOG.log(Level.WARNING,
+                        "Got exception during migrate attempt", e
+                );
+
+                job.setError(new MigrateException("Received exception", e));
+            } finally {
+                // Shut down under us; whatever we got isn't the whole
+                // story
+                if(Thread.currentThread().isInterrupted()) {
+                    job.setInterrupted();
+                }
+
+                job.detach();
+
+                if(migrate != null) {
+                    pool.release(migrate);
+                }
+
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(
+                                                System.nanoTime() - start
+                );
+
+                if(concurrency != null) {
+                    concurrency.onComplete(elapsed, failed);
+                }
+
+                metrics.end(elapsed, failed);
+
+                // Errors go through as well, so they get closed out
+                // in order with everything else.
+                handOff.accept(job);
+            }
         }
     }
 
     /**
-     * This is a thread shell to set Jenkins ACL on a Migration
+     * The write stage.  Creates or updates the Jenkins job for a
+     * fetched workflow, unless the fetch failed.
      */
-    public static class JenkinsThread implements Runnable
+    public static class JobWriter implements Runnable
     {
-        // Our Migration object
-        private Migration   ahp;
+        // The job we are writing
+        private MigrationJob        job;
+
+        // Write stage metrics
+        private StageMetrics        metrics;
 
         /**
-         * Basic constructor for the shell
-         *
-         * @param ahp   the migration object to run
+         * @param job           a job done with AHP
+         * @param metrics       write stage metrics
          */
-        public JenkinsThread(Migration ahp)
+        public JobWriter(MigrationJob job, StageMetrics metrics)
         {
-            this.ahp = ahp;
+            this.job = job;
+            this.metrics = metrics;
         }
 
         /**
-         * Thin wrapper to run a migration using a Jenkins ACL
+         * Write the job using a Jenkins ACL
          */
         public void run()
         {
+            JenkinsContext context = job.getContext();
+            JobWrite write = context.takeJobWrite();
+
+            // Nothing to write if the fetch failed
+            if((job.getError() != null) || (write == null)) {
+                job.finish();
+                return;
+            }
+
+            long start = System.nanoTime();
+            boolean failed = true;
+
+            metrics.begin();
+
             try(ACLContext notUsed = ACL.as(ACL.SYSTEM)) {
-                ahp.run();
+                write.write(context);
+                failed = false;
+            } catch(MigrateException e) {
+                LOG.log(Level.WARNING, "Got exception writing Jenkins job", e);
+                job.setError(e);
+            } catch(RuntimeException e) {
+                LOG.log(Level.WARNING, "Got exception writing Jenkins job", e);
+                job.setError(new MigrateException("Received exception", e));
+            } finally {
+                // Shut down under us, maybe half way through the save
+                if(Thread.currentThread().isInterrupted()) {
+                    job.setInterrupted();
+                }
+
+                job.finish();
+                metrics.end(TimeUnit.NANOSECONDS.toMillis(
+                                                System.nanoTime() - start),
+                            failed
+                );
             }
         }
     }
@@ -0,0 +1,212 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins;
+
+/*
+ * PipelineBatchStep.java
+ *
+ * The bulk version of the a2j step: a2jAll(['...', '...']) takes a
+ * list of values and gives back a list of processed values, in the
+ * same order.  It does exactly what a2j does to each of them.
+ *
+ * Every step call costs an execution and a checkpoint of the program
+ * state, and migrated blocks often need several values processed at
+ * once (a maven command line, a checkout), so the migrators gather
+ * them up and make one call per block.  See code/A2jBatch.
+ *
+ * The layout is the same as PipelineStep; see there for how the
+ * pieces fit together.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import hudson.EnvVars;
+import hudson.Extension;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.metrics.A2jMetrics;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class PipelineBatchStep extends Step
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // What we're going to process
+    private final List<String> values;
+
+    /*****************************************************************
+     * CONSTRUCTOR
+     ****************************************************************/
+
+    /**
+     * Data bound constructor for initializing the step.
+     *
+     * @param values        The values to process
+     */
+    @DataBoundConstructor
+    public PipelineBatchStep(final List<String> values)
+    {
+        this.values = (values == null) ? Collections.<String>emptyList() :
+                                         new ArrayList<String>(values);
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the values to process
+     */
+    public List<String> getValues()
+    {
+        return Collections.unmodifiableList(values);
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Start the step.
+     *
+     * @param context           The pipeline context
+     * @return our execution
+     */
+    @Override
+    public StepExecution start(StepContext context)
+    {
+        long started = System.nanoTime();
+
+        // As a2j: beanshell, from the values or their properties, runs
+        // with a budget on a thread of its own
+        if(PipelineStep.needsBeanshell(context, values)) {
+            return new BeanshellExecution(context, values, false, started);
+        }
+
+        return new BatchExecution(values, context, started);
+    }
+
+    /*
+     * Descriptor for the boilerplate required for a Jenkins plugin.
+     */
+    @Extension
+    public static final class BatchDescriptor extends StepDescriptor
+    {
+        /**
+         * @return the method name used in the pipeline
+         */
+        @Override
+        public String getFunctionName()
+        {
+            return "a2jAll";
+        }
+
+        /**
+         * @return the human readable name
+         */
+        @Override
+        public String getDisplayName()
+        {
+            return "Anthill Pro to Jenkins to process a list of variables and Beanshell";
+        }
+
+        /**
+         * Same requirements as a2j.
+         *
+         * @return set of classes required by this step
+         */
+        @Override
+        public Set<Class<?>> getRequiredContext()
+        {
+            return Collections.<Class<?>>singleton(EnvVars.class);
+        }
+    }
+
+    /*
+     * Runs synchronously, as a2j does: the values have to be processed
+     * before the code using them can run.
+     */
+    public static final class BatchExecution extends
+                              SynchronousStepExecution
+    {
+        // All steps must be serializable.
+        private static final long serialVersionUID = 1L;
+
+        // The values we're working on
+        private final ArrayList<String> values;
+
+        // When the step started, for the metrics; 0 for now
+        private transient long startedAt = 0;
+
+        /**
+         * @param values    Values for processing
+         * @param context   Our pipeline context
+         */
+        public BatchExecution(final List<String> values, StepContext context)
+        {
+            this(values, context, 0);
+        }
+
+        /**
+         * @param values    Values for processing
+         * @param context   Our pipeline context
+         * @param startedAt System.nanoTime() when the step started
+         */
+        BatchExecution(final List<String> values, StepContext context,
+                       long startedAt)
+        {
+            super(context);
+            this.values = new ArrayList<String>(values);
+            this.startedAt = startedAt;
+        }
+
+        /**
+         * Process each value with one a2j execution, so they share
+         * the environment lookup and everything resolved on the way.
+         *
+         * @return the processed values, in order
+         * @throws MigrateException on failure.
+         */
+        @Override
+        public List<String> run()
+               throws MigrateException
+        {
+            long start = (startedAt == 0) ? System.nanoTime() : startedAt;
+            A2jMetrics.Cause failure = null;
+            PipelineStep.PipelineExecution exec =
+                        new PipelineStep.PipelineExecution(null, getContext());
+
+            try {
+                List<String> ret = new ArrayList<String>(values.size());
+
+                for(String val : values) {
+                    ret.add(exec.process(val));
+                }
+
+                return ret;
+            } catch(MigrateException | RuntimeException e) {
+                failure = A2jMetrics.classify(e);
+                throw e;
+            } finally {
+                // One call, however many values
+                A2jMetrics.record(getContext(), A2jMetrics.Kind.PROPERTIES,
+                                  start, exec.getCacheHits(),
+                                  exec.getCacheMisses(), failure
+                );
+            }
+        }
+    }
+}
@@ -4,7 +4,7 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins;
  * PipelineStep.java
  *
  * This is a Jenkins Pipeline script for doing recursive variable
- * replacements (i.e. nested variables... if z=2, y=${z}, then x=${y}
+ * replacements (i.e. nested variables... if z=2, y=${p:z}, then x=${p:y}
  * it will parse out to 2).  Also, beanshell is procssed by this,
  * which is properties like ${bsh:whatever}
  *
@@ -28,14 +28,18 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins;
 
 import java.io.IOException;
 import java.lang.InterruptedException;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.model.Run;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -46,11 +50,15 @@ import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 import org.jenkinsci.plugins.workflow.steps.SynchronousStepExecution;
 
-import net.epicforce.jenkinsci.plugins.ahp2jenkins.beanshell.*;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.beanshell.InterpreterPool;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.MigratedWorkflowProperty;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.metrics.A2jMetrics;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyLexer;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyResolver;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.ResolvedPropertyCache;
 import net.epicforce.migrate.ahp.exception.MigrateException;
 
 import bsh.EvalError;
-import bsh.Interpreter;
 
 public class PipelineStep extends Step
 {
@@ -117,13 +125,119 @@ public class PipelineStep extends Step
      * different contexts are how block steps like dir(...) and env(...)
      * work.
      *
+     * Values that run beanshell, whether it's in the value itself or
+     * comes in with a property, run as a BeanshellExecution, on a
+     * pool of their own with time and CPU limits.  Finding that out
+     * only lexes; this runs on the CPS thread, so all the resolving
+     * waits for the execution.
+     *
      * @param context           The context, which is as described above.
      * @return a StepExecution which is the subclass here.
      */
     @Override
     public StepExecution start(StepContext context)
     {
-        return new PipelineExecution(value, context);
+        // The step's time, for the metrics, starts here
+        long started = System.nanoTime();
+        List<String> values = Collections.singletonList(value);
+
+        // Beanshell can take its time; it gets a thread of its own
+        // and a budget.  Everything else is quick.
+        if(needsBeanshell(context, values)) {
+            return new BeanshellExecution(context, values, true, started);
+        }
+
+        return new PipelineExecution(value, context, started);
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Work out whether processing some values would run beanshell:
+     * either it's written into them, or it comes in with one of their
+     * properties, however indirectly.  This is called from start(), on
+     * the CPS thread, so nothing is resolved; we only lex the values
+     * and the raw values of the properties they refer to.
+     *
+     * Which property a built name like ${p:db.${p:env}} means isn't
+     * known until it's resolved, so a value with one of those counts
+     * as beanshell if any property has beanshell in it.
+     *
+     * @param context   The step context, for the environment
+     * @param values    The values to process
+     * @return true if there's beanshell.  False if the values are
+     *         malformed, so they fail in the usual place.
+     */
+    static boolean needsBeanshell(StepContext context, List<String> values)
+    {
+        Map<String, String> env = null;
+
+        try {
+            env = context.get(EnvVars.class);
+        } catch(IOException e) {
+            // Then we just look at the values; run() will complain
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(env == null) {
+            env = Collections.<String, String>emptyMap();
+        }
+
+        Deque<String> todo = new ArrayDeque<String>();
+        Set<String> seen = new HashSet<String>();
+        PropertyLexer lex = new PropertyLexer(null);
+        boolean built = false;
+
+        for(String val : values) {
+            if(val != null) {
+                todo.push(val);
+            }
+        }
+
+        try {
+            while(!todo.isEmpty()) {
+                lex.reset(todo.pop());
+
+                while(lex.nextReference()) {
+                    if(lex.getKind() == PropertyLexer.Kind.BSH) {
+                        return true;
+                    }
+
+                    String name = lex.getBody();
+
+                    if(PropertyLexer.hasReferences(name)) {
+                        // The properties it's built from still count
+                        built = true;
+                        todo.push(name);
+                    } else if(seen.add(name)) {
+                        String raw = env.get(name);
+
+                        if(raw != null) {
+                            todo.push(raw);
+                        }
+                    }
+                }
+            }
+        } catch(MigrateException e) {
+            return false;
+        }
+
+        if(built) {
+            for(String raw : env.values()) {
+                try {
+                    if(PropertyLexer.hasBeanshell(raw)) {
+                        return true;
+                    }
+                } catch(MigrateException e) {
+                    // Not ours to worry about unless it's used
+                }
+            }
+        }
+
+        return false;
     }
 
     /*
@@ -197,6 +311,19 @@ public class PipelineStep extends Step
         // The string we're working on
         private final String value;
 
+        // Resolves properties for the life of this step, so each one
+        // is only worked out once however many times it's used.  Made
+        // on first use.  What it resolves is shared with the rest of
+        // the build.
+        private transient PropertyResolver resolver;
+
+        // Beanshell only runs with a budget, in a BeanshellExecution;
+        // see allowBeanshell()
+        private transient boolean budgeted = false;
+
+        // When the step started, for the metrics; 0 for now
+        private transient long startedAt = 0;
+
         /**
          * Get our value string and pass our context up to the parent.
          *
@@ -204,9 +331,21 @@ public class PipelineStep extends Step
          * @param context   Our pipeline context
          */
         public PipelineExecution(final String value, StepContext context)
+        {
+            this(value, context, 0);
+        }
+
+        /**
+         * @param value     Our value for processing
+         * @param context   Our pipeline context
+         * @param startedAt System.nanoTime() when the step started
+         */
+        PipelineExecution(final String value, StepContext context,
+                          long startedAt)
         {
             super(context);
             this.value = value;
+            this.startedAt = startedAt;
         }
 
         /**
@@ -218,107 +357,204 @@ public class PipelineStep extends Step
          *
          * @throws MigrateException, most likely due to beanshell error.
          */
-        private final static Pattern bshSearch =
-                                        Pattern.compile("\\$\\{bsh:([^}]+)\\}");
         private String processBeanshell(final String val)
                 throws MigrateException
         {
-            Matcher match = bshSearch.matcher(val);
+            PropertyLexer lex = new PropertyLexer(val);
+            StringBuilder sb = null;
+            InterpreterPool.Pooled bsh = null;
+
+            try {
+                while(lex.next()) {
+                    if(lex.getKind() != PropertyLexer.Kind.BSH) {
+                        if(sb != null) {
+                            sb.append(val, lex.getStart(), lex.getEnd());
+                        }
+
+                        continue;
+                    }
+
+                    if(sb == null) {
+                        sb = new StringBuilder(val.length());
+                        sb.append(val, 0, lex.getStart());
+                    }
+
+                    // start() should have sent us to BeanshellExecution;
+                    // running it here would mean no time or CPU limit
+                    if(!budgeted) {
+                        throw new MigrateException(
+                            "Beanshell can't run outside its thread pool"
+                        );
+                    }
+
+                    // To catch beanshell stuff
+                    try {
+                        // AM-42: Interpreters come set up from the pool
+                        if(bsh == null) {
+                            bsh = InterpreterPool.getInstance()
+                                                 .borrow(this, getContext());
+                        }
+
+                        // Run it
+                        // Any properties loaded via ProperyLookup will
+                        // be processed so there shouldn't be a need to
+                        // re-run this through the prop processor.
+                        sb.append(String.valueOf(bsh.eval(lex.getBody())));
+                    } catch(EvalError e) {
+                        throw new MigrateException(
+                            "Error while processing beanshell",
+                            e
+                        );
+                    }
+                }
+            } finally {
+                if(bsh != null) {
+                    bsh.release();
+                }
+            }
 
-            if(match.find()) {
-                // To catch beanshell stuff
-                try {
-                    // Set up a Beanshell environment
-                    Interpreter bsh = new Interpreter();
-
-                    // Set up initial "imports".  This could probably be done
-                    // more efficiently somehow, but this will do for now.
-                    // AM-42: Support more features, set up BSH more
-                    //       efficiently -- can I set up once and reuse it?
-
-                    // AM-42: I think I can auto-import the helpers somehow,
-                    //       but I need to sort out exactly how
-                    AbstractHelper  helper;
-
-                    // PROPERTY LOOKUP
-                    helper = new PropertyLookup();
-                    helper.setContext(getContext());
-
-                    bsh.set("PropertyLookup", helper);
-
-                    // PATH HELPER
-                    helper = new PathHelper();
-                    helper.setContext(getContext());
-
-                    bsh.set("PathHelper", helper);
-
-                    // Run it
-                    // Any properties loaded via ProperyLookup will
-                    // be processed so there shouldn't be a need to
-                    // re-run this through the prop processor.
-                    return val.replace(match.group(0),
-                                       String.valueOf(
-                                            bsh.eval(match.group(1))
-                                       )
-                    );
-                } catch(EvalError e) {
-                    throw new MigrateException(
-                        "Error while processing beanshell",
-                        e
-                    );
+            return (sb == null) ? val : sb.toString();
+        }
+
+        /**
+         * Get the resolver for this step, setting it up the first time.
+         * The environment and the job's resolution order are fetched
+         * once here, rather than every time a property is needed, and
+         * values already resolved by earlier steps in the build are
+         * picked up from the build's ResolvedPropertyCache.
+         *
+         * @return our resolver
+         * @throws MigrateException if the context can't give us the
+         *         environment
+         */
+        private PropertyResolver getResolver()
+                throws MigrateException
+        {
+            if(resolver != null) {
+                return resolver;
+            }
+
+            // Grab the environment out of the context.
+            // I wish I could get the parameters directly;
+            // not sure if that is possible (this may be more
+            // flexible anyway?)
+            Map<String, String> env;
+            Run<?, ?> run;
+
+            try {
+                env = (EnvVars)getContext().get(EnvVars.class);
+                run = getContext().get(Run.class);
+            } catch(IOException | InterruptedException e) {
+                throw new MigrateException(
+                                "Error while processing properties", e
+                );
+            }
+
+            // The order worked out when the job was migrated, if the
+            // job has one
+            List<String> order = null;
+
+            if(run != null) {
+                MigratedWorkflowProperty prop = run.getParent().getProperty(
+                                            MigratedWorkflowProperty.class
+                );
+
+                if(prop != null) {
+                    order = prop.getPropertyOrder();
                 }
             }
 
-            return val;
+            // Start from what earlier steps in this build resolved in
+            // the same environment
+            Map<String, String> resolved;
+
+            if(run != null) {
+                resolved = ResolvedPropertyCache.forRun(run).getResolved(env);
+            } else {
+                resolved = new HashMap<String, String>();
+            }
+
+            resolver = new PropertyResolver(env, order, resolved);
+            return resolver;
         }
 
         /**
-         * Process / resolve ${property} and replace them, recursively,
-         * as there could be ${property} inside of ${property}.
+         * Process / resolve ${p:property} and replace them, recursively,
+         * as there could be ${p:property} inside of ${p:property}.
+         *
+         * One pass over the string; resolved values are remembered for
+         * the rest of the step.
          *
          * @param val       The value to process.
          * @return  Modified string with replaced properties.
          *
          * @throws MigrateException if it can't resolve a variable
          */
-        private final static Pattern propSearch =
-                                            Pattern.compile("\\$\\{([^:]+)\\}");
         private String processProperties(final String val)
                 throws MigrateException
         {
-            Matcher match = propSearch.matcher(val);
+            return getResolver().resolve(val);
+        }
 
-            // Recursively replace them until we've got no more.
-            if(match.find()) {
-                // Grab the environment out of the context.
-                // I wish I could get the parameters directly;
-                // not sure if that is possible (this may be more
-                // flexible anyway?)
-                Map<String, String> env;
+        /**
+         * Look up a single property by name, fully processed.  This
+         * is what beanshell's PropertyLookup uses, so it shares our
+         * resolved values rather than starting over.
+         *
+         * @param name      Property name
+         * @return its value, or empty string if there's no such
+         *         property (which is what AHP does)
+         * @throws MigrateException if it can't be resolved
+         */
+        public String lookupProperty(final String name)
+               throws MigrateException
+        {
+            return processBeanshell(getResolver().get(name, true));
+        }
 
-                try {
-                    env = (EnvVars)getContext().get(EnvVars.class);
-                } catch(IOException | InterruptedException e) {
-                    throw new MigrateException(
-                                    "Error while processing properties", e
-                    );
-                }
+        /**
+         * Let this execution run beanshell.  Only for BeanshellExecution,
+         * which runs it with a budget.
+         */
+        void allowBeanshell()
+        {
+            budgeted = true;
+        }
 
-                // Try to find the variable in our environment.
-                if(!env.containsKey(match.group(1))) {
-                    throw new MigrateException(
-                        "Could not resolve property: " + match.group(1)
-                    );
-                }
+        /**
+         * @return property lookups so far answered from what was
+         *         already resolved
+         */
+        public long getCacheHits()
+        {
+            return (resolver == null) ? 0 : resolver.getHits();
+        }
 
-                return processProperties(
-                    val.replace(match.group(0),
-                                env.get(match.group(1))
-                    )
-                );
-            }
+        /**
+         * @return property lookups so far that had to be resolved
+         */
+        public long getCacheMisses()
+        {
+            return (resolver == null) ? 0 : resolver.getMisses();
+        }
 
-            return val;
+        /**
+         * Process one value: properties first, then beanshell.  Can be
+         * called any number of times; everything resolved along the way
+         * is kept for the next call.
+         *
+         * @param val       The value to process
+         * @return the processed value
+         * @throws MigrateException on failure.
+         */
+        public String process(final String val)
+               throws MigrateException
+        {
+            return processBeanshell(
+                        processProperties(
+                            val
+                        )
+            );
         }
 
         /**
@@ -332,11 +568,20 @@ public class PipelineStep extends Step
         public String run()
                throws MigrateException
         {
-            return processBeanshell(
-                        processProperties(
-                            value
-                        )
-            );
+            long start = (startedAt == 0) ? System.nanoTime() : startedAt;
+            A2jMetrics.Cause failure = null;
+
+            try {
+                return process(value);
+            } catch(MigrateException | RuntimeException e) {
+                failure = A2jMetrics.classify(e);
+                throw e;
+            } finally {
+                A2jMetrics.record(getContext(), A2jMetrics.Kind.PROPERTIES,
+                                  start, getCacheHits(), getCacheMisses(),
+                                  failure
+                );
+            }
         }
     }
 }
@@ -28,6 +28,7 @@ import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
 
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.A2jBatch;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsStep;
 import net.epicforce.migrate.ahp.exception.MigrateException;
@@ -55,6 +56,10 @@ public class MavenBuildStepConfigMigrate extends JenkinsStep
         // AM-27: Detect what's available in Jenkins and take action
         //       based on installed plugins
 
+        // Everything that needs a2j is resolved in one a2jAll call
+        // ahead of the block.
+        A2jBatch batch = context.newA2jBatch();
+
         // Pipeline splits shell steps into 'bat' vs. 'sh'.  We will
         // build our command line, then use an if isUnix block.
         StringBuilder cmd = new StringBuilder(1024);
@@ -66,24 +71,24 @@ public class MavenBuildStepConfigMigrate extends JenkinsStep
            (mb.getMavenParams().length() > 0)) {
             context.scanProperties(mb.getMavenParams());
             cmd.append(" ")
-               .append("' + a2j('")
-               .append(mb.getMavenParams())
-               .append("') + '");
+               .append("' + ")
+               .append(batch.add(mb.getMavenParams()))
+               .append(" + '");
         }
 
         // Do we need to add a -f ?
         if((mb.getBuildFilePath() != null) && (mb.getBuildFilePath().length() > 0)) {
             context.scanProperties(mb.getBuildFilePath());
-            cmd.append(" -f ' + a2j('")
-               .append(mb.getBuildFilePath())
-               .append("') + '");
+            cmd.append(" -f ' + ")
+               .append(batch.add(mb.getBuildFilePath()))
+               .append(" + '");
         }
 
         // The other build parameters that are in a list for some reason.
         for(String param : mb.getBuildParamArray()) {
             if(param.length() > 0) {
                 context.scanProperties(param);
-                cmd.append(" ' + aj2('").append(param).append("') + '");
+                cmd.append(" ' + ").append(batch.add(param)).append(" + '");
             }
         }
 
@@ -96,20 +101,17 @@ public class MavenBuildStepConfigMigrate extends JenkinsStep
         // A dir block is required for working directory
         // An env block is requierd for JVM Properties
 
-        sb.append("// Maven Build Step: ")
-          .append(context.getCurrentStep().getName())
-          .append("\n")
-          .append("dir(a2j('");
+        sb.append("dir(");
 
         if((mb.getWorkDirOffset() != null) &&
            (mb.getWorkDirOffset().length() > 0)) {
             context.scanProperties(mb.getWorkDirOffset());
-            sb.append(mb.getWorkDirOffset());
+            sb.append(batch.add(mb.getWorkDirOffset()));
         } else {
-            sb.append(".");
+            sb.append("'.'");
         }
 
-        sb.append("')) {\n")
+        sb.append(") {\n")
           .append("    withEnv([");
 
         // Do we need to append environment vars?
@@ -122,29 +124,23 @@ public class MavenBuildStepConfigMigrate extends JenkinsStep
            (!mb.getJavaHomeVar().equals("${env/JAVA_HOME}"))) {
             // This isn't default, so let's set it.
             context.scanProperties(mb.getJavaHomeVar());
-            envVars.add("'JAVA_HOME=' + a2j('" +
-                        mb.getJavaHomeVar() +
-                        "')"
-            );
+            envVars.add("'JAVA_HOME=' + " + batch.add(mb.getJavaHomeVar()));
         }
 
         // See if JVM properties are set
         if((mb.getJvmParams() != null) && (mb.getJvmParams().length() > 0)) {
             context.scanProperties(mb.getJvmParams());
-            envVars.add("'MAVEN_OPTS=' + a2j('" + mb.getJvmParams() +
-                        "')"
-            );
+            envVars.add("'MAVEN_OPTS=' + " + batch.add(mb.getJvmParams()));
         }
 
         // Maven home
         if((mb.getMavenHomeVar() != null) &&
            (mb.getMavenHomeVar().length() > 0)) {
             context.scanProperties(mb.getMavenHomeVar());
-            envVars.add("'PATH+MAVEN=' + a2j('" +
-                        mb.getMavenHomeVar() +
-                        "'), 'MAVEN_HOME=' + a2j('" +
-                        mb.getMavenHomeVar() +
-                        "')"
+            String mavenHome = batch.add(mb.getMavenHomeVar());
+
+            envVars.add("'PATH+MAVEN=' + " + mavenHome +
+                        ", 'MAVEN_HOME=' + " + mavenHome
             );
         }
 
@@ -153,8 +149,8 @@ public class MavenBuildStepConfigMigrate extends JenkinsStep
             context.scanProperties(nvp.getName());
             context.scanProperties(nvp.getValue());
 
-            envVars.add("a2j('" + nvp.getName() + "') + '=' + a2j('" +
-                        nvp.getValue() + "')");
+            envVars.add(batch.add(nvp.getName()) + " + '=' + " +
+                        batch.add(nvp.getValue()));
         }
 
         // If we have environment variables, let's add them.
@@ -174,6 +170,10 @@ public class MavenBuildStepConfigMigrate extends JenkinsStep
           .append("    }\n")
           .append("}\n");
 
-        context.addCode(sb.toString());
+        context.addCode("// Maven Build Step: " +
+                        context.getCurrentStep().getName() + "\n" +
+                        batch.getDeclaration() +
+                        sb.toString()
+        );
     }
 }
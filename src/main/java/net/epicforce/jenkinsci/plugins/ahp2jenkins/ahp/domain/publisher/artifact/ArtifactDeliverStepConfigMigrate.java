@@ -10,6 +10,7 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.ahp.domain.publisher.artifac
 
 import java.lang.StringBuilder;
 
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.A2jBatch;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsStep;
 import net.epicforce.migrate.ahp.exception.MigrateException;
@@ -49,42 +50,48 @@ public class ArtifactDeliverStepConfigMigrate extends JenkinsStep
         // There can be more than one!
         for(ArtifactDeliverPatterns pat : patterns) {
             if(pat.getArtifactSet().getId() == art.getId()) {
-                // We found it!
-                sb.append("dir(a2j('");
+                // We found it!  Its values get resolved in one a2jAll
+                // call, ahead of the block.
+                A2jBatch batch = context.newA2jBatch();
+                StringBuilder block = new StringBuilder(256);
+
+                block.append("dir(");
 
                 if((pat.getBaseDirectory() != null) &&
                    (pat.getBaseDirectory().length() > 0)) {
                     context.scanProperties(pat.getBaseDirectory());
-                    sb.append(pat.getBaseDirectory());
+                    block.append(batch.add(pat.getBaseDirectory()));
+                } else {
+                    block.append("''");
                 }
 
-                sb.append("')) {\n")
-                  .append("    archiveArtifacts artifacts: a2j('");
+                block.append(") {\n")
+                     .append("    archiveArtifacts artifacts: ");
 
                 // This could be null
                 String artTemp = pat.getArtifactPatternsString();
 
                 if((artTemp == null) || (artTemp.length() == 0)) {
-                    sb.append("**/*"); // default, per anthil docs
+                    // default, per anthil docs
+                    block.append(batch.add("**/*"));
                 } else {
                     context.scanProperties(artTemp);
-                    sb.append(artTemp.replace("\n", ","));
+                    block.append(batch.add(artTemp.replace("\n", ",")));
                 }
 
-                sb.append("')");
-
                 // Excludes?
                 artTemp = pat.getArtifactExcludePatternsString();
 
                 if((artTemp != null) && (artTemp.length() > 0)) {
                     context.scanProperties(artTemp);
-                    sb.append(", excludes: a2j('")
-                      .append(artTemp.replace("\n", ","))
-                      .append("')");
+                    block.append(", excludes: ")
+                         .append(batch.add(artTemp.replace("\n", ",")));
                 }
 
-                sb.append(", onlyIfSuccessful: true\n")
-                  .append("}\n");
+                block.append(", onlyIfSuccessful: true\n")
+                     .append("}\n");
+
+                sb.append(batch.getDeclaration()).append(block);
             }
         }
 
@@ -12,6 +12,7 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.ahp.domain.source.git;
  * @author sconley (sconley@epicforce.net)
  */
 
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.A2jBatch;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsStep;
 import net.epicforce.migrate.ahp.exception.MigrateException;
@@ -84,12 +85,17 @@ public class GitPopulateWorkspaceStepConfigMigrate extends JenkinsStep
               .append("\n */\n");
         }
 
+        // Values for a2j are resolved in one a2jAll call, which goes
+        // in here once we know them all.
+        A2jBatch batch = context.newA2jBatch();
+        int codeStart = sb.length();
+
         // Set our working dir.
-        sb.append("dir(a2j('");
+        sb.append("dir(");
 
         // For defaults, just use the CWD
         if(gitConfig.getWorkDirScript().getId() <= 0) {
-            sb.append(".");
+            sb.append("'.'");
         } else {
             // For whatever reason, working dir scripts can have
             // newlines in them even though they are paths with
@@ -102,10 +108,10 @@ public class GitPopulateWorkspaceStepConfigMigrate extends JenkinsStep
             context.scanProperties(workDirScript);
 
             // add it to our stringbuffer.
-            sb.append(workDirScript);
+            sb.append(batch.add(workDirScript));
         }
 
-        sb.append("')) {\n");
+        sb.append(") {\n");
 
 
         // Scan properties as needed
@@ -126,16 +132,16 @@ public class GitPopulateWorkspaceStepConfigMigrate extends JenkinsStep
         sb.append("    checkout(\n")
           .append("        [\n")
           .append("            $class: 'GitSCM',\n")
-          .append("            branches: [[name: a2j('")
-          .append(branch)
-          .append("')]],\n")
+          .append("            branches: [[name: ")
+          .append(batch.add(branch))
+          .append("]],\n")
           .append("            doGenerateSubmoduleConfigurations: false,\n")
           .append("            extensions: [\n")
           .append("                [\n")
           .append("                    $class: 'RelativeTargetDirectory',\n")
-          .append("                    relativeTargetDir: a2j('")
-          .append(gitConfig.getRepositoryName())
-          .append("')\n")
+          .append("                    relativeTargetDir: ")
+          .append(batch.add(gitConfig.getRepositoryName()))
+          .append("\n")
           .append("                ]");
 
         // Do we have more extensions to add?  Only one we care about
@@ -150,21 +156,22 @@ public class GitPopulateWorkspaceStepConfigMigrate extends JenkinsStep
         sb.append("\n")
           .append("            ],\n")
           .append("            submoduleCfg: [],\n")
-          .append("            userRemoteConfigs: [[url: a2j('")
-          .append(gitConfig.getRepositoryUrl())
-          .append("')]]\n")
+          .append("            userRemoteConfigs: [[url: ")
+          .append(batch.add(gitConfig.getRepositoryUrl()))
+          .append("]]\n")
           .append("        ]\n")
           .append("    )\n")
           .append("}\n");
 
         // Ta-da!
+        sb.insert(codeStart, batch.getDeclaration());
         context.addCode(sb.toString());
 
         // The built-in step forces a directory change into the new repo.
         // This confused the crap out of me :P
         sb.setLength(0);
-        sb.append("dir(a2j('").append(gitConfig.getRepositoryName())
-          .append("')) {\n");
+        sb.append("dir(").append(batch.add(gitConfig.getRepositoryName()))
+          .append(") {\n");
 
         context.addCode(sb.toString(), 1);
     }
@@ -14,6 +14,7 @@ import java.lang.StringBuilder;
 import java.util.HashMap;
 import java.util.Map;
 
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.A2jBatch;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsStep;
 import net.epicforce.migrate.ahp.exception.MigrateException;
@@ -122,13 +123,18 @@ public class GitPlugin extends JenkinsStep
             }
         }
 
+        // Values for a2j are resolved in one a2jAll call, which goes
+        // in here once we know them all.
+        A2jBatch batch = context.newA2jBatch();
+        int codeStart = sb.length();
+
         // Now, time to set up our checkouts.
         // Set our working dir.  AM-30 : Centralize this code ?
-        sb.append("dir(a2j('");
+        sb.append("dir(");
 
         // For defaults, just use the CWD
         if(config.getWorkDirScript().getId() <= 0) {
-            sb.append(".");
+            sb.append("'.'");
         } else {
             // For whatever reason, working dir scripts can have
             // newlines in them even though they are paths with
@@ -141,10 +147,10 @@ public class GitPlugin extends JenkinsStep
             context.scanProperties(workDirScript);
 
             // add it to our stringbuffer.
-            sb.append(workDirScript);
+            sb.append(batch.add(workDirScript));
         }
 
-        sb.append("')) {\n");
+        sb.append(") {\n");
 
         for(PropertyValueGroup pvg : config.getPropertyValueGroups()) {
             // Each one of these is a checkout.
@@ -214,20 +220,19 @@ public class GitPlugin extends JenkinsStep
               .append("            doGenerateSubmoduleConfigurations: false,\n")
               .append("            submoduleCfg: [],\n")
               .append("            extensions: [\n")
-              .append("                [$class: 'RelativeTargetDirectory', relativeTargetDir: a2j('")
-              .append(dirOffset)
-              .append("')]\n")
+              .append("                [$class: 'RelativeTargetDirectory', relativeTargetDir: ")
+              .append(batch.add(dirOffset))
+              .append("]\n")
               .append("            ],\n")
-              .append("            branches: [[name: a2j('")
-              .append(branch)
-              .append(revision) // This behavior seems to be what AHP does
-              .append("')]],\n")
+              .append("            branches: [[name: ")
+              // This behavior seems to be what AHP does
+              .append(batch.add(branch + revision))
+              .append("]],\n")
               .append("            userRemoteConfigs: [\n")
-              .append("                [name: a2j('")
-              .append(remoteName)
-              .append("'), url: a2j('")
-              .append(remoteUrl)
-              .append("')");
+              .append("                [name: ")
+              .append(batch.add(remoteName))
+              .append(", url: ")
+              .append(batch.add(remoteUrl));
 
             // Do we have credentials?
             if(repoCreds.get(repoId).length() > 0) {
@@ -246,6 +251,7 @@ public class GitPlugin extends JenkinsStep
         sb.append("}\n");
 
         // Done!
+        sb.insert(codeStart, batch.getDeclaration());
         context.addCode(sb.toString());
     }
 }
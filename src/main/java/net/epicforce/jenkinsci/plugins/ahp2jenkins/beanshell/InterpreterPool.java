@@ -0,0 +1,263 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.beanshell;
+
+/*
+ * InterpreterPool.java
+ *
+ * AM-42: Beanshell interpreters, set up once and reused.  Making an
+ * Interpreter is by far the most expensive part of processing a
+ * ${bsh:...} value, so rather than make one (and its helpers) every
+ * time, we keep a few ready with the helpers already in them, and
+ * point the helpers at whichever step borrows them.
+ *
+ * Each script runs in a fresh namespace under the interpreter's own,
+ * so variables and methods a script defines are thrown away when it
+ * finishes.  That doesn't cover everything, though: assigning to a
+ * name the interpreter already has (PathHelper = null), or going
+ * through global or super, writes to the interpreter's own namespace.
+ * So the helpers are set again on every borrow, and an interpreter
+ * whose namespace has anything else different when it comes back is
+ * dropped rather than pooled.  The helpers are unbound when an
+ * interpreter is handed back.
+ *
+ * The pool never makes anyone wait: if it's empty, a new interpreter
+ * is made, and if it's full when one comes back, that one is dropped.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.PipelineStep;
+
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.NameSpace;
+
+
+public final class InterpreterPool
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The shared pool; as many idle interpreters as we have CPUs,
+    // since that's as many as can usefully run at once.
+    private static final InterpreterPool INSTANCE = new InterpreterPool(
+        Integer.getInteger(InterpreterPool.class.getName() + ".size",
+                           Math.max(2,
+                                Runtime.getRuntime().availableProcessors()
+                           )
+        )
+    );
+
+    // Interpreters ready to go
+    private final BlockingQueue<Pooled> idle;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param size      Most idle interpreters to keep
+     */
+    InterpreterPool(int size)
+    {
+        idle = new ArrayBlockingQueue<Pooled>(Math.max(1, size));
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * @return the shared pool
+     */
+    public static InterpreterPool getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Borrow an interpreter, with its helpers bound to a step.  Hand
+     * it back with release() when done, in a finally.
+     *
+     * @param exec      The step the helpers should work for
+     * @param context   Its context
+     * @return an interpreter ready for eval()
+     * @throws EvalError if an interpreter can't be set up
+     */
+    public Pooled borrow(PipelineStep.PipelineExecution exec,
+                         StepContext context)
+           throws EvalError
+    {
+        Pooled ret = idle.poll();
+
+        if(ret == null) {
+            ret = new Pooled(this);
+        }
+
+        ret.bind(exec, context);
+        return ret;
+    }
+
+    /**
+     * @return how many interpreters are sitting idle
+     */
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    /*****************************************************************
+     * CLASSES
+     ****************************************************************/
+
+    /*
+     * One interpreter and its helpers.
+     */
+    public static final class Pooled
+    {
+        private static final String     PROPERTY_LOOKUP = "PropertyLookup";
+        private static final String     PATH_HELPER = "PathHelper";
+
+        private final InterpreterPool   pool;
+        private final Interpreter       bsh = new Interpreter();
+        private final PropertyLookup    propertyLookup = new PropertyLookup();
+        private final PathHelper        pathHelper = new PathHelper();
+
+        // What the interpreter's own namespace held when it was new,
+        // to tell if a script changed it
+        private final Map<String, Object> baseline;
+
+        /**
+         * Set up an interpreter and put the helpers in it.
+         *
+         * @param pool      Where it goes back to
+         * @throws EvalError if the helpers can't be set
+         */
+        private Pooled(InterpreterPool pool)
+                throws EvalError
+        {
+            this.pool = pool;
+
+            // AM-42: I think I can auto-import the helpers somehow,
+            //       but I need to sort out exactly how
+            bsh.set(PROPERTY_LOOKUP, propertyLookup);
+            bsh.set(PATH_HELPER, pathHelper);
+
+            baseline = snapshot();
+        }
+
+        /**
+         * Point the helpers at a step, and put them back in the
+         * interpreter in case the last script replaced them.
+         *
+         * @throws EvalError if the helpers can't be set
+         */
+        private void bind(PipelineStep.PipelineExecution exec,
+                          StepContext context)
+                throws EvalError
+        {
+            propertyLookup.setExecution(exec);
+            propertyLookup.setContext(context);
+            pathHelper.setContext(context);
+
+            bsh.set(PROPERTY_LOOKUP, propertyLookup);
+            bsh.set(PATH_HELPER, pathHelper);
+        }
+
+        /**
+         * @return the interpreter's own variables, name -> value
+         */
+        private Map<String, Object> snapshot()
+        {
+            NameSpace ns = bsh.getNameSpace();
+            Map<String, Object> ret = new HashMap<String, Object>();
+
+            for(String name : ns.getVariableNames()) {
+                try {
+                    ret.put(name, bsh.get(name));
+                } catch(EvalError e) {
+                    // Shouldn't happen for a name it just gave us;
+                    // count it as something we can't vouch for
+                    ret.put(name, e);
+                }
+            }
+
+            return ret;
+        }
+
+        /**
+         * Did a script leave anything in the interpreter's own
+         * namespace?  The helpers don't count; bind() resets them.
+         *
+         * @return true if it's as we made it
+         */
+        private boolean isClean()
+        {
+            if(bsh.getNameSpace().getMethodNames().length > 0) {
+                return false;
+            }
+
+            Map<String, Object> now = snapshot();
+
+            if(!now.keySet().equals(baseline.keySet())) {
+                return false;
+            }
+
+            for(Map.Entry<String, Object> e : baseline.entrySet()) {
+                String name = e.getKey();
+
+                if(PROPERTY_LOOKUP.equals(name) || PATH_HELPER.equals(name)) {
+                    continue;
+                }
+
+                if(now.get(name) != e.getValue()) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Run a script, in a namespace of its own.  Scripts we've seen
+         * lately aren't parsed again; see ScriptCache.
+         *
+         * @param script    Beanshell
+         * @return whatever it returns
+         * @throws EvalError if it fails
+         */
+        public Object eval(String script)
+               throws EvalError
+        {
+            return ScriptCache.getInstance().eval(script, bsh,
+                            new NameSpace(bsh.getNameSpace(), "a2j")
+            );
+        }
+
+        /**
+         * Unbind the helpers and hand the interpreter back.  One a
+         * script has left something in is dropped instead.
+         */
+        public void release()
+        {
+            propertyLookup.setExecution(null);
+            propertyLookup.setContext(null);
+            pathHelper.setContext(null);
+
+            if(isClean()) {
+                pool.idle.offer(this);
+            }
+        }
+    }
+}
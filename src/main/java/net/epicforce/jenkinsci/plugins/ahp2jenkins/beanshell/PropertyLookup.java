@@ -13,17 +13,28 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.beanshell;
 
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.PipelineStep;
 
-import hudson.EnvVars;
-
-import java.io.IOException;
-import java.lang.InterruptedException;
-import java.util.Map;
-
 import net.epicforce.migrate.ahp.exception.MigrateException;
 
 
 public class PropertyLookup extends AbstractHelper
 {
+    /*
+     * The step we're running for.  Lookups go through it so they
+     * share what it has already resolved.
+     */
+    private PipelineStep.PipelineExecution   exec;
+
+    /**
+     * Setter for the step we're running for.  Helpers are pooled
+     * with their interpreter, so this changes from use to use.
+     *
+     * @param exec          The step, or null when idle
+     */
+    public void setExecution(PipelineStep.PipelineExecution exec)
+    {
+        this.exec = exec;
+    }
+
     /**
      * Method to look up a property based on a name.
      *
@@ -37,26 +48,6 @@ public class PropertyLookup extends AbstractHelper
     public String getValue(Object val)
            throws MigrateException
     {
-        try {
-            Map<String, String> env = (EnvVars)getContext().get(EnvVars.class);
-            String property = String.valueOf(env);
-
-            // See if we have a property
-            if(env.containsKey(property)) {
-                // Run the resolver on it
-                PipelineStep.PipelineExecution exec =
-                            new PipelineStep.PipelineExecution(property,
-                                                               getContext()
-                );
-
-                return exec.run();
-            }
-        } catch(IOException | InterruptedException e) {
-            throw new MigrateException(
-                "Got an error getting beanshell properties", e
-            );
-        }
-
-        return "";
+        return exec.lookupProperty(String.valueOf(val));
     }
 }
@@ -0,0 +1,321 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.beanshell;
+
+/*
+ * ScriptCache.java
+ *
+ * Parsed beanshell, keyed by the script text.  The same few ${bsh:...}
+ * expressions (PathHelper.makeSafe(...) and friends) come up in build
+ * after build, and parsing them again each time is wasted work, so we
+ * keep the parse trees and evaluate those instead.
+ *
+ * A parse tree doesn't belong to any interpreter; beanshell itself
+ * keeps method bodies as trees and evaluates them over and over, which
+ * is all we're doing here.  So one cache serves every interpreter in
+ * the pool.
+ *
+ * Beanshell doesn't make its parse tree classes public, so we get at
+ * them by reflection.  If that ever stops working (a different
+ * beanshell), we log it once and just let the interpreter parse, as
+ * we used to.
+ *
+ * It's a plain LRU, bounded by how many scripts it holds.  Hits,
+ * misses and evictions are counted so the size can be tuned; see the
+ * migration page.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import bsh.CallStack;
+import bsh.EvalError;
+import bsh.Interpreter;
+import bsh.NameSpace;
+import bsh.Parser;
+import bsh.Primitive;
+
+
+public final class ScriptCache
+{
+    private static final Logger LOG =
+                            Logger.getLogger(ScriptCache.class.getName());
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // How many scripts to keep by default
+    public static final int DEFAULT_SIZE = 512;
+
+    // The bits of beanshell we need that aren't public: parsing a
+    // statement, evaluating one, and what a 'return' evaluates to.
+    // All null if we couldn't find them.
+    private static final Method     POP_NODE;
+    private static final Method     EVAL_NODE;
+    private static final Class<?>   RETURN_CONTROL;
+    private static final Field      RETURN_VALUE;
+
+    static {
+        Method pop = null;
+        Method eval = null;
+        Class<?> ret = null;
+        Field value = null;
+
+        try {
+            pop = Parser.class.getMethod("popNode");
+            eval = Class.forName("bsh.SimpleNode").getMethod("eval",
+                                    CallStack.class, Interpreter.class
+            );
+            ret = Class.forName("bsh.ReturnControl");
+            value = ret.getDeclaredField("value");
+
+            pop.setAccessible(true);
+            eval.setAccessible(true);
+            value.setAccessible(true);
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            LOG.log(Level.WARNING,
+                    "Can't cache parsed beanshell; every script will be " +
+                    "parsed each time", e
+            );
+            pop = null;
+            eval = null;
+            ret = null;
+            value = null;
+        }
+
+        POP_NODE = pop;
+        EVAL_NODE = eval;
+        RETURN_CONTROL = ret;
+        RETURN_VALUE = value;
+    }
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The shared cache
+    private static final ScriptCache INSTANCE = new ScriptCache(
+        Integer.getInteger(ScriptCache.class.getName() + ".size",
+                           DEFAULT_SIZE
+        )
+    );
+
+    // Most scripts we keep
+    private final int                       maxSize;
+
+    // Script text -> parsed statements, least recently used first
+    private final Map<String, Object[]>     scripts;
+
+    // For sizing
+    private final AtomicLong                hits = new AtomicLong();
+    private final AtomicLong                misses = new AtomicLong();
+    private final AtomicLong                evictions = new AtomicLong();
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param maxSize   Most scripts to keep; 0 keeps none
+     */
+    ScriptCache(int maxSize)
+    {
+        this.maxSize = Math.max(0, maxSize);
+        this.scripts = new LinkedHashMap<String, Object[]>(64, 0.75f,
+                                                           true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                                    Map.Entry<String, Object[]> eldest)
+            {
+                if(size() > ScriptCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the shared cache
+     */
+    public static ScriptCache getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * @return most scripts we keep
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return scripts we have now
+     */
+    public synchronized int getSize()
+    {
+        return scripts.size();
+    }
+
+    /**
+     * @return lookups that found the script already parsed
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return lookups that had to parse
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return scripts dropped to make room
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Evaluate a script, parsing it only if we haven't seen it lately.
+     * This is what Interpreter.eval does, minus the parsing.
+     *
+     * @param script    Beanshell
+     * @param bsh       Interpreter to run it with
+     * @param ns        Namespace to run it in
+     * @return whatever it returns
+     * @throws EvalError if it doesn't parse or fails
+     */
+    public Object eval(String script, Interpreter bsh, NameSpace ns)
+           throws EvalError
+    {
+        if(EVAL_NODE == null) {
+            return bsh.eval(script, ns);
+        }
+
+        Object[] nodes = parsed(script);
+        CallStack callstack = new CallStack(ns);
+        Object ret = null;
+
+        try {
+            for(Object node : nodes) {
+                ret = EVAL_NODE.invoke(node, callstack, bsh);
+
+                if(RETURN_CONTROL.isInstance(ret)) {
+                    ret = RETURN_VALUE.get(ret);
+                    break;
+                }
+            }
+        } catch(InvocationTargetException e) {
+            Throwable cause = e.getCause();
+
+            if(cause instanceof EvalError) {
+                throw (EvalError)cause;
+            } else if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+
+            throw new IllegalStateException(cause);
+        } catch(IllegalAccessException e) {
+            // We made them accessible; can't happen
+            throw new IllegalStateException(e);
+        }
+
+        return Primitive.unwrap(ret);
+    }
+
+    /**
+     * Get a script's parse, from the cache or by parsing it.
+     *
+     * @param script    Beanshell
+     * @return its statements
+     * @throws EvalError if it doesn't parse
+     */
+    private Object[] parsed(String script)
+            throws EvalError
+    {
+        Object[] ret;
+
+        synchronized(this) {
+            ret = scripts.get(script);
+        }
+
+        if(ret != null) {
+            hits.incrementAndGet();
+            return ret;
+        }
+
+        // Parse outside the lock; if two threads parse the same thing
+        // at once, one wasted parse is no big deal.
+        misses.incrementAndGet();
+        ret = parse(script);
+
+        if(maxSize > 0) {
+            synchronized(this) {
+                scripts.put(script, ret);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parse a script into statements, as Interpreter.eval would.
+     *
+     * @param script    Beanshell
+     * @return its statements
+     * @throws EvalError if it doesn't parse
+     */
+    private static Object[] parse(String script)
+            throws EvalError
+    {
+        // Interpreter.eval tacks on a ; if it's missing, so we do too
+        Parser parser = new Parser(new StringReader(
+                            script.endsWith(";") ? script : script + ";"
+        ));
+
+        List<Object> ret = new ArrayList<Object>(2);
+
+        try {
+            while(!parser.Line()) {
+                ret.add(POP_NODE.invoke(parser));
+            }
+        } catch(ReflectiveOperationException e) {
+            // popNode doesn't throw, and we made it accessible
+            throw new IllegalStateException(e);
+        }
+
+        return ret.toArray();
+    }
+}
@@ -0,0 +1,286 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.code;
+
+/**
+ * A2jBatch.java
+ *
+ * Collects the values one generated block needs run through a2j, so
+ * they can all be resolved by a single a2jAll call instead of one
+ * step each.  Every a2j call is a full pipeline step, with its own
+ * execution and a checkpoint of the program state, so a maven step
+ * going from eight of those to one adds up over a build.
+ *
+ * Values with nothing to resolve (most of them: '.', 'master', a plain
+ * URL) are worked out here, at migration time, and come back as plain
+ * Groovy string literals; they never cost a step at all.  If nothing
+ * in a block needs resolving, there's no a2jAll call either.
+ *
+ * Simple beanshell is turned into Groovy here too, if we were given a
+ * BeanshellTranslator; see there.
+ *
+ * Usage: add() each value and put the expression it gives you in the
+ * generated code where the a2j call would have gone, then put
+ * getDeclaration() ahead of that code.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyLexer;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertySyntaxException;
+
+
+public class A2jBatch
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The Groovy variable the results go in
+    private final String                variable;
+
+    // For ${bsh:...}; null to leave it all to a2j
+    private final BeanshellTranslator   translator;
+
+    // Values to resolve, in order, and where each one is
+    private final List<String>          values = new ArrayList<String>();
+    private final Map<String, Integer>  index = new HashMap<String, Integer>();
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param variable      Groovy variable name for the results; must
+     *                      be unique within the pipeline
+     */
+    public A2jBatch(String variable)
+    {
+        this(variable, null);
+    }
+
+    /**
+     * @param variable      Groovy variable name for the results; must
+     *                      be unique within the pipeline
+     * @param translator    Beanshell translator, or null
+     */
+    public A2jBatch(String variable, BeanshellTranslator translator)
+    {
+        this.variable = variable;
+        this.translator = translator;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Add a value to be resolved.  Adding the same value twice
+     * resolves it once, and a value with no property or beanshell
+     * references isn't resolved at all.
+     *
+     * @param value         The raw AHP value, properties and all
+     * @return a Groovy expression for the resolved value
+     * @throws PropertySyntaxException if the value has a malformed
+     *         reference in it
+     */
+    public String add(String value)
+           throws PropertySyntaxException
+    {
+        // It's a constant; say so
+        if(!PropertyLexer.hasReferences(value)) {
+            return quote(new StringBuilder(value.length() + 2), value)
+                        .toString();
+        }
+
+        // Beanshell we can do without?
+        if(translator != null) {
+            String expr = translate(value);
+
+            if(expr != null) {
+                return expr;
+            }
+        }
+
+        Integer i = index.get(value);
+
+        if(i == null) {
+            i = values.size();
+            values.add(value);
+            index.put(value, i);
+        }
+
+        return variable + "[" + i + "]";
+    }
+
+    /**
+     * Split a value around its beanshell and translate each script.
+     * The bits between are added as usual.
+     *
+     * @param value         A value with references in it
+     * @return a Groovy expression for it, or null if it has no
+     *         beanshell or some of it can't be translated
+     * @throws PropertySyntaxException on a malformed reference
+     */
+    private String translate(String value)
+            throws PropertySyntaxException
+    {
+        PropertyLexer lex = new PropertyLexer(value);
+        List<String> parts = new ArrayList<String>(4);
+        List<String> scripts = new ArrayList<String>(2);
+        int mark = mark();
+        int runStart = 0;
+        boolean ok = true;
+
+        while(ok && lex.next()) {
+            if(lex.getKind() != PropertyLexer.Kind.BSH) {
+                continue;
+            }
+
+            scripts.add(lex.getBody());
+
+            if(lex.getStart() > runStart) {
+                parts.add(add(value.substring(runStart, lex.getStart())));
+            }
+
+            String expr = translator.translate(lex.getBody(), this);
+
+            if(expr == null) {
+                ok = false;
+            } else {
+                parts.add(expr);
+                runStart = lex.getEnd();
+            }
+        }
+
+        if(scripts.isEmpty()) {
+            return null;
+        }
+
+        // All of it goes one way or the other
+        for(String script : scripts) {
+            translator.note(script, ok);
+        }
+
+        if(!ok) {
+            // The whole value goes to a2j.  Report the rest of its
+            // scripts too, so the report is complete.
+            while(lex.nextReference()) {
+                if(lex.getKind() == PropertyLexer.Kind.BSH) {
+                    translator.note(lex.getBody(), false);
+                }
+            }
+
+            rollback(mark);
+            return null;
+        }
+
+        if(runStart < value.length()) {
+            parts.add(add(value.substring(runStart)));
+        }
+
+        if(parts.size() == 1) {
+            return parts.get(0);
+        }
+
+        return "(" + String.join(" + ", parts) + ")";
+    }
+
+    /**
+     * @return a mark to roll back to
+     */
+    int mark()
+    {
+        return values.size();
+    }
+
+    /**
+     * Forget everything added since a mark.
+     *
+     * @param mark          From mark()
+     */
+    void rollback(int mark)
+    {
+        while(values.size() > mark) {
+            index.remove(values.remove(values.size() - 1));
+        }
+    }
+
+    /**
+     * @return true if nothing needing resolution has been added
+     */
+    public boolean isEmpty()
+    {
+        return values.isEmpty();
+    }
+
+    /**
+     * Get the line that resolves everything.  It has to come before
+     * any code using the expressions add() gave out.
+     *
+     * @return the declaration, with trailing newline, or empty string
+     *         if nothing needs resolving
+     */
+    public String getDeclaration()
+    {
+        if(values.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder(64 + (values.size() * 32));
+
+        sb.append("def ").append(variable).append(" = a2jAll([");
+
+        for(int i = 0; i < values.size(); i++) {
+            if(i > 0) {
+                sb.append(", ");
+            }
+
+            quote(sb, values.get(i));
+        }
+
+        return sb.append("])\n").toString();
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Append a value as a single quoted Groovy string.  Single quotes
+     * don't interpolate, so ${...} comes through untouched for a2j;
+     * only quotes, backslashes and line breaks need escaping.
+     *
+     * @param sb            Where to put it
+     * @param value         The value
+     * @return sb
+     */
+    public static StringBuilder quote(StringBuilder sb, String value)
+    {
+        sb.append('\'');
+
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            switch(c) {
+                case '\'':
+                case '\\':
+                    sb.append('\\').append(c);
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+
+        return sb.append('\'');
+    }
+}
@@ -0,0 +1,358 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.code;
+
+/**
+ * BeanshellTranslator.java
+ *
+ * Turns simple ${bsh:...} scripts into plain Groovy at migration time,
+ * so the build doesn't need a beanshell interpreter to work them out.
+ * Nearly all the beanshell we see is one of a few shapes:
+ *
+ *   PropertyLookup.getValue("name")
+ *   PathHelper.makeSafe(...)
+ *   "string literals"
+ *
+ * and strings of those joined with +, which this handles.  Anything
+ * else is left for the a2j step to run through beanshell, as always.
+ *
+ * What we get out only uses things the script sandbox allows: string
+ * literals, +, String.replaceAll, and values resolved by a2jAll.
+ *
+ * We keep track of which scripts were translated and which weren't,
+ * for the migration report.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+
+public class BeanshellTranslator
+{
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    private static final String LOOKUP = "PropertyLookup.getValue";
+    private static final String MAKE_SAFE = "PathHelper.makeSafe";
+
+    // PathHelper.makeSafe: anything that can't be in a Java identifier
+    // becomes an underscore
+    private static final String MAKE_SAFE_GROOVY =
+                ".replaceAll('[^\\\\p{javaJavaIdentifierPart}]', '_')";
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // What we've translated, and what we've had to leave alone
+    private final Set<String>   translated = new LinkedHashSet<String>();
+    private final Set<String>   interpreted = new LinkedHashSet<String>();
+
+    // The script being translated, and where we are in it
+    private String              script;
+    private int                 pos;
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return scripts turned into Groovy, in the order we saw them
+     */
+    public synchronized List<String> getTranslated()
+    {
+        return Collections.unmodifiableList(
+                                    new ArrayList<String>(translated)
+        );
+    }
+
+    /**
+     * @return scripts left for beanshell, in the order we saw them
+     */
+    public synchronized List<String> getInterpreted()
+    {
+        return Collections.unmodifiableList(
+                                    new ArrayList<String>(interpreted)
+        );
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Try to turn a beanshell script into a Groovy expression.
+     * Property lookups are added to the batch.  Use note() to record
+     * how it went.
+     *
+     * @param body      The script, without the ${bsh: }
+     * @param batch     Where to put values that need resolving
+     * @return a Groovy expression, or null if it's beyond us
+     */
+    public synchronized String translate(String body, A2jBatch batch)
+    {
+        script = body;
+        pos = 0;
+
+        // So we can take back lookups if we give up part way
+        int mark = batch.mark();
+        String ret;
+
+        try {
+            ret = expression(batch);
+
+            // A trailing ; is fine; anything else isn't
+            skipSpace();
+
+            if(peek(";")) {
+                pos++;
+                skipSpace();
+            }
+
+            if(pos != script.length()) {
+                ret = null;
+            }
+        } catch(Untranslatable e) {
+            ret = null;
+        }
+
+        if(ret == null) {
+            batch.rollback(mark);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Note what became of a script, for the report.  A script we could
+     * translate still goes to beanshell if another one in the same
+     * value couldn't be, so this is up to the caller.
+     *
+     * @param body      The script
+     * @param done      True if it was translated
+     */
+    public synchronized void note(String body, boolean done)
+    {
+        if(done) {
+            translated.add(body);
+        } else {
+            interpreted.add(body);
+        }
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * term ( '+' term )*
+     */
+    private String expression(A2jBatch batch)
+            throws Untranslatable
+    {
+        String first = term(batch);
+        StringBuilder sb = null;
+
+        skipSpace();
+
+        while(peek("+")) {
+            pos++;
+
+            if(sb == null) {
+                sb = new StringBuilder(64).append('(').append(first);
+            }
+
+            sb.append(" + ").append(term(batch));
+            skipSpace();
+        }
+
+        return (sb == null) ? first : sb.append(')').toString();
+    }
+
+    /**
+     * A string literal, a lookup, or makeSafe of an expression.
+     */
+    private String term(A2jBatch batch)
+            throws Untranslatable
+    {
+        skipSpace();
+
+        if(peek("\"")) {
+            return A2jBatch.quote(new StringBuilder(), stringLiteral())
+                           .toString();
+        }
+
+        if(call(LOOKUP)) {
+            skipSpace();
+
+            if(!peek("\"")) {
+                // Looked up by something worked out at run time
+                throw new Untranslatable();
+            }
+
+            String name = stringLiteral();
+            close();
+
+            // Names that would upset the reference syntax
+            if(name.isEmpty() || (name.indexOf('$') >= 0) ||
+               (name.indexOf('{') >= 0) || (name.indexOf('}') >= 0)) {
+                throw new Untranslatable();
+            }
+
+            // getValue gives "" for a missing property, as does p?:
+            return batchAdd(batch, "${p?:" + name + "}");
+        }
+
+        if(call(MAKE_SAFE)) {
+            String arg = expression(batch);
+            close();
+
+            return "(" + arg + ")" + MAKE_SAFE_GROOVY;
+        }
+
+        throw new Untranslatable();
+    }
+
+    /**
+     * Add a value to the batch; it always has a reference in it, so
+     * this can't fail on syntax, but the compiler doesn't know that.
+     */
+    private static String batchAdd(A2jBatch batch, String value)
+            throws Untranslatable
+    {
+        try {
+            return batch.add(value);
+        } catch(Exception e) {
+            throw new Untranslatable();
+        }
+    }
+
+    /**
+     * If a call to the named method starts here, step past the '('.
+     */
+    private boolean call(String method)
+    {
+        if(!script.startsWith(method, pos)) {
+            return false;
+        }
+
+        int save = pos;
+
+        pos += method.length();
+        skipSpace();
+
+        if(peek("(")) {
+            pos++;
+            return true;
+        }
+
+        pos = save;
+        return false;
+    }
+
+    /**
+     * Step past a ')', or give up.
+     */
+    private void close()
+            throws Untranslatable
+    {
+        skipSpace();
+
+        if(!peek(")")) {
+            throw new Untranslatable();
+        }
+
+        pos++;
+    }
+
+    /**
+     * Read a double quoted Java string literal.  We handle the common
+     * escapes; anything fancier isn't worth it.
+     */
+    private String stringLiteral()
+            throws Untranslatable
+    {
+        StringBuilder sb = new StringBuilder(32);
+
+        for(pos++; pos < script.length(); pos++) {
+            char c = script.charAt(pos);
+
+            if(c == '"') {
+                pos++;
+                return sb.toString();
+            }
+
+            if(c != '\\') {
+                sb.append(c);
+                continue;
+            }
+
+            if(++pos >= script.length()) {
+                break;
+            }
+
+            switch(script.charAt(pos)) {
+                case '"':
+                    sb.append('"');
+                    break;
+                case '\'':
+                    sb.append('\'');
+                    break;
+                case '\\':
+                    sb.append('\\');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                default:
+                    throw new Untranslatable();
+            }
+        }
+
+        // Ran off the end
+        throw new Untranslatable();
+    }
+
+    /**
+     * @return true if s is next
+     */
+    private boolean peek(String s)
+    {
+        return script.startsWith(s, pos);
+    }
+
+    private void skipSpace()
+    {
+        while((pos < script.length()) &&
+              Character.isWhitespace(script.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    /*****************************************************************
+     * CLASSES
+     ****************************************************************/
+
+    /*
+     * Bail out of a script we can't translate.
+     */
+    private static final class Untranslatable extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        Untranslatable()
+        {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -5,16 +5,42 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.code;
  *
  * The Code class handles the tab interaction between CodeBlocks.
  *
+ * render() writes the code straight out to anything Appendable, a
+ * Writer included, so a big pipeline needn't be built up in memory
+ * first; get() renders into a buffer of exactly the right size.
+ *
  * @author sconley (sconley@epicforce.net)
  */
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Code
 {
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // Spaces per tab level
+    private static final int TAB_WIDTH = 4;
+
+    // Indentation for each tab level.  Pipelines rarely go deeper
+    // than this; deeper levels are made as needed.
+    private static final String[] INDENTS = new String[16];
+
+    static {
+        StringBuilder sb = new StringBuilder(INDENTS.length * TAB_WIDTH);
+
+        for(int i = 0; i < INDENTS.length; i++) {
+            INDENTS[i] = sb.toString();
+
+            for(int j = 0; j < TAB_WIDTH; j++) {
+                sb.append(' ');
+            }
+        }
+    }
+
     /*****************************************************************
      * PROPERTIES
      ****************************************************************/
@@ -22,8 +48,8 @@ public class Code
     // Our blocks of code
     private LinkedList<CodeBlock> code = new LinkedList<CodeBlock>();
 
-    // Estimated size of our contained code block.
-    private int sizeEstimate = 0;
+    // Size of our code once rendered, tabs and all
+    private int size = 0;
 
     /*****************************************************************
      * METHODS
@@ -91,8 +117,10 @@ public class Code
         // Create code block and add it.
         CodeBlock newBlock = new CodeBlock(code, forceLevel, tabModifier);
 
-        // Update our size.
-        sizeEstimate += code.length();
+        // Update our size: the code, tabs for each line, and the
+        // newline we end it with.
+        size += code.length() +
+                (lineStarts(code) * indent(forceLevel).length()) + 1;
 
         this.code.add(newBlock);
     }
@@ -125,41 +153,117 @@ public class Code
      */
     public String get()
     {
-        // Get a string builder with an estimated size
-        // We multiply it to factor in additional new lines.
-        StringBuilder sb = new StringBuilder(sizeEstimate*2);
-
-        // Create a string builder just for making tabs
-        StringBuilder tabbing = new StringBuilder(32);
+        StringBuilder sb = new StringBuilder(size);
 
-        // Keep track of our allocated tab level
-        int tabLevel = 0;
+        try {
+            render(sb);
+        } catch(IOException e) {
+            // StringBuilder doesn't do this
+            throw new IllegalStateException(e);
+        }
 
-        // Match start of line
-        Pattern startOfLine = Pattern.compile("^", Pattern.MULTILINE);
+        return sb.toString();
+    }
 
+    /**
+     * Write our code out, neatly formatted.  Each line of each block
+     * is tabbed to the block's level, and each block ends with a
+     * newline; the same as get() returns.
+     *
+     * @param out       Where to write it
+     * @throws IOException if out does
+     */
+    public void render(Appendable out)
+           throws IOException
+    {
         for(CodeBlock block : code) {
-            // Create tabbing object if we need to
-            if(tabLevel != block.getTabLevel()) {
-                tabLevel = block.getTabLevel();
-                int tabCount = tabLevel*4;
-
-                // Truncate or grow
-                if(tabCount < tabbing.length()) {
-                    tabbing.setLength(tabCount);
-                } else {
-                    while(tabbing.length() < tabCount) {
-                        tabbing.append(" ");
-                    }
+            String text = block.getCode();
+            String indent = indent(block.getTabLevel());
+            int start = 0;
+            int len = text.length();
+
+            // An empty block is just a blank line
+            if(len > 0) {
+                out.append(indent);
+            }
+
+            for(int i = 0; i < len; i++) {
+                if(isLineEnd(text, i) && (i + 1 < len)) {
+                    out.append(text, start, i + 1).append(indent);
+                    start = i + 1;
                 }
             }
 
-            // Add to string and add tabs.
-            sb.append(startOfLine.matcher(block.getCode())
-                                 .replaceAll(tabbing.toString())
-            ).append("\n");
+            out.append(text, start, len).append('\n');
+        }
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * @param level     Tab level; below 0 counts as 0
+     * @return the indentation for it
+     */
+    private static String indent(int level)
+    {
+        if(level <= 0) {
+            return INDENTS[0];
+        }
+
+        if(level < INDENTS.length) {
+            return INDENTS[level];
+        }
+
+        StringBuilder sb = new StringBuilder(level * TAB_WIDTH);
+
+        for(int i = level * TAB_WIDTH; i > 0; i--) {
+            sb.append(' ');
         }
 
         return sb.toString();
     }
+
+    /**
+     * Does a line end at i?  Any of Java's line terminators count,
+     * with \r\n ending at the \n.
+     *
+     * @param text      Code
+     * @param i         Position in it
+     * @return true if there's a line end at i
+     */
+    private static boolean isLineEnd(String text, int i)
+    {
+        switch(text.charAt(i)) {
+            case '\r':
+                return (i + 1 >= text.length()) ||
+                       (text.charAt(i + 1) != '\n');
+            case '\n':
+            case '\u0085':
+            case '\u2028':
+            case '\u2029':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param text      Code
+     * @return how many lines in it get tabbed: the first, and each
+     *         one after a line end, unless the code ends there
+     */
+    private static int lineStarts(String text)
+    {
+        int ret = text.isEmpty() ? 0 : 1;
+
+        for(int i = 0; i + 1 < text.length(); i++) {
+            if(isLineEnd(text, i)) {
+                ret++;
+            }
+        }
+
+        return ret;
+    }
 }
@@ -19,10 +19,14 @@ import java.util.logging.Logger;
 import java.util.logging.Level;
 
 import hudson.Extension;
+import hudson.util.FormValidation;
 import jenkins.model.GlobalConfiguration;
 
 import net.sf.json.JSONObject;
 
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -48,7 +52,40 @@ public class AhpGlobalConfiguration extends GlobalConfiguration
      * matters, but hey, its a party!
      */
     private List<AhpInstance> instances;
-     
+
+    /*
+     * Migration thread pool settings (AM-37).  In fixed mode we
+     * use threadCount threads.  In adaptive mode we start at
+     * threadCount and let the engine move between 1 and
+     * maxThreadCount based on how AHP is responding.
+     */
+    public static final int DEFAULT_THREAD_COUNT = 5;
+    public static final int DEFAULT_MAX_THREAD_COUNT = 20;
+
+    private int     threadCount = DEFAULT_THREAD_COUNT;
+    private boolean adaptiveThreads = false;
+    private int     maxThreadCount = DEFAULT_MAX_THREAD_COUNT;
+
+    /*
+     * How long AHP system properties are cached, in minutes.  They are
+     * shared by every migration from the same server; 0 reloads them
+     * for every workflow.
+     */
+    public static final int DEFAULT_SYSTEM_PROPERTY_TTL = 30;
+
+    private Integer systemPropertyTtl = DEFAULT_SYSTEM_PROPERTY_TTL;
+
+    /*
+     * Budgets for beanshell run by the a2j step, in seconds: how long
+     * one value may take, and how much CPU it may use.  0 means no
+     * limit.
+     */
+    public static final int DEFAULT_BEANSHELL_TIMEOUT = 60;
+    public static final int DEFAULT_BEANSHELL_CPU_BUDGET = 30;
+
+    private Integer beanshellTimeout = DEFAULT_BEANSHELL_TIMEOUT;
+    private Integer beanshellCpuBudget = DEFAULT_BEANSHELL_CPU_BUDGET;
+
     /*****************************************************************
      * CONSTRUCTORS
      ****************************************************************/
@@ -126,6 +163,192 @@ public class AhpGlobalConfiguration extends GlobalConfiguration
         save();
     }
 
+    /**
+     * @return number of migration threads (starting number if adaptive)
+     */
+    public int getThreadCount()
+    {
+        // Older configs won't have this saved
+        if(threadCount <= 0) {
+            return DEFAULT_THREAD_COUNT;
+        }
+
+        return threadCount;
+    }
+
+    /**
+     * @param threadCount    number of migration threads
+     */
+    public void setThreadCount(int threadCount)
+    {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @return true if the thread count should adapt to AHP's load
+     */
+    public boolean getAdaptiveThreads()
+    {
+        return adaptiveThreads;
+    }
+
+    /**
+     * @param adaptiveThreads    true to adapt thread count to AHP's load
+     */
+    public void setAdaptiveThreads(boolean adaptiveThreads)
+    {
+        this.adaptiveThreads = adaptiveThreads;
+    }
+
+    /**
+     * @return the most threads adaptive mode may use
+     */
+    public int getMaxThreadCount()
+    {
+        if(maxThreadCount <= 0) {
+            return DEFAULT_MAX_THREAD_COUNT;
+        }
+
+        return maxThreadCount;
+    }
+
+    /**
+     * @param maxThreadCount    the most threads adaptive mode may use
+     */
+    public void setMaxThreadCount(int maxThreadCount)
+    {
+        this.maxThreadCount = maxThreadCount;
+    }
+
+    /**
+     * @return minutes to cache AHP system properties for
+     */
+    public int getSystemPropertyTtl()
+    {
+        // Older configs won't have this saved
+        if((systemPropertyTtl == null) || (systemPropertyTtl < 0)) {
+            return DEFAULT_SYSTEM_PROPERTY_TTL;
+        }
+
+        return systemPropertyTtl;
+    }
+
+    /**
+     * @param systemPropertyTtl    minutes to cache AHP system properties
+     */
+    public void setSystemPropertyTtl(int systemPropertyTtl)
+    {
+        this.systemPropertyTtl = systemPropertyTtl;
+    }
+
+    /**
+     * @return seconds a2j may spend on one value's beanshell; 0 for
+     *         no limit
+     */
+    public int getBeanshellTimeout()
+    {
+        // Older configs won't have this saved
+        if((beanshellTimeout == null) || (beanshellTimeout < 0)) {
+            return DEFAULT_BEANSHELL_TIMEOUT;
+        }
+
+        return beanshellTimeout;
+    }
+
+    /**
+     * @param beanshellTimeout      seconds, or 0 for no limit
+     */
+    public void setBeanshellTimeout(int beanshellTimeout)
+    {
+        this.beanshellTimeout = beanshellTimeout;
+    }
+
+    /**
+     * @return CPU seconds a2j may spend on one value's beanshell; 0
+     *         for no limit
+     */
+    public int getBeanshellCpuBudget()
+    {
+        if((beanshellCpuBudget == null) || (beanshellCpuBudget < 0)) {
+            return DEFAULT_BEANSHELL_CPU_BUDGET;
+        }
+
+        return beanshellCpuBudget;
+    }
+
+    /**
+     * @param beanshellCpuBudget    CPU seconds, or 0 for no limit
+     */
+    public void setBeanshellCpuBudget(int beanshellCpuBudget)
+    {
+        this.beanshellCpuBudget = beanshellCpuBudget;
+    }
+
+    /*****************************************************************
+     * VALIDATION CALLBACKS
+     ****************************************************************/
+
+    /**
+     * Validate thread count
+     *
+     * @param value     thread count string
+     * @return proper FormValidation response.
+     */
+    @Restricted(NoExternalUse.class)
+    public FormValidation doCheckThreadCount(@QueryParameter String value)
+    {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Validate max thread count
+     *
+     * @param value     max thread count string
+     * @return proper FormValidation response.
+     */
+    @Restricted(NoExternalUse.class)
+    public FormValidation doCheckMaxThreadCount(@QueryParameter String value)
+    {
+        return FormValidation.validatePositiveInteger(value);
+    }
+
+    /**
+     * Validate system property cache time
+     *
+     * @param value     minutes string
+     * @return proper FormValidation response.
+     */
+    @Restricted(NoExternalUse.class)
+    public FormValidation doCheckSystemPropertyTtl(@QueryParameter String value)
+    {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Validate beanshell time limit
+     *
+     * @param value     seconds string
+     * @return proper FormValidation response.
+     */
+    @Restricted(NoExternalUse.class)
+    public FormValidation doCheckBeanshellTimeout(@QueryParameter String value)
+    {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
+    /**
+     * Validate beanshell CPU budget
+     *
+     * @param value     seconds string
+     * @return proper FormValidation response.
+     */
+    @Restricted(NoExternalUse.class)
+    public FormValidation doCheckBeanshellCpuBudget(
+                                            @QueryParameter String value)
+    {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+
     /*****************************************************************
      * METHODS
      ****************************************************************/
@@ -151,6 +374,9 @@ public class AhpGlobalConfiguration extends GlobalConfiguration
            throws FormException
     {
         req.bindJSON(this, json);
+
+        // setInstances saves, but the thread settings don't.
+        save();
         return true; // WHY?  Not sure
     }
 }
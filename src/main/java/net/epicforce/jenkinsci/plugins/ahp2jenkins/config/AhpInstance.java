@@ -9,13 +9,8 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.config;
  * @author sconley
  */
 
-import java.io.IOException;
-import java.io.File;
 import java.io.Serializable;
 import java.lang.StringBuilder;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.logging.Level;
@@ -26,8 +21,6 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
-import hudson.model.Item;
-import hudson.security.ACL;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 
@@ -38,17 +31,16 @@ import org.kohsuke.stapler.QueryParameter;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 
-import com.cloudbees.plugins.credentials.CredentialsMatchers;
-import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernameListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 
 import org.jenkinsci.plugins.plaincredentials.FileCredentials;
 
 import net.epicforce.migrate.ahp.Migration;
 import net.epicforce.migrate.ahp.exception.MigrateException;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.FileCredentialsListBoxModel;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials.CredentialCache;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials.KeystoreCache;
 
 
 // AM-33: Support keystore passwords other than the default
@@ -164,9 +156,8 @@ public class AhpInstance extends AbstractDescribableImpl<AhpInstance>
     /**
      * Constructs a Migration object based on the data in this AhpInstance.
      *
-     * Handles all the finnicky details of unpacking the keystore in a
-     * relatively secure way (since it has to be on the filesystem for AHP
-     * to pick it up) and then making sure it gets cleaned up.
+     * The keystore has to be on the filesystem for AHP to pick it up;
+     * KeystoreCache takes care of writing it out somewhere private.
      *
      * @return a Migration object ready for use
      * @throws MigrateException if we could not connect to AHP or some other
@@ -182,91 +173,35 @@ public class AhpInstance extends AbstractDescribableImpl<AhpInstance>
             );
         }
 
-        // Keep this around for cleanup purposes.  It will still be null if
-        // the keystore was never used.
-        File tempKeyfile = null;
-
-        try {
-            // Get our user credential
-            StandardUsernamePasswordCredentials user =
-                CredentialsMatchers.firstOrNull(
-                    CredentialsProvider.lookupCredentials(
+        // Get our user credential
+        StandardUsernamePasswordCredentials user = CredentialCache.get(
                                     StandardUsernamePasswordCredentials.class,
-                                    (Item) null,
-                                    ACL.SYSTEM,
-                                    Collections.<DomainRequirement>emptyList()
-                    ),
-                    CredentialsMatchers.withId(userCredentialId)
-            );
+                                    userCredentialId
+        );
 
-            // This is a paddlin'
-            if(user == null) {
-                throw new MigrateException("Could not load user credentials for"
-                                           + " selected AHP instance."
-                );
-            }
+        // This is a paddlin'
+        if(user == null) {
+            throw new MigrateException("Could not load user credentials for"
+                                       + " selected AHP instance."
+            );
+        }
 
-            // Keystore path
-            String keystorePath = null;
-
-            // Handle keystore if we need to
-            if(Util.fixEmptyAndTrim(keystoreCredentialId) != null) {
-                FileCredentials keystore =
-                    CredentialsMatchers.firstOrNull(
-                        CredentialsProvider.lookupCredentials(
-                                    FileCredentials.class,
-                                    (Item) null,
-                                    ACL.SYSTEM,
-                                    Collections.<DomainRequirement>emptyList()
-                        ),
-                        CredentialsMatchers.withId(userCredentialId)
-                );
-
-                // This is a paddlin'
-                if(keystore == null) {
-                    throw new MigrateException("Could not load keystore for " +
-                                               "selected AHP instance."
-                    );
-                }
-
-                // Set up a temporary key file
-                tempKeyfile = File.createTempFile("a2j", ".tmp");
-
-                // Copy it
-                Files.copy(keystore.getContent(),
-                           tempKeyfile.getCanonicalFile().toPath(),
-                           StandardCopyOption.REPLACE_EXISTING
-                );
-
-                keystorePath = tempKeyfile.getCanonicalPath();
-            }
+        // Keystore path.  This is written out once and shared by every
+        // connection until the credential changes.
+        String keystorePath = null;
 
-            // Try to construct
-            // AM-33: support passwords other than the default for
-            // keystore.
-            return new Migration(hostname, Integer.parseInt(port),
-                                 user.getUsername(),
-                                 user.getPassword().getPlainText(),
-                                 keystorePath, "changeit"
-            );
-        } catch(IOException e) {
-            throw new MigrateException("IO Exception while connecting to AHP",
-                                       e
-            );
-        } finally {
-            // Delete temp file.
-            if((tempKeyfile != null) && (!tempKeyfile.delete())) {
-                try {
-                    LOG.log(Level.WARNING, "Could not delete temp file: {}",
-                            tempKeyfile.getCanonicalPath()
-                    );
-                } catch(IOException e) {
-                    LOG.log(Level.SEVERE, "Could not delete temp file OR " +
-                                          "determine its path name!", e
-                    );
-                }
-            }
+        if(keystoreCredentialId != null) {
+            keystorePath = KeystoreCache.getPath(keystoreCredentialId);
         }
+
+        // Try to construct
+        // AM-33: support passwords other than the default for
+        // keystore.
+        return new Migration(hostname, Integer.parseInt(port),
+                             user.getUsername(),
+                             user.getPassword().getPlainText(),
+                             keystorePath, "changeit"
+        );
     }
 
     /*****************************************************************
@@ -283,6 +218,7 @@ public class AhpInstance extends AbstractDescribableImpl<AhpInstance>
         sb.append("hostname='").append(hostname).append("', port='")
           .append(port).append("', userCredentialId='")
           .append(userCredentialId).append("', keystoreCredentialId='")
+          .append(keystoreCredentialId == null ? "" : keystoreCredentialId)
           .append("'}");
 
         return sb.toString();
@@ -454,11 +390,8 @@ public class AhpInstance extends AbstractDescribableImpl<AhpInstance>
         {
             List<StandardUsernamePasswordCredentials> creds;
 
-            creds = CredentialsProvider.lookupCredentials(
-                                    StandardUsernamePasswordCredentials.class,
-                                    (Item) null,
-                                    ACL.SYSTEM,
-                                    Collections.<DomainRequirement>emptyList()
+            creds = CredentialCache.all(
+                                    StandardUsernamePasswordCredentials.class
             );
 
             return new StandardUsernameListBoxModel().withEmptySelection()
@@ -474,12 +407,7 @@ public class AhpInstance extends AbstractDescribableImpl<AhpInstance>
         {
             List<FileCredentials> creds;
 
-            creds = CredentialsProvider.lookupCredentials(
-                                    FileCredentials.class,
-                                    (Item) null,
-                                    ACL.SYSTEM,
-                                    Collections.<DomainRequirement>emptyList()
-            );
+            creds = CredentialCache.all(FileCredentials.class);
 
             return new FileCredentialsListBoxModel().withEmptySelection()
                                                     .withAll(creds);
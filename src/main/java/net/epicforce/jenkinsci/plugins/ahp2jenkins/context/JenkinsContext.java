@@ -12,7 +12,6 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.context;
  * @author sconley (sconley@epicforce.net)
  */
 
-import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -20,12 +19,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.A2jBatch;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.BeanshellTranslator;
 import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.Code;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials.CredentialBatch;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyCycleException;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyGraph;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyLexer;
 import net.epicforce.migrate.ahp.context.AbstractContext;
 import net.epicforce.migrate.ahp.exception.MigrateException;
 
@@ -33,25 +36,8 @@ import com.urbancode.anthill3.domain.persistent.PersistenceException;
 import com.urbancode.anthill3.domain.project.envprops.ProjectEnvironmentProperty;
 import com.urbancode.anthill3.domain.property.IProperty;
 import com.urbancode.anthill3.domain.property.Property;
-import com.urbancode.anthill3.domain.servergroup.ServerGroup;
-import com.urbancode.anthill3.domain.singleton.serversettings.ServerSettings;
-import com.urbancode.anthill3.domain.singleton.serversettings.ServerSettingsFactory;
 import com.urbancode.anthill3.domain.workflow.Workflow;
 
-import com.cloudbees.plugins.credentials.CredentialsProvider;
-import com.cloudbees.plugins.credentials.CredentialsScope;
-import com.cloudbees.plugins.credentials.CredentialsStore;
-import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
-import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
-import com.cloudbees.plugins.credentials.domains.Domain;
-import com.cloudbees.plugins.credentials.domains.DomainRequirement;
-import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
-
-import hudson.model.Item;
-import hudson.security.ACL;
-
-import jenkins.model.Jenkins;
-
 
 public class JenkinsContext extends AbstractContext
 {
@@ -65,23 +51,32 @@ public class JenkinsContext extends AbstractContext
     // What's our Jenkins name?
     protected String    jenkinsJobName = null;
 
+    // Which AHP server we're migrating from (host:port), and whether
+    // the job we found for the workflow was already up to date.
+    protected String    source = null;
+    protected long      ahpWorkflowId = -1L;
+    protected boolean   upToDate = false;
+
     // Our pipeline code
     protected Code      pipeline = new Code();
 
-    // Cache known properties
+    // How many a2jAll batches we've handed out, for naming them
+    protected int       a2jBatches = 0;
+
+    // Turns what beanshell it can into Groovy, and remembers what it
+    // could and couldn't do
+    protected BeanshellTranslator   beanshell = new BeanshellTranslator();
+
+    // Cache known properties.  System properties are shared with
+    // everyone migrating from the same server, and project properties
+    // with the rest of the batch; don't change them.
     protected Map<String, IProperty>        systemProperties =
-                                            new HashMap<String, IProperty>();
+                                            Collections.emptyMap();
     protected Map<String, IProperty>        projectProperties =
-                                            new HashMap<String, IProperty>();
-    protected Map<String, Map<String, IProperty>>
-                                            projectEnvProperties =
-                                new HashMap<String, Map<String, IProperty>>();
+                                            Collections.emptyMap();
     protected Map<String, IProperty>        workflowProperties =
                                             new HashMap<String, IProperty>();
 
-    // Keep the server settings, why not!
-    ServerSettings                          serverSettings;
-
     // Make a map of known property name to property information,
     // and a map of unknown propertie.
     protected Map<String, IProperty>        neededProps =
@@ -91,6 +86,20 @@ public class JenkinsContext extends AbstractContext
     protected Set<String>                   unknownProps =
                                             new HashSet<String>();
 
+    // Which of those refer to which
+    protected PropertyGraph                 propertyGraph =
+                                            new PropertyGraph();
+
+    // Where credential writes go, if we're part of a batch
+    protected CredentialBatch               credentialBatch = null;
+
+    // Project properties shared with the rest of the batch, if we're
+    // part of one
+    protected ProjectCache                  projectCache = null;
+
+    // The Jenkins job waiting to be written, once the AHP side is done
+    protected JobWrite                      jobWrite = null;
+
     /*****************************************************************
      * ACCESSORS
      ****************************************************************/
@@ -115,6 +124,62 @@ public class JenkinsContext extends AbstractContext
         return unknownProps;
     }
 
+    /**
+     * Work out what order the properties we need should be resolved
+     * in at build time.
+     *
+     * @return property names, each after everything it refers to
+     * @throws PropertyCycleException if properties refer to each other
+     *         in a loop, since those can never be resolved
+     */
+    public List<String> getPropertyOrder()
+           throws PropertyCycleException
+    {
+        return propertyGraph.order();
+    }
+
+    /**
+     * Send credential writes to a batch instead of the store.
+     *
+     * @param batch     The batch, or null to write straight away
+     */
+    public void setCredentialBatch(CredentialBatch batch)
+    {
+        credentialBatch = batch;
+    }
+
+    /**
+     * Share project properties with the rest of a batch.
+     *
+     * @param cache     The batch's cache, or null to load our own
+     */
+    public void setProjectCache(ProjectCache cache)
+    {
+        projectCache = cache;
+    }
+
+    /**
+     * @param jobWrite  The Jenkins job to write once we're off AHP
+     */
+    public void setJobWrite(JobWrite jobWrite)
+    {
+        this.jobWrite = jobWrite;
+    }
+
+    /**
+     * Take the pending job write.  We hand it over and forget it, so
+     * the pipeline and parameters aren't kept around with the context.
+     *
+     * @return the job write, or null if there isn't one
+     */
+    public JobWrite takeJobWrite()
+    {
+        JobWrite ret = jobWrite;
+
+        jobWrite = null;
+        return ret;
+    }
+
     /**
      * @return Jenkins job name
      */
@@ -131,6 +196,55 @@ public class JenkinsContext extends AbstractContext
         jenkinsJobName = name;
     }
 
+    /**
+     * @return the AHP server we migrate from, as host:port
+     */
+    public String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @param source    the AHP server we migrate from, as host:port
+     */
+    public void setSource(String source)
+    {
+        this.source = source;
+    }
+
+    /**
+     * @return the AHP workflow ID we are migrating, or -1
+     */
+    public long getAhpWorkflowId()
+    {
+        return ahpWorkflowId;
+    }
+
+    /**
+     * @param ahpWorkflowId the AHP workflow ID we are migrating
+     */
+    public void setAhpWorkflowId(long ahpWorkflowId)
+    {
+        this.ahpWorkflowId = ahpWorkflowId;
+    }
+
+    /**
+     * @return true if the workflow hadn't changed since its job was
+     *         generated, so nothing was written
+     */
+    public boolean isUpToDate()
+    {
+        return upToDate;
+    }
+
+    /**
+     * @param upToDate  true if the existing job was left alone
+     */
+    public void setUpToDate(boolean upToDate)
+    {
+        this.upToDate = upToDate;
+    }
+
     /**
      * @return the pipeline code generated so far
      *
@@ -168,39 +282,24 @@ public class JenkinsContext extends AbstractContext
         super.setWorkflow(wf);
 
         try {
-            // Load system properties
-            serverSettings = ServerSettingsFactory.getInstance().restore();
-
-            for(IProperty prop : serverSettings.getPropertyList()) {
-                systemProperties.put(prop.getName(), prop);
-            }
-
-            // Load project properties
-            for(IProperty prop : wf.getProject().getPropertyList()) {
-                projectProperties.put(prop.getName(), prop);
-            }
+            // Load system properties, if someone else hasn't already
+            systemProperties = SystemPropertyCache.forSource(source).get();
 
-            // Figure out environment properties.
-            for(ServerGroup sg : wf.getProject().getEnvironmentGroup()
-                                                .getServerGroupArray()) {
-                IProperty[] props = wf.getProject()
-                                      .getEnvironmentProperties(sg);
+            // Load project properties, sharing them with the rest of
+            // the batch if we're in one.
+            // AM-48: Environment properties aren't loaded; nothing can
+            //        use them until they can be picked per environment.
+            ProjectCache.ProjectProperties project =
+                (projectCache == null) ? ProjectCache.load(wf.getProject()) :
+                                         projectCache.get(wf.getProject());
 
-                Map<String, IProperty> subProps =
-                                            new HashMap<String, IProperty>();
-
-                for(IProperty prop : props) {
-                    subProps.put(prop.getName(), prop);
-                }
-
-                projectEnvProperties.put(sg.getName(), subProps);
-            }
+            projectProperties = project.getProperties();
 
             // Workflow properties
             for(IProperty prop : wf.getPropertyArray()) {
                 workflowProperties.put(prop.getName(), prop);
             }
-        } catch(PersistenceException e) {
+        } catch(PersistenceException | MigrateException e) {
             LOG.log(Level.WARNING, 
                     "Failed to load properties due to AHP exception.  " +
                     "This may cause properties to not load.",
@@ -251,6 +350,26 @@ public class JenkinsContext extends AbstractContext
         pipeline.add(code);
     }
 
+    /**
+     * Start a batch of values to resolve with one a2jAll call.  Each
+     * batch gets its own variable name within the pipeline, and simple
+     * beanshell is translated to Groovy.
+     *
+     * @return a new, empty batch
+     */
+    public A2jBatch newA2jBatch()
+    {
+        return new A2jBatch("a2j" + (++a2jBatches), beanshell);
+    }
+
+    /**
+     * @return what became of the workflow's beanshell
+     */
+    public BeanshellTranslator getBeanshellTranslator()
+    {
+        return beanshell;
+    }
+
     /*****************************************************************
      * PROPERTY HANDLING METHODS
      ****************************************************************/
@@ -266,6 +385,8 @@ public class JenkinsContext extends AbstractContext
     public void locateAndAddProperty(final String name)
            throws MigrateException
     {
+        propertyGraph.addNode(name);
+
         // Check if we've already got it
         if(neededProps.containsKey(name) || unknownProps.contains(name)) {
             return;
@@ -285,20 +406,20 @@ public class JenkinsContext extends AbstractContext
             neededProps.put(name, workflowProperties.get(name));
 
             // Check sub-properties
-            scanProperties(workflowProperties.get(name).getValue());
+            scanProperties(name, workflowProperties.get(name).getValue());
             return;
         }
 
         // AM-48: Project environment properties.  These will need
         // to have some sort of combination of environment name
         // so they can be selectable based on environment, kind of
-        // like agents.
+        // like agents.  They aren't loaded until then.
 
         if(projectProperties.containsKey(name)) {
             neededProps.put(name, projectProperties.get(name));
 
             // Check sub-properties
-            scanProperties(projectProperties.get(name).getValue());
+            scanProperties(name, projectProperties.get(name).getValue());
 
             return;
         }
@@ -307,7 +428,7 @@ public class JenkinsContext extends AbstractContext
             neededProps.put(name, systemProperties.get(name));
 
             // Check sub-properties
-            scanProperties(systemProperties.get(name).getValue());
+            scanProperties(name, systemProperties.get(name).getValue());
 
             return;
         }
@@ -320,55 +441,83 @@ public class JenkinsContext extends AbstractContext
      * Scan a string for properties and recursively add necessary
      * properties.  There's no need for a return.
      *
-     * @param toScan
+     * @param toScan    The string to scan; null is fine
+     * @throws MigrateException on a property string we can't read;
+     *         a PropertySyntaxException says where
      */
-    static final Pattern scanPattern =
-                                Pattern.compile("\\$\\{([^:]+):([^}]+)\\}");
-    static final Pattern bshPattern =
-        Pattern.compile("PropertyLookup\\.getValue\\(\"([^\"]+)\"\\)");
     public void scanProperties(final String toScan)
            throws MigrateException
     {
-        Matcher matches = scanPattern.matcher(toScan);
-
-        // Find the matches, and work on each one.
-        while(matches.find()) {
-            switch(matches.group(1)) { // our property type
-                case "property":
-                case "property?":
-                case "p":
-                case "p?":
+        scanProperties(null, toScan);
+    }
+
+    /**
+     * Scan a string for properties, noting them as dependencies of the
+     * property the string came from.
+     *
+     * @param owner     The property whose value this is, or null if it
+     *                  comes straight from a step
+     * @param toScan    The string to scan; null is fine
+     * @throws MigrateException as scanProperties(String)
+     */
+    private void scanProperties(final String owner, final String toScan)
+            throws MigrateException
+    {
+        PropertyLexer lex = new PropertyLexer(toScan);
+
+        // Find the references, and work on each one.
+        while(lex.nextReference()) {
+            switch(lex.getKind()) {
+                case PROPERTY:
                     // AM-49: Handle agent properties smarty, maybe use
                     // a combined property value to emulate how it works in
                     // AHP.
-                case "agent":
-                case "agent?":
-                case "a":
-                case "a?":
-                    // Add the property name if we don't have it anymore.
-                    locateAndAddProperty(matches.group(2));
+                case AGENT:
+                    String name = lex.getBody();
+
+                    // A name built from other properties can't be
+                    // looked up until build time, but what it's built
+                    // from can.
+                    if(PropertyLexer.hasReferences(name)) {
+                        scanProperties(owner, name);
+                    } else {
+                        // Add the property name if we don't have it
+                        // anymore.
+                        addDependency(owner, name);
+                    }
+
                     break;
-                case "bsh":
+                case BSH:
                     // Process beanshell properties, make sure they get
                     // added too.
-                    Matcher bshMatcher = bshPattern.matcher(matches.group(2));
-
-                    // Check them all
-                    while(bshMatcher.find()) {
-                        locateAndAddProperty(bshMatcher.group(1));
+                    for(String lookup : PropertyLexer.lookups(lex.getBody())) {
+                        addDependency(owner, lookup);
                     }
 
                     break;
                 default:
-                    // Error
-                    throw new MigrateException(
-                        "Unknown property type: " + matches.group(1) +
-                        " in property string: " + toScan
-                    );
+                    break;
             }
         }
     }
 
+    /**
+     * Note a property reference and go find the property.
+     *
+     * @param owner     The property doing the referring, or null
+     * @param name      The property referred to
+     * @throws MigrateException as locateAndAddProperty
+     */
+    private void addDependency(final String owner, final String name)
+            throws MigrateException
+    {
+        if(owner != null) {
+            propertyGraph.addEdge(owner, name);
+        }
+
+        locateAndAddProperty(name);
+    }
+
     /*****************************************************************
      * JENKINS ASSISTIVE METHODS
      ****************************************************************/
@@ -392,59 +541,12 @@ public class JenkinsContext extends AbstractContext
                                      String id)
            throws MigrateException
     {
-        try {
-            // We have to search the credentials store to see if we have
-            // this ID in the store yet.  There may be a better way to do
-            // this, but my investigation shows this is the only way.
-            List<StandardUsernamePasswordCredentials> credentials =
-                CredentialsProvider.lookupCredentials(
-                    StandardUsernamePasswordCredentials.class,
-                    (Item)null,
-                    ACL.SYSTEM,
-                    Collections.<DomainRequirement>emptyList()
-            );
-
-            // I'm not honestly sure what this does -- I need to
-            // look at it closer later.  This is some voodoo I found
-            // on the net that seems to work :)
-            CredentialsStore store = CredentialsProvider.lookupStores(
-                                        Jenkins.getInstance()
-            ).iterator().next();
-
-            // Whether we update or add, we need a credential object.
-            UsernamePasswordCredentialsImpl cred = new
-                UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL,
-                                                id, "Imported from AHP",
-                                                username, password
-            );
-
-            // Iterate to see if we need to udpate.  Not a fan of how
-            // this works.  AM-50: Is there a more direct way to do this?
-            for(StandardUsernamePasswordCredentials c : credentials) {
-                if(c.getId().equals(id)) {
-                    // In this case we'll do an update.
-                    if(!store.updateCredentials(Domain.global(), c, cred)) {
-                        throw new MigrateException(
-                            "Could not update Jenkins credential with ID: "
-                            + id
-                        );
-                    }
-
-                    return;
-                }
-            }
-
-            // If we survived to here, then we don't have the credential
-            // and we need to add it.
-            if(!store.addCredentials(Domain.global(), cred)) {
-                throw new MigrateException(
-                    "Could not create new credentials in Jenkins."
-                );
-            }
-        } catch(IOException e) {
-            throw new MigrateException(
-                "Got IO Exception while storing Jenkins credentials", e
-            );
+        // Part of a batch?  Then the batch writes it, once, when the
+        // job is finished.
+        if(credentialBatch != null) {
+            credentialBatch.add(username, password, id);
+        } else {
+            CredentialBatch.writeNow(username, password, id);
         }
     }
 }
@@ -10,7 +10,6 @@ package net.epicforce.jenkinsci.plugins.ahp2jenkins.context;
  * @author sconley (sconley@epicforce.net)
  */
 
-import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -21,18 +20,11 @@ import net.epicforce.migrate.ahp.context.AbstractContext;
 import net.epicforce.migrate.ahp.exception.MigrateException;
 import net.epicforce.migrate.ahp.migrate.AbstractWorkflow;
 
-import hudson.model.Failure;
 import hudson.model.ParameterDefinition;
-import hudson.model.ParametersDefinitionProperty;
 import hudson.model.PasswordParameterDefinition;
 import hudson.model.StringParameterDefinition;
 import hudson.model.TextParameterDefinition;
 
-import jenkins.model.Jenkins;
-
-import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
-import org.jenkinsci.plugins.workflow.job.WorkflowJob;
-
 import com.urbancode.anthill3.domain.project.envprops.ProjectEnvironmentProperty;
 import com.urbancode.anthill3.domain.project.prop.ProjectProperty;
 import com.urbancode.anthill3.domain.property.IProperty;
@@ -44,6 +36,7 @@ public class JenkinsWorkflow extends AbstractWorkflow
 {
     private static final Logger LOG =
                             Logger.getLogger(JenkinsWorkflow.class.getName());
+
     /**
      * preRun
      *
@@ -63,7 +56,9 @@ public class JenkinsWorkflow extends AbstractWorkflow
     /**
      * postRun
      *
-     * Close our node(...) step and then create our Jenkins job.
+     * Close our node(...) step and work out what our Jenkins job
+     * should look like.  The job itself is written by the engine's
+     * write stage; see JobWrite.
      *
      * AM-35: add Jenkins path support
      */
@@ -74,77 +69,6 @@ public class JenkinsWorkflow extends AbstractWorkflow
 
         ctx.addCode("}", 0, -1);
 
-        // Try to create a Jenkins job
-        String jobName =
-            "A2J-" + ctx.getWorkflow().getProject().getName() +
-            "-" + ctx.getWorkflow().getName();
-
-        // Convert space to dash
-        jobName = jobName.replace(" ", "-");
-
-        // Our Jenkins instance
-        Jenkins jenkins = Jenkins.getActiveInstance();
-
-        // A workflow job
-        WorkflowJob job;
-
-        // Keep going til we find a valid one.
-        for(int i = 0; true; i++) {
-            String testName;
-
-            // Construct a name, taking into account possible
-            // duplicate jobs.
-            if(i == 0) {
-                testName = jobName;
-            } else {
-                testName = jobName + "-" + String.valueOf(i);
-            }
-
-            try {
-                // This throws exception on failure.
-                // I think any job/workflow you can make in AHP is
-                // probably valid in Jenkins too.
-                jenkins.checkGoodName(testName);
-
-                // Try to create our job
-                job = jenkins.createProject(WorkflowJob.class, testName);
-
-                // push the final name back into our job name
-                jobName = testName;
-                break;
-            } catch(Failure e) {
-                // This is never going to get better
-                LOG.log(Level.WARNING, "We'll never be able to migrate name ",
-                        e
-                );
-
-                throw new MigrateException(
-                    "Jenkins can't handle the project/workflow name: "
-                    + testName, e
-                );
-            } catch(IllegalArgumentException e) {
-                // this means we already have a job with this name
-                // Ignore it!
-            } catch(IOException e) {
-                // This is a pretty low level error
-                LOG.log(Level.SEVERE, "IO Error while running ahp2jenkins", e);
-                throw new MigrateException("IO Error while migrating", e);
-            }
-        }
-
-        // Update context with the new job name
-        ctx.setJenkinsJobName(jobName);
-
-        // Set our pipeline script
-        // The boolean is for sandbox or no -- we'll try sandbox true
-        // which causes less problems for now.
-        CpsFlowDefinition fd = new CpsFlowDefinition(ctx.getPipelineCode(),
-                                                     true
-        );
-
-        // Set the project definition
-        job.setDefinition(fd);
-
         // Add our properties
         List<ParameterDefinition> parameterDefs = new LinkedList<ParameterDefinition>();
 
@@ -165,18 +89,24 @@ public class JenkinsWorkflow extends AbstractWorkflow
             );
         }
 
-        try {
-            // add to our job
-            job.addProperty(
-                new ParametersDefinitionProperty(parameterDefs)
-            );
+        // Properties that refer to each other in a loop can never be
+        // resolved, so there's no point making a job that uses them.
+        // Otherwise, this is the order the a2j step resolves them in.
+        List<String> propertyOrder = ctx.getPropertyOrder();
 
-            // Save it
-            job.save();
-        } catch(IOException e) {
-            LOG.log(Level.SEVERE, "IO Error while saving new job", e);
-            throw new MigrateException("IO Error while migrating", e);
-        }
+        // Everything Jenkins-side happens later, off the AHP thread
+        String pipelineCode = ctx.getPipelineCode();
+
+        ctx.setJobWrite(new JobWrite(
+            "A2J-" + ctx.getWorkflow().getProject().getName() +
+            "-" + ctx.getWorkflow().getName(),
+            pipelineCode, parameterDefs, propertyOrder,
+            MigratedWorkflowProperty.fingerprint(ctx.getSource(),
+                                                 ctx.getAhpWorkflowId(),
+                                                 pipelineCode,
+                                                 parameterDefs
+            )
+        ));
     }
 
     /**
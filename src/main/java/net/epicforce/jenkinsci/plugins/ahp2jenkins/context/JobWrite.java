@@ -0,0 +1,204 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.context;
+
+/*
+ * JobWrite.java
+ *
+ * The Jenkins half of a migration: everything we worked out from AHP,
+ * waiting to be written out as a job.  JenkinsWorkflow.postRun makes
+ * one of these instead of touching Jenkins itself, so the engine can
+ * run job writes on their own threads and let the AHP threads get on
+ * with the next workflow.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import hudson.model.Failure;
+import hudson.model.ParameterDefinition;
+import hudson.model.ParametersDefinitionProperty;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class JobWrite
+{
+    private static final Logger LOG =
+                            Logger.getLogger(JobWrite.class.getName());
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Held while we look up, create or update a job
+    private static final Object JOB_LOCK = new Object();
+
+    // What to write
+    private final String                    baseName;
+    private final String                    pipelineCode;
+    private final List<ParameterDefinition> parameterDefs;
+    private final List<String>              propertyOrder;
+    private final String                    fingerprint;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param baseName          Job name to use if we make a new job
+     * @param pipelineCode      Pipeline script
+     * @param parameterDefs     Job parameters
+     * @param propertyOrder     Order to resolve properties in
+     * @param fingerprint       Fingerprint of the above
+     */
+    public JobWrite(String baseName, String pipelineCode,
+                    List<ParameterDefinition> parameterDefs,
+                    List<String> propertyOrder, String fingerprint)
+    {
+        this.baseName = baseName;
+        this.pipelineCode = pipelineCode;
+        this.parameterDefs = parameterDefs;
+        this.propertyOrder = propertyOrder;
+        this.fingerprint = fingerprint;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Create our Jenkins job, or update the one we made for this
+     * workflow last time.  If nothing changed since then, the job is
+     * left alone.
+     *
+     * @param ctx       The context we came from; gets the job name
+     * @throws MigrateException on any failure
+     */
+    public void write(JenkinsContext ctx)
+           throws MigrateException
+    {
+        // One thread at a time, so two runs of the same workflow can't
+        // both decide to make a job for it.
+        synchronized(JOB_LOCK) {
+            WorkflowJob job = MigratedWorkflowProperty.findJob(
+                                    ctx.getSource(), ctx.getAhpWorkflowId()
+            );
+
+            if(job != null) {
+                ctx.setJenkinsJobName(job.getFullName());
+
+                MigratedWorkflowProperty prop =
+                            job.getProperty(MigratedWorkflowProperty.class);
+
+                // Nothing changed?  Then there's nothing to write.
+                if(fingerprint.equals(prop.getFingerprint())) {
+                    ctx.setUpToDate(true);
+                    return;
+                }
+            } else {
+                job = createJob(ctx);
+            }
+
+            // Set our pipeline script
+            // The boolean is for sandbox or no -- we'll try sandbox true
+            // which causes less problems for now.
+            job.setDefinition(new CpsFlowDefinition(pipelineCode, true));
+
+            try {
+                // add to our job, replacing what was there
+                job.removeProperty(ParametersDefinitionProperty.class);
+                job.addProperty(
+                    new ParametersDefinitionProperty(parameterDefs)
+                );
+
+                job.removeProperty(MigratedWorkflowProperty.class);
+                job.addProperty(
+                    new MigratedWorkflowProperty(ctx.getSource(),
+                                                 ctx.getAhpWorkflowId(),
+                                                 fingerprint, propertyOrder
+                    )
+                );
+
+                // Save it
+                job.save();
+            } catch(IOException e) {
+                LOG.log(Level.SEVERE, "IO Error while saving new job", e);
+                throw new MigrateException("IO Error while migrating", e);
+            }
+
+            MigratedWorkflowProperty.register(job);
+        }
+    }
+
+    /**
+     * Make a new Jenkins job for a workflow, finding a name that isn't
+     * taken.
+     *
+     * @param ctx       Our migration context
+     * @return the new, empty job
+     * @throws MigrateException if Jenkins won't take the name
+     */
+    private WorkflowJob createJob(JenkinsContext ctx)
+            throws MigrateException
+    {
+        // Convert space to dash
+        String jobName = baseName.replace(" ", "-");
+
+        // Our Jenkins instance
+        Jenkins jenkins = Jenkins.getActiveInstance();
+
+        // Keep going til we find a valid one.
+        for(int i = 0; true; i++) {
+            String testName;
+
+            // Construct a name, taking into account possible
+            // duplicate jobs.
+            if(i == 0) {
+                testName = jobName;
+            } else {
+                testName = jobName + "-" + String.valueOf(i);
+            }
+
+            try {
+                // This throws exception on failure.
+                // I think any job/workflow you can make in AHP is
+                // probably valid in Jenkins too.
+                jenkins.checkGoodName(testName);
+
+                // Try to create our job
+                WorkflowJob job = jenkins.createProject(WorkflowJob.class,
+                                                        testName
+                );
+
+                // Update context with the new job name
+                ctx.setJenkinsJobName(testName);
+                return job;
+            } catch(Failure e) {
+                // This is never going to get better
+                LOG.log(Level.WARNING, "We'll never be able to migrate name ",
+                        e
+                );
+
+                throw new MigrateException(
+                    "Jenkins can't handle the project/workflow name: "
+                    + testName, e
+                );
+            } catch(IllegalArgumentException e) {
+                // this means we already have a job with this name
+                // Ignore it!
+            } catch(IOException e) {
+                // This is a pretty low level error
+                LOG.log(Level.SEVERE, "IO Error while running ahp2jenkins", e);
+                throw new MigrateException("IO Error while migrating", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.context;
+
+/*
+ * MigratedWorkflowProperty.java
+ *
+ * Stamped on every job we generate, so we know which AHP workflow it
+ * came from and what it looked like when we made it.  On a re-sync,
+ * a workflow that fingerprints the same as its job is skipped, and
+ * one that changed updates its job instead of making a new one.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.JobPropertyDescriptor;
+import hudson.model.ParameterDefinition;
+import hudson.model.PasswordParameterDefinition;
+import hudson.model.StringParameterDefinition;
+
+import jenkins.model.Jenkins;
+
+import net.sf.json.JSONObject;
+
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+
+import org.kohsuke.stapler.StaplerRequest;
+
+
+public class MigratedWorkflowProperty extends JobProperty<WorkflowJob>
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Which AHP server and workflow this job came from
+    private final String    source;
+    private final long      workflowId;
+
+    // SHA-256 of what we generated, hex encoded
+    private final String    fingerprint;
+
+    // The order the a2j step should resolve properties in, everything
+    // before what refers to it.  Null on jobs made before we kept it.
+    private final List<String> propertyOrder;
+
+    // Source key -> full job name.  Built from the jobs on first use,
+    // then kept up to date as we make jobs.
+    private static volatile Map<String, String> index = null;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param source        AHP server this came from (host:port)
+     * @param workflowId    AHP workflow ID
+     * @param fingerprint   Fingerprint of the generated job
+     * @param propertyOrder Property resolution order
+     */
+    public MigratedWorkflowProperty(String source, long workflowId,
+                                    String fingerprint,
+                                    List<String> propertyOrder)
+    {
+        this.source = source;
+        this.workflowId = workflowId;
+        this.fingerprint = fingerprint;
+        this.propertyOrder = (propertyOrder == null) ? null :
+                                    new ArrayList<String>(propertyOrder);
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return AHP server this came from
+     */
+    public String getSource()
+    {
+        return source;
+    }
+
+    /**
+     * @return AHP workflow ID
+     */
+    public long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return fingerprint of the generated job
+     */
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * @return property resolution order, or null if we don't have one
+     */
+    public List<String> getPropertyOrder()
+    {
+        return (propertyOrder == null) ? null :
+                            Collections.unmodifiableList(propertyOrder);
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Keep this property as it is when the job's configuration is
+     * saved.  There's nothing to configure, but Jenkins rebuilds a
+     * job's properties from the form, and without this ours would be
+     * dropped; the next re-sync wouldn't find the job and would make
+     * another.
+     *
+     * @param req           Stapler request
+     * @param form          This property's part of the form
+     * @return this
+     */
+    @Override
+    public JobProperty<?> reconfigure(StaplerRequest req, JSONObject form)
+    {
+        return this;
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Find the job we generated for a workflow before, if there is one.
+     *
+     * @param source        AHP server (host:port)
+     * @param workflowId    AHP workflow ID
+     * @return the job, or null
+     */
+    public static WorkflowJob findJob(String source, long workflowId)
+    {
+        String key = key(source, workflowId);
+        String name = getIndex().get(key);
+
+        if(name == null) {
+            return null;
+        }
+
+        // It may have been deleted or renamed since
+        WorkflowJob job = stamped(name, key);
+
+        if(job != null) {
+            return job;
+        }
+
+        // Stale.  Start over; the job may have moved.
+        index = null;
+        name = getIndex().get(key);
+
+        if(name == null) {
+            return null;
+        }
+
+        return stamped(name, key);
+    }
+
+    /**
+     * Note that a job was made for a workflow.
+     *
+     * @param job           The job, with this property already added
+     */
+    public static void register(WorkflowJob job)
+    {
+        MigratedWorkflowProperty prop =
+                            job.getProperty(MigratedWorkflowProperty.class);
+
+        if(prop != null) {
+            getIndex().put(key(prop.source, prop.workflowId),
+                           job.getFullName()
+            );
+        }
+    }
+
+    /**
+     * Fingerprint a generated job.
+     *
+     * The pipeline script is built from the workflow, its jobs and
+     * their step configs, and the parameters carry every property
+     * value it needed, so between them they cover everything that
+     * came out of AHP.
+     *
+     * @param source        AHP server (host:port)
+     * @param workflowId    AHP workflow ID
+     * @param pipeline      Generated pipeline script
+     * @param params        Generated job parameters
+     * @return hex SHA-256
+     */
+    public static String fingerprint(String source, long workflowId,
+                                     String pipeline,
+                                     List<ParameterDefinition> params)
+    {
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            // Every JVM has to have SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        update(md, source);
+        update(md, String.valueOf(workflowId));
+        update(md, pipeline);
+
+        for(ParameterDefinition p : params) {
+            update(md, p.getClass().getName());
+            update(md, p.getName());
+            update(md, p.getDescription());
+
+            if(p instanceof StringParameterDefinition) {
+                update(md,
+                       ((StringParameterDefinition)p).getDefaultValue()
+                );
+            } else if(p instanceof PasswordParameterDefinition) {
+                update(md,
+                       ((PasswordParameterDefinition)p).getDefaultValue()
+                );
+            }
+        }
+
+        StringBuilder sb = new StringBuilder(64);
+
+        for(byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Add a string to a digest, length first so adjacent fields can't
+     * run together.
+     *
+     * @param md        The digest
+     * @param s         String, may be null
+     */
+    private static void update(MessageDigest md, String s)
+    {
+        if(s == null) {
+            md.update((byte)0);
+            return;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+
+        md.update((byte)1);
+        md.update(String.valueOf(bytes.length).getBytes(StandardCharsets.UTF_8));
+        md.update((byte)':');
+        md.update(bytes);
+    }
+
+    /**
+     * Look up a job by name, if it's still the one we made for a
+     * workflow.
+     *
+     * @param name          Full job name
+     * @param key           Index key of the workflow
+     * @return the job, or null if it's gone or isn't stamped with key
+     */
+    private static WorkflowJob stamped(String name, String key)
+    {
+        WorkflowJob job = Jenkins.getActiveInstance()
+                                 .getItemByFullName(name, WorkflowJob.class);
+
+        if(job == null) {
+            return null;
+        }
+
+        MigratedWorkflowProperty prop =
+                            job.getProperty(MigratedWorkflowProperty.class);
+
+        if((prop == null) ||
+           (!key.equals(key(prop.source, prop.workflowId)))) {
+            return null;
+        }
+
+        return job;
+    }
+
+    /**
+     * @param source        AHP server
+     * @param workflowId    AHP workflow ID
+     * @return index key
+     */
+    private static String key(String source, long workflowId)
+    {
+        return source + "#" + workflowId;
+    }
+
+    /**
+     * Get the index, building it from the jobs if we need to.
+     *
+     * @return source key to job name map
+     */
+    private static Map<String, String> getIndex()
+    {
+        Map<String, String> ret = index;
+
+        if(ret != null) {
+            return ret;
+        }
+
+        ret = new ConcurrentHashMap<String, String>();
+
+        for(WorkflowJob job : Jenkins.getActiveInstance()
+                                     .getAllItems(WorkflowJob.class)) {
+            MigratedWorkflowProperty prop =
+                            job.getProperty(MigratedWorkflowProperty.class);
+
+            if(prop != null) {
+                ret.put(key(prop.source, prop.workflowId), job.getFullName());
+            }
+        }
+
+        index = ret;
+        return ret;
+    }
+
+    /**
+     * Descriptor.  This property isn't something users set, so it has
+     * no config page, but it has to be applicable to pipeline jobs or
+     * saving a job's configuration would throw it away.
+     */
+    @Extension
+    public static final class DescriptorImpl extends JobPropertyDescriptor
+    {
+        /**
+         * @return display name
+         */
+        @Override
+        public String getDisplayName()
+        {
+            return "Migrated from AnthillPro";
+        }
+
+        /**
+         * @param jobType       Job type
+         * @return true for pipeline jobs, which are what we make
+         */
+        @Override
+        public boolean isApplicable(Class<? extends Job> jobType)
+        {
+            return WorkflowJob.class.isAssignableFrom(jobType);
+        }
+    }
+}
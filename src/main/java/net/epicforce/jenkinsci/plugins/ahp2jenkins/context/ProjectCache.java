@@ -0,0 +1,160 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.context;
+
+/*
+ * ProjectCache.java
+ *
+ * Project properties, loaded once per project and shared by every
+ * workflow of that project in a batch.
+ * Migrating a project with 40 workflows used to pull the same project
+ * data over the wire 40 times.
+ *
+ * Loading is single-flight: the first worker to ask for a project
+ * loads it, using its own AHP session, and anyone asking for the same
+ * project meanwhile waits for that result instead of fetching it too.
+ * A load that fails is forgotten, so the next worker tries again.
+ *
+ * Environment properties aren't loaded at all (AM-48): nothing can use
+ * them yet, and a project can have dozens of environments, each one a
+ * round trip.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+import com.urbancode.anthill3.domain.project.Project;
+import com.urbancode.anthill3.domain.property.IProperty;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class ProjectCache
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Project ID -> its properties, loaded or loading
+    private final Map<Long, FutureTask<ProjectProperties>> projects =
+                new ConcurrentHashMap<Long, FutureTask<ProjectProperties>>();
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Get a project's properties, loading them if nobody has yet.
+     *
+     * @param project       The AHP project
+     * @return its properties
+     * @throws PersistenceException if AHP couldn't load them
+     * @throws MigrateException if we were interrupted waiting for
+     *         someone else to load them
+     */
+    public ProjectProperties get(final Project project)
+           throws PersistenceException, MigrateException
+    {
+        Long id = project.getId();
+        FutureTask<ProjectProperties> task = projects.get(id);
+
+        if(task == null) {
+            FutureTask<ProjectProperties> mine =
+                new FutureTask<ProjectProperties>(
+                    new Callable<ProjectProperties>() {
+                        public ProjectProperties call()
+                               throws PersistenceException
+                        {
+                            return load(project);
+                        }
+                    }
+                );
+
+            task = projects.putIfAbsent(id, mine);
+
+            // We won; we load it, here on our own thread and session.
+            if(task == null) {
+                task = mine;
+                mine.run();
+            }
+        }
+
+        try {
+            return task.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MigrateException(
+                "Interrupted waiting for project properties", e
+            );
+        } catch(ExecutionException e) {
+            // Let the next one have a go
+            projects.remove(id, task);
+
+            if(e.getCause() instanceof PersistenceException) {
+                throw (PersistenceException)e.getCause();
+            }
+
+            if(e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+
+            throw new MigrateException(
+                "Failed to load project properties", e.getCause()
+            );
+        }
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Load a project's properties straight from AHP.
+     *
+     * @param project       The AHP project
+     * @return its properties
+     * @throws PersistenceException if AHP couldn't load them
+     */
+    public static ProjectProperties load(Project project)
+           throws PersistenceException
+    {
+        Map<String, IProperty> props = new HashMap<String, IProperty>();
+
+        for(IProperty prop : project.getPropertyList()) {
+            props.put(prop.getName(), prop);
+        }
+
+        return new ProjectProperties(Collections.unmodifiableMap(props));
+    }
+
+    /**
+     * What we keep per project.  Shared between threads; the maps
+     * handed out are read only.
+     */
+    public static class ProjectProperties
+    {
+        private final Map<String, IProperty>    properties;
+
+        /**
+         * @param properties        Project properties by name
+         */
+        ProjectProperties(Map<String, IProperty> properties)
+        {
+            this.properties = properties;
+        }
+
+        /**
+         * @return project properties by name
+         */
+        public Map<String, IProperty> getProperties()
+        {
+            return properties;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.context;
+
+/*
+ * SystemPropertyCache.java
+ *
+ * AHP system properties, loaded once per AHP server and shared by
+ * every context migrating from it.  They're global settings, the same
+ * for every workflow in a batch, so there's no sense asking the server
+ * for them on every workflow.
+ *
+ * Entries go stale after the TTL in the global configuration, and can
+ * be dropped by hand from the migrate page if someone changed them in
+ * AHP and doesn't want to wait.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.urbancode.anthill3.domain.persistent.PersistenceException;
+import com.urbancode.anthill3.domain.property.IProperty;
+import com.urbancode.anthill3.domain.singleton.serversettings.ServerSettings;
+import com.urbancode.anthill3.domain.singleton.serversettings.ServerSettingsFactory;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpGlobalConfiguration;
+
+
+public class SystemPropertyCache
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // One cache per AHP server (host:port)
+    private static final Map<String, SystemPropertyCache> caches =
+                    new ConcurrentHashMap<String, SystemPropertyCache>();
+
+    // Name -> property, read only.  Null until loaded.  Guarded by
+    // 'this' for writes.
+    private volatile Map<String, IProperty> properties = null;
+
+    // When we loaded them
+    private volatile long   loadedAt = 0;
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Get the cache for an AHP server, making it if needed.
+     *
+     * @param source    AHP server, as host:port
+     * @return its cache
+     */
+    public static SystemPropertyCache forSource(String source)
+    {
+        return caches.computeIfAbsent(String.valueOf(source),
+                                      s -> new SystemPropertyCache()
+        );
+    }
+
+    /**
+     * Drop what we have for an AHP server, so the next workflow
+     * reloads it.
+     *
+     * @param source    AHP server, as host:port
+     */
+    public static void invalidate(String source)
+    {
+        caches.remove(String.valueOf(source));
+    }
+
+    /**
+     * Drop everything.
+     */
+    public static void invalidateAll()
+    {
+        caches.clear();
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Get the system properties, loading them if we don't have them or
+     * they've gone stale.  Loading uses whatever AHP session is bound
+     * to the calling thread.
+     *
+     * @return read only map of name to property
+     * @throws PersistenceException if AHP couldn't load them
+     */
+    public Map<String, IProperty> get()
+           throws PersistenceException
+    {
+        Map<String, IProperty> ret = properties;
+
+        if((ret != null) && (!isStale())) {
+            return ret;
+        }
+
+        // One thread loads; the rest wait for it and use its result.
+        synchronized(this) {
+            ret = properties;
+
+            if((ret != null) && (!isStale())) {
+                return ret;
+            }
+
+            ServerSettings settings =
+                            ServerSettingsFactory.getInstance().restore();
+            Map<String, IProperty> loaded = new HashMap<String, IProperty>();
+
+            for(IProperty prop : settings.getPropertyList()) {
+                loaded.put(prop.getName(), prop);
+            }
+
+            ret = Collections.unmodifiableMap(loaded);
+            loadedAt = System.currentTimeMillis();
+            properties = ret;
+            return ret;
+        }
+    }
+
+    /**
+     * @return true if our properties are past the TTL
+     */
+    private boolean isStale()
+    {
+        AhpGlobalConfiguration config = AhpGlobalConfiguration.get();
+        long ttl = TimeUnit.MINUTES.toMillis(
+            (config == null) ?
+                AhpGlobalConfiguration.DEFAULT_SYSTEM_PROPERTY_TTL :
+                config.getSystemPropertyTtl()
+        );
+
+        return (System.currentTimeMillis() - loadedAt) >= ttl;
+    }
+}
@@ -0,0 +1,219 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials;
+
+/*
+ * CredentialBatch.java
+ *
+ * Every add or update on the credentials store rewrites credentials.xml,
+ * and a migration batch can import the same repository credentials
+ * hundreds of times over.  This collects the writes for a batch, keeps
+ * only the last one per ID, drops writes that wouldn't change anything,
+ * and puts the rest in the store with a single save.  The engine
+ * commits as each job finishes, so a finished job's credentials are
+ * never left waiting on the rest of the batch.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.BulkChange;
+
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.CredentialsStore;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class CredentialBatch
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Credential ID -> what to write.  Guarded by 'this'.
+    private Map<String, UsernamePasswordCredentialsImpl> pending =
+                new LinkedHashMap<String, UsernamePasswordCredentialsImpl>();
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Queue a credential to be added, or updated if the ID exists.
+     * A later call for the same ID replaces an earlier one.
+     *
+     * @param username          The user's name
+     * @param password          The password
+     * @param id                The credential ID to store.
+     */
+    public synchronized void add(String username, String password, String id)
+    {
+        // Same as what's there already?  Nothing to do.
+        if(isCurrent(CredentialCache.getSystem(
+                                    StandardUsernamePasswordCredentials.class,
+                                    id), username, password)) {
+            pending.remove(id);
+            return;
+        }
+
+        pending.put(id, newCredential(username, password, id));
+    }
+
+    /**
+     * Write everything queued to the credentials store, saving once.
+     * The batch is empty afterwards, so calling this again is harmless.
+     *
+     * @throws MigrateException if the store refused a write or the
+     *         save failed.  Some writes may be left unsaved.
+     */
+    public void commit()
+           throws MigrateException
+    {
+        Map<String, UsernamePasswordCredentialsImpl> writes;
+
+        synchronized(this) {
+            if(pending.isEmpty()) {
+                return;
+            }
+
+            writes = pending;
+            pending =
+                new LinkedHashMap<String, UsernamePasswordCredentialsImpl>();
+        }
+
+        SystemCredentialsProvider provider =
+                                        SystemCredentialsProvider.getInstance();
+        CredentialsStore store = provider.getStore();
+
+        // Hold the provider's save until we're done
+        BulkChange bc = new BulkChange(provider);
+        boolean saved = false;
+
+        try {
+            for(UsernamePasswordCredentialsImpl cred : writes.values()) {
+                write(store, cred);
+            }
+
+            bc.commit();
+            saved = true;
+        } catch(IOException e) {
+            throw new MigrateException(
+                "Got IO Exception while storing Jenkins credentials", e
+            );
+        } finally {
+            // No-op if we committed.  If not, the store may differ from
+            // what we cached, so drop that too.
+            if(!saved) {
+                bc.abort();
+                CredentialCache.invalidate();
+            }
+        }
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Add or update a single credential straight away.
+     *
+     * @param username          The user's name
+     * @param password          The password
+     * @param id                The credential ID to store.
+     * @throws MigrateException on any sort of failure
+     */
+    public static void writeNow(String username, String password, String id)
+           throws MigrateException
+    {
+        if(isCurrent(CredentialCache.getSystem(
+                                    StandardUsernamePasswordCredentials.class,
+                                    id), username, password)) {
+            return;
+        }
+
+        try {
+            write(SystemCredentialsProvider.getInstance().getStore(),
+                  newCredential(username, password, id)
+            );
+        } catch(IOException e) {
+            throw new MigrateException(
+                "Got IO Exception while storing Jenkins credentials", e
+            );
+        }
+    }
+
+    /**
+     * Make the credential object we store.
+     *
+     * @param username          The user's name
+     * @param password          The password
+     * @param id                The credential ID
+     * @return a credential
+     */
+    private static UsernamePasswordCredentialsImpl newCredential(
+                                                            String username,
+                                                            String password,
+                                                            String id)
+    {
+        return new UsernamePasswordCredentialsImpl(CredentialsScope.GLOBAL,
+                                                   id, "Imported from AHP",
+                                                   username, password
+        );
+    }
+
+    /**
+     * Check if a stored credential already has this username and
+     * password.
+     *
+     * @param existing      Stored credential, or null
+     * @param username      The user's name
+     * @param password      The password
+     * @return true if writing would change nothing
+     */
+    private static boolean isCurrent(
+                                StandardUsernamePasswordCredentials existing,
+                                String username, String password)
+    {
+        return (existing != null) &&
+               existing.getUsername().equals(username) &&
+               existing.getPassword().getPlainText().equals(password);
+    }
+
+    /**
+     * Add or update one credential in the store.
+     *
+     * @param store     The system store
+     * @param cred      What to write
+     * @throws MigrateException if the store says no
+     * @throws IOException if the store can't save
+     */
+    private static void write(CredentialsStore store,
+                              UsernamePasswordCredentialsImpl cred)
+            throws MigrateException, IOException
+    {
+        StandardUsernamePasswordCredentials existing =
+                                CredentialCache.getSystem(
+                                    StandardUsernamePasswordCredentials.class,
+                                    cred.getId()
+        );
+
+        if(existing != null) {
+            if(!store.updateCredentials(Domain.global(), existing, cred)) {
+                throw new MigrateException(
+                    "Could not update Jenkins credential with ID: "
+                    + cred.getId()
+                );
+            }
+        } else if(!store.addCredentials(Domain.global(), cred)) {
+            throw new MigrateException(
+                "Could not create new credentials in Jenkins."
+            );
+        }
+    }
+}
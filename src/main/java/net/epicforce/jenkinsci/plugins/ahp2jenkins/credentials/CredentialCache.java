@@ -0,0 +1,191 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials;
+
+/*
+ * CredentialCache.java
+ *
+ * CredentialsProvider.lookupCredentials hands back every credential
+ * Jenkins has, and finding one by ID means scanning the lot.  With a
+ * few thousand credentials that adds up when it happens for every
+ * workflow.  So we index the system credentials store by ID, once per
+ * credential type, and serve from that until it changes (see
+ * CredentialsListener).
+ *
+ * Only the system store is cached: it's where this plugin keeps
+ * everything it imports, and it's the only store that reliably tells
+ * us when it changes.  Other providers (external secret stores and
+ * the like) fire nothing, so a credential from one of those is looked
+ * up fresh every time; get() falls back to that when the ID isn't in
+ * the system store.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.model.Item;
+import hudson.security.ACL;
+
+import com.cloudbees.plugins.credentials.Credentials;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.IdCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+
+
+public class CredentialCache
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Credential type -> (ID -> credential), in lookup order
+    private static final Map<Class<?>, Map<String, ?>> indexes =
+                            new ConcurrentHashMap<Class<?>, Map<String, ?>>();
+
+    // Bumped on every invalidate, so an index built from a lookup that
+    // raced a change never gets stored.
+    private static volatile long generation = 0;
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Find a credential by ID, from any provider Jenkins has.
+     *
+     * @param type      The credential type
+     * @param id        Its ID
+     * @return the credential, or null if there is none of that type
+     */
+    public static <C extends IdCredentials> C get(Class<C> type, String id)
+    {
+        if(id == null) {
+            return null;
+        }
+
+        C ret = index(type).get(id);
+
+        if(ret != null) {
+            return ret;
+        }
+
+        // Not one of ours; ask everyone, and don't keep the answer
+        return CredentialsMatchers.firstOrNull(lookup(type),
+                                               CredentialsMatchers.withId(id)
+        );
+    }
+
+    /**
+     * Find a credential by ID in the system store only.  That's what
+     * we write imported credentials to, so it's all CredentialBatch
+     * needs, and it never falls back to a full lookup.
+     *
+     * @param type      The credential type
+     * @param id        Its ID
+     * @return the credential, or null if the store has none
+     */
+    public static <C extends IdCredentials> C getSystem(Class<C> type,
+                                                        String id)
+    {
+        if(id == null) {
+            return null;
+        }
+
+        return index(type).get(id);
+    }
+
+    /**
+     * Every credential of a type from any provider, in the order
+     * Jenkins gives them.  This is for form fills, and isn't cached,
+     * since not every provider tells us when it changes.
+     *
+     * @param type      The credential type
+     * @return list of credentials
+     */
+    public static <C extends IdCredentials> List<C> all(Class<C> type)
+    {
+        return new ArrayList<C>(lookup(type));
+    }
+
+    /**
+     * Forget everything.  Called when the credentials change.
+     */
+    public static void invalidate()
+    {
+        synchronized(indexes) {
+            generation++;
+            indexes.clear();
+        }
+    }
+
+    /**
+     * Get the index for a type, building it if need be.
+     *
+     * @param type      The credential type
+     * @return ID to credential map
+     */
+    @SuppressWarnings("unchecked")
+    private static <C extends IdCredentials> Map<String, C> index(Class<C> type)
+    {
+        Map<String, C> index = (Map<String, C>)indexes.get(type);
+
+        if(index != null) {
+            return index;
+        }
+
+        long gen = generation;
+
+        index = new LinkedHashMap<String, C>();
+
+        // Every domain.  First one wins, same as
+        // CredentialsMatchers.firstOrNull.
+        for(DomainCredentials dc : SystemCredentialsProvider.getInstance()
+                                                    .getDomainCredentials()) {
+            for(Credentials c : dc.getCredentials()) {
+                if(type.isInstance(c)) {
+                    C cred = type.cast(c);
+
+                    if(!index.containsKey(cred.getId())) {
+                        index.put(cred.getId(), cred);
+                    }
+                }
+            }
+        }
+
+        index = Collections.unmodifiableMap(index);
+
+        // Don't keep it if the credentials changed while we looked.
+        // Worst case two threads build the same index; that's fine.
+        synchronized(indexes) {
+            if(gen == generation) {
+                indexes.put(type, index);
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * The full, uncached lookup: Jenkins-level credentials from every
+     * provider.
+     *
+     * @param type      The credential type
+     * @return the credentials
+     */
+    private static <C extends IdCredentials> List<C> lookup(Class<C> type)
+    {
+        return CredentialsProvider.lookupCredentials(
+                                    type,
+                                    (Item) null,
+                                    ACL.SYSTEM,
+                                    Collections.<DomainRequirement>emptyList()
+        );
+    }
+}
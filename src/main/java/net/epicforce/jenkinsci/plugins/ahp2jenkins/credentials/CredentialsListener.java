@@ -0,0 +1,43 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials;
+
+/*
+ * CredentialsListener.java
+ *
+ * Keeps our credential caches honest.  The system credentials store
+ * fires a save event whenever a credential is added, changed or
+ * removed, and we throw away anything we cached from it.
+ *
+ * That's the only store we cache (see CredentialCache).  Credentials
+ * from other providers are looked up fresh every time, so their
+ * changes don't need to reach us.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+
+
+@Extension
+public final class CredentialsListener extends SaveableListener
+{
+    /**
+     * We can't tell which credential changed, but that doesn't happen
+     * often enough to matter.
+     *
+     * @param o     What was saved
+     * @param file  Where it was saved
+     */
+    @Override
+    public void onChange(Saveable o, XmlFile file)
+    {
+        if(o instanceof SystemCredentialsProvider) {
+            CredentialCache.invalidate();
+            KeystoreCache.invalidate();
+        }
+    }
+}
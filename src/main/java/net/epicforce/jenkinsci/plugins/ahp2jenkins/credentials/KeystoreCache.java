@@ -0,0 +1,305 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials;
+
+/*
+ * KeystoreCache.java
+ *
+ * AHP wants its keystore as a file on disk, but we keep it in Jenkins
+ * as a FileCredentials.  This writes each keystore out once, into a
+ * private directory only the Jenkins user can read, and hands the
+ * same path to every connection after that.
+ *
+ * When the credentials are saved (see CredentialsListener), each
+ * keystore is checked against what we wrote out the next time it's
+ * needed.  Only one that really changed is written out fresh; the
+ * credentials get saved a lot more often than keystores change.
+ * Everything is deleted when the plugin shuts down.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+
+import org.jenkinsci.plugins.plaincredentials.FileCredentials;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class KeystoreCache
+{
+    private static final Logger LOG =
+                            Logger.getLogger(KeystoreCache.class.getName());
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Credential ID -> keystore file.  Guarded by the class lock.
+    private static final Map<String, Keystore> keystores =
+                                            new HashMap<String, Keystore>();
+
+    // IDs to check against the credential before we hand them out
+    // again
+    private static final Set<String> unchecked = new HashSet<String>();
+
+    // Files we've stopped handing out because the keystore changed.
+    // A connection may still be reading one, so they are only deleted
+    // at shutdown.  That's one per real change, which is rare.
+    private static final List<Path> retired = new ArrayList<Path>();
+
+    // Our private directory, made on first use
+    private static Path directory = null;
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Get the path to a keystore on disk, writing it out if this is
+     * the first time we've needed it.
+     *
+     * @param credentialId      FileCredentials ID of the keystore
+     * @return full path to the keystore file
+     * @throws MigrateException if the credential is missing or we
+     *         couldn't write it out
+     */
+    public static synchronized String getPath(String credentialId)
+           throws MigrateException
+    {
+        Keystore current = keystores.get(credentialId);
+
+        // Someone may have cleaned out the temp directory on us
+        if((current != null) && (!Files.isRegularFile(current.path))) {
+            keystores.remove(credentialId);
+            current = null;
+        }
+
+        if((current != null) && (!unchecked.contains(credentialId))) {
+            return current.path.toString();
+        }
+
+        FileCredentials keystore = CredentialCache.get(FileCredentials.class,
+                                                       credentialId
+        );
+
+        // This is a paddlin'
+        if(keystore == null) {
+            throw new MigrateException("Could not load keystore for " +
+                                       "selected AHP instance."
+            );
+        }
+
+        byte[] content;
+
+        try(InputStream in = keystore.getContent()) {
+            content = readAll(in);
+        } catch(IOException e) {
+            throw new MigrateException("Could not read keystore", e);
+        }
+
+        byte[] digest = digest(content);
+
+        unchecked.remove(credentialId);
+
+        // The credentials were saved, but not this keystore
+        if((current != null) && MessageDigest.isEqual(digest,
+                                                      current.digest)) {
+            return current.path.toString();
+        }
+
+        Path path = null;
+
+        try {
+            path = createFile();
+            Files.write(path, content);
+        } catch(IOException e) {
+            if(path != null) {
+                delete(path);
+            }
+
+            throw new MigrateException("Could not write keystore to disk", e);
+        }
+
+        if(current != null) {
+            retired.add(current.path);
+        }
+
+        keystores.put(credentialId, new Keystore(path, digest));
+        return path.toString();
+    }
+
+    /**
+     * The credentials changed; check each keystore against its
+     * credential before handing it out again.
+     */
+    public static synchronized void invalidate()
+    {
+        unchecked.addAll(keystores.keySet());
+    }
+
+    /**
+     * Delete every keystore file and our directory.  For shutdown.
+     */
+    public static synchronized void clear()
+    {
+        for(Keystore k : keystores.values()) {
+            delete(k.path);
+        }
+
+        keystores.clear();
+        unchecked.clear();
+
+        for(Path path : retired) {
+            delete(path);
+        }
+
+        retired.clear();
+
+        if(directory != null) {
+            delete(directory);
+            directory = null;
+        }
+    }
+
+    /**
+     * Read a stream to the end.  Keystores are small.
+     *
+     * @param in        Stream to read
+     * @return everything in it
+     * @throws IOException if reading fails
+     */
+    private static byte[] readAll(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        byte[] buf = new byte[4096];
+        int n;
+
+        while((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param content   Keystore content
+     * @return its SHA-256
+     */
+    private static byte[] digest(byte[] content)
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch(NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Make an empty file only we can read in our private directory,
+     * making the directory if need be.
+     *
+     * @return the new file
+     * @throws IOException on any failure
+     */
+    private static Path createFile()
+            throws IOException
+    {
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews()
+                                                .contains("posix");
+
+        if((directory == null) || (!Files.isDirectory(directory))) {
+            if(posix) {
+                directory = Files.createTempDirectory("ahp2jenkins",
+                    PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")
+                    )
+                );
+            } else {
+                directory = Files.createTempDirectory("ahp2jenkins");
+                restrict(directory.toFile());
+            }
+        }
+
+        if(posix) {
+            return Files.createTempFile(directory, "keystore", ".jks",
+                PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")
+                )
+            );
+        }
+
+        Path path = Files.createTempFile(directory, "keystore", ".jks");
+        restrict(path.toFile());
+        return path;
+    }
+
+    /**
+     * Best effort owner-only permissions where we don't have POSIX
+     * attributes.
+     *
+     * @param f     File to restrict
+     */
+    private static void restrict(File f)
+    {
+        boolean ok = f.setReadable(false, false) && f.setReadable(true, true)
+                     && f.setWritable(false, false) && f.setWritable(true, true);
+
+        if(!ok) {
+            LOG.log(Level.WARNING, "Could not restrict permissions on " +
+                                   f.getPath()
+            );
+        }
+    }
+
+    /**
+     * Delete a file, logging if we can't.
+     *
+     * @param path      What to delete
+     */
+    private static void delete(Path path)
+    {
+        try {
+            Files.deleteIfExists(path);
+        } catch(IOException e) {
+            LOG.log(Level.WARNING, "Could not delete " + path.toString(), e);
+        }
+    }
+
+    /*****************************************************************
+     * CLASSES
+     ****************************************************************/
+
+    /*
+     * A keystore we wrote out, and what was in it
+     */
+    private static final class Keystore
+    {
+        final Path      path;
+        final byte[]    digest;
+
+        Keystore(Path path, byte[] digest)
+        {
+            this.path = path;
+            this.digest = digest;
+        }
+    }
+}
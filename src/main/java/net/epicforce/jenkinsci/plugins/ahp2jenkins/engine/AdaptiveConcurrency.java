@@ -0,0 +1,206 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * AdaptiveConcurrency.java
+ *
+ * Sizes the MigrateEngine thread pool.  In fixed mode it just applies
+ * the configured size.  In adaptive mode it watches how long each
+ * migration takes and how often they fail, and grows or shrinks the
+ * pool using additive-increase / multiplicative-decrease (AIMD), the
+ * same way TCP finds the capacity of a link.
+ *
+ * Migration wall time is almost all AHP remoting, so it is a good
+ * stand-in for remoting latency.  We keep a smoothed latency and a
+ * "best" baseline; if latency climbs well over the baseline or errors
+ * pile up, AHP (or the link) is saturated and we halve the pool.
+ * Otherwise, after every full round of clean completions, we add a
+ * thread.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+
+public class AdaptiveConcurrency
+{
+    private static final Logger LOG =
+                        Logger.getLogger(AdaptiveConcurrency.class.getName());
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // Smoothing factors for the latency and error moving averages
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final double ERROR_WEIGHT = 0.1;
+
+    // How fast the baseline drifts up towards current latency, so one
+    // unusually quick workflow doesn't pin it forever.
+    private static final double BASELINE_DRIFT = 0.01;
+
+    // Back off when latency is this many times the baseline ...
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // ... or when this fraction of recent migrations failed.  Some
+    // failures are just unsupported AHP steps, so one error alone
+    // shouldn't shrink the pool.
+    private static final double ERROR_TOLERANCE = 0.25;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The pool we are sizing
+    private final ThreadPoolExecutor    pool;
+
+    // Current limit and its bounds
+    private int         limit;
+    private int         maxLimit;
+    private boolean     adaptive = false;
+
+    // Measurements.  Negative means no samples yet.
+    private double      smoothedMs = -1;
+    private double      baselineMs = -1;
+    private double      errorRate = 0;
+
+    // Completions since we last changed the limit
+    private int         sinceChange = 0;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param pool      The thread pool to size
+     */
+    public AdaptiveConcurrency(ThreadPoolExecutor pool)
+    {
+        this.pool = pool;
+        this.limit = pool.getCorePoolSize();
+        this.maxLimit = this.limit;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * @return the current thread limit
+     */
+    public synchronized int getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Apply configuration.  This can be called for every batch; the
+     * latest call wins.
+     *
+     * In fixed mode, threadCount is the pool size.  In adaptive mode
+     * it is where we start (unless we've already learned something
+     * better) and maxThreadCount is the ceiling.
+     *
+     * @param threadCount       Fixed or starting thread count
+     * @param adaptive          Whether to adapt
+     * @param maxThreadCount    Adaptive ceiling
+     */
+    public synchronized void configure(int threadCount, boolean adaptive,
+                                       int maxThreadCount)
+    {
+        threadCount = Math.max(1, threadCount);
+
+        if(adaptive) {
+            maxLimit = Math.max(threadCount, maxThreadCount);
+
+            // Keep what we've learned if we were already adapting
+            if(!this.adaptive) {
+                limit = threadCount;
+            }
+
+            limit = Math.min(limit, maxLimit);
+        } else {
+            maxLimit = threadCount;
+            limit = threadCount;
+        }
+
+        this.adaptive = adaptive;
+        apply();
+    }
+
+    /**
+     * Feed a finished migration into the controller.
+     *
+     * @param elapsedMs     How long it ran
+     * @param failed        If it ended in an error
+     */
+    public synchronized void onComplete(long elapsedMs, boolean failed)
+    {
+        if(!adaptive) {
+            return;
+        }
+
+        // Update our averages
+        if(smoothedMs < 0) {
+            smoothedMs = elapsedMs;
+            baselineMs = elapsedMs;
+        } else {
+            smoothedMs += (elapsedMs - smoothedMs) * LATENCY_WEIGHT;
+
+            if(smoothedMs < baselineMs) {
+                baselineMs = smoothedMs;
+            } else {
+                baselineMs += (smoothedMs - baselineMs) * BASELINE_DRIFT;
+            }
+        }
+
+        errorRate += ((failed ? 1.0 : 0.0) - errorRate) * ERROR_WEIGHT;
+        sinceChange++;
+
+        // Only act once per "round" -- that is, once every thread has
+        // had a chance to report back at the current limit.  Otherwise
+        // one slow burst would halve us over and over.
+        if(sinceChange < limit) {
+            return;
+        }
+
+        int oldLimit = limit;
+
+        if((smoothedMs > baselineMs * LATENCY_TOLERANCE) ||
+           (errorRate > ERROR_TOLERANCE)) {
+            limit = Math.max(1, limit / 2);
+        } else {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+
+        sinceChange = 0;
+
+        if(limit != oldLimit) {
+            LOG.log(Level.FINE,
+                    "Migration threads {0} -> {1} (latency {2}ms, " +
+                    "baseline {3}ms, error rate {4})",
+                    new Object[] { oldLimit, limit, (long)smoothedMs,
+                                   (long)baselineMs, errorRate }
+            );
+
+            apply();
+        }
+    }
+
+    /**
+     * Push the limit into the pool.  Core and max have to move in the
+     * right order or ThreadPoolExecutor complains.
+     */
+    private void apply()
+    {
+        if(limit > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(limit);
+            pool.setCorePoolSize(limit);
+        } else {
+            pool.setCorePoolSize(limit);
+            pool.setMaximumPoolSize(limit);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * AhpSessionPool.java
+ *
+ * A bounded pool of AHP remoting sessions (Migration objects) for one
+ * AhpInstance.  Opening a session means a credential lookup, maybe a
+ * keystore, and a fresh remoting connection, which for small workflows
+ * costs more than the migration itself.  So we lease sessions out and
+ * take them back rather than opening one per workflow or search.
+ *
+ * Sessions that sat idle past the timeout are closed, either when the
+ * pool is next touched or by the periodic sweep below.
+ *
+ * The remoting library doesn't tell us whether a Migration can be run a
+ * second time, so we find out: a recycled session is re-armed with the
+ * new workflow, and if it still looks spent we close it, open a fresh
+ * one and stop recycling spent sessions from then on.  Sessions that
+ * never ran (searches, for instance) are always reusable.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpGlobalConfiguration;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpInstance;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.loader.JenkinsLoader;
+
+
+public class AhpSessionPool
+{
+    private static final Logger LOG =
+                            Logger.getLogger(AhpSessionPool.class.getName());
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // How long a session may sit idle before we close it
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(
+        Long.getLong(AhpSessionPool.class.getName() + ".idleTimeoutMinutes",
+                     5L)
+    );
+
+    // One pool per instance
+    private static final Map<AhpInstance, AhpSessionPool> pools =
+                        new ConcurrentHashMap<AhpInstance, AhpSessionPool>();
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Who we connect to
+    private final AhpInstance   ahp;
+
+    // Idle sessions, most recently used first.  Guarded by 'this'.
+    private final Deque<IdleSession> idle = new ArrayDeque<IdleSession>();
+
+    // Sessions open right now, idle or leased.  Guarded by 'this'.
+    private int     open = 0;
+
+    // Set once we're shut down; everything released gets closed.
+    private boolean closed = false;
+
+    // Whether a session that already ran a workflow can be re-armed
+    // for another one.  Null until we've tried.
+    private volatile Boolean recyclable = null;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * Use forInstance
+     *
+     * @param ahp       The instance to connect to
+     */
+    private AhpSessionPool(AhpInstance ahp)
+    {
+        this.ahp = ahp;
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Get the pool for an instance, making it if needed.
+     *
+     * @param ahp       The instance
+     * @return its pool
+     */
+    public static AhpSessionPool forInstance(AhpInstance ahp)
+    {
+        return pools.computeIfAbsent(ahp, AhpSessionPool::new);
+    }
+
+    /**
+     * Close every idle session in every pool, and make sure leased
+     * sessions get closed when they come back.  For Jenkins shutdown.
+     */
+    public static void closeAll()
+    {
+        for(AhpSessionPool pool : pools.values()) {
+            pool.close();
+        }
+
+        pools.clear();
+    }
+
+    /**
+     * Check if a session has already been run (or closed) and so
+     * can't be used as-is for another workflow.
+     *
+     * @param m     The session
+     * @return true if spent
+     */
+    private static boolean isSpent(Migration m)
+    {
+        switch(m.getStatus()) {
+            case Migration.NEED_SETUP:
+            case Migration.READY:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Most sessions we'll hold open.  Enough for every migration
+     * thread plus one, so a project search never waits on a batch.
+     *
+     * @return session limit
+     */
+    private int maxSessions()
+    {
+        AhpGlobalConfiguration config = AhpGlobalConfiguration.get();
+
+        if(config.getAdaptiveThreads()) {
+            return Math.max(config.getThreadCount(),
+                            config.getMaxThreadCount()) + 1;
+        }
+
+        return config.getThreadCount() + 1;
+    }
+
+    /**
+     * Lease a session.  This will block if the pool is at its limit
+     * and every session is in use.
+     *
+     * @return a session, which must be given back with release
+     * @throws MigrateException if we had to connect and couldn't
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Migration lease()
+           throws MigrateException, InterruptedException
+    {
+        List<Migration> toClose = new ArrayList<Migration>();
+
+        try {
+            synchronized(this) {
+                while(true) {
+                    if(closed) {
+                        throw new MigrateException("AHP session pool closed");
+                    }
+
+                    evictIdle(toClose);
+
+                    IdleSession session = idle.pollFirst();
+
+                    // Health check.  There's no way to ping a session, so
+                    // all we can do is make sure it hasn't been closed or
+                    // tripped an error.
+                    if(session != null) {
+                        if((session.migration.getStatus() != Migration.CLOSED)
+                           && (session.migration.getError() == null)) {
+                            return session.migration;
+                        }
+
+                        toClose.add(session.migration);
+                        open--;
+                        continue;
+                    }
+
+                    // Room for a new one?
+                    if(open < maxSessions()) {
+                        open++;
+                        break;
+                    }
+
+                    wait();
+                }
+            }
+        } finally {
+            closeSessions(toClose);
+        }
+
+        // Connect outside the lock; this is the slow part.
+        try {
+            return ahp.getMigration();
+        } catch(MigrateException | RuntimeException e) {
+            synchronized(this) {
+                open--;
+                notifyAll();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Lease a session and set it up to migrate a workflow.
+     *
+     * @param workflowId    Workflow to migrate
+     * @param context       Context to migrate into
+     * @param loader        Our class loader
+     * @return a session ready to run
+     * @throws MigrateException if we couldn't connect
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Migration leaseFor(long workflowId, JenkinsContext context,
+                              JenkinsLoader loader)
+           throws MigrateException, InterruptedException
+    {
+        while(true) {
+            Migration m = lease();
+            boolean wasSpent = isSpent(m);
+
+            m.setWorkflowId(workflowId);
+            m.setContext(context);
+            m.setLoader(loader);
+
+            if(!isSpent(m)) {
+                if(wasSpent) {
+                    recyclable = Boolean.TRUE;
+                }
+
+                return m;
+            }
+
+            // Didn't take.  Don't keep spent sessions from now on.
+            if(recyclable == null) {
+                LOG.log(Level.FINE, "AHP sessions can't be re-run; " +
+                                    "they will be closed after each workflow"
+                );
+            }
+
+            recyclable = Boolean.FALSE;
+            discard(m);
+        }
+    }
+
+    /**
+     * Give a session back.
+     *
+     * @param m     A session from lease
+     */
+    public void release(Migration m)
+    {
+        boolean keep = (m.getStatus() != Migration.CLOSED) &&
+                       (m.getError() == null) &&
+                       ((!isSpent(m)) || (recyclable != Boolean.FALSE));
+
+        if(keep) {
+            synchronized(this) {
+                if(!closed) {
+                    idle.addFirst(new IdleSession(m));
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+
+        discard(m);
+    }
+
+    /**
+     * Close a leased session instead of giving it back.
+     *
+     * @param m     A session from lease
+     */
+    public void discard(Migration m)
+    {
+        synchronized(this) {
+            open--;
+            notifyAll();
+        }
+
+        m.close();
+    }
+
+    /**
+     * Close sessions that have been idle too long.
+     */
+    public void evictIdle()
+    {
+        List<Migration> toClose = new ArrayList<Migration>();
+
+        synchronized(this) {
+            evictIdle(toClose);
+        }
+
+        closeSessions(toClose);
+    }
+
+    /**
+     * Pull expired sessions out of the idle list.  Caller must hold
+     * the lock, and close what we hand back once it lets go.
+     *
+     * @param toClose       Where to put expired sessions
+     */
+    private void evictIdle(List<Migration> toClose)
+    {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT;
+
+        // Oldest are at the end
+        for(Iterator<IdleSession> it = idle.descendingIterator();
+            it.hasNext(); ) {
+            IdleSession session = it.next();
+
+            if(session.since > cutoff) {
+                break;
+            }
+
+            it.remove();
+            toClose.add(session.migration);
+            open--;
+        }
+
+        if(!toClose.isEmpty()) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Shut this pool down.
+     */
+    private void close()
+    {
+        List<Migration> toClose = new ArrayList<Migration>();
+
+        synchronized(this) {
+            closed = true;
+
+            for(IdleSession session : idle) {
+                toClose.add(session.migration);
+            }
+
+            open -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+
+        closeSessions(toClose);
+    }
+
+    /**
+     * Close a bunch of sessions, not letting one failure stop the rest.
+     *
+     * @param sessions      Sessions to close
+     */
+    private void closeSessions(List<Migration> sessions)
+    {
+        for(Migration m : sessions) {
+            try {
+                m.close();
+            } catch(RuntimeException e) {
+                LOG.log(Level.WARNING, "Error closing AHP session", e);
+            }
+        }
+    }
+
+    /**
+     * A session sitting in the pool, and when it got there.
+     */
+    private static class IdleSession
+    {
+        final Migration migration;
+        final long      since = System.currentTimeMillis();
+
+        /**
+         * @param migration     The session
+         */
+        IdleSession(Migration migration)
+        {
+            this.migration = migration;
+        }
+    }
+
+    /**
+     * Sweeps idle sessions out of every pool once a minute, so they
+     * don't linger when nobody is using the pool.
+     */
+    @Extension
+    public static final class IdleSweeper extends PeriodicWork
+    {
+        /**
+         * @return how often to run, in milliseconds
+         */
+        @Override
+        public long getRecurrencePeriod()
+        {
+            return MIN;
+        }
+
+        /**
+         * Do the sweep
+         */
+        @Override
+        protected void doRun()
+        {
+            for(AhpSessionPool pool : pools.values()) {
+                pool.evictIdle();
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * MigrationBatch.java
+ *
+ * The workflows submitted together from the UI.  What the jobs can
+ * share, like project properties, hangs off of this, as do imported
+ * credentials: they're saved as each job finishes, before it's
+ * journaled, in one save for whatever the batch has collected so
+ * far.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.ProjectCache;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.credentials.CredentialBatch;
+
+
+public class MigrationBatch
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Jobs not finished yet
+    private final AtomicInteger         remaining = new AtomicInteger(0);
+
+    // Credential writes waiting for a job to finish
+    private final CredentialBatch       credentials = new CredentialBatch();
+
+    // Project properties, loaded once for every workflow in the batch
+    private final ProjectCache          projects = new ProjectCache();
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return where our jobs should put credential writes
+     */
+    public CredentialBatch getCredentials()
+    {
+        return credentials;
+    }
+
+    /**
+     * @return project properties shared by our jobs
+     */
+    public ProjectCache getProjects()
+    {
+        return projects;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Add a job to the batch.  We only need to count them, so the
+     * batch doesn't keep finished jobs alive.
+     *
+     * @param job       The job
+     */
+    public void add(MigrationJob job)
+    {
+        remaining.incrementAndGet();
+    }
+
+    /**
+     * Count a job as finished.
+     *
+     * @return true if that was the last one and it is time to commit
+     */
+    public boolean jobDone()
+    {
+        return remaining.decrementAndGet() == 0;
+    }
+
+    /**
+     * Write out everything the batch is holding back so far.  Safe
+     * to call as often as you like; with nothing held, it does
+     * nothing.
+     *
+     * @throws MigrateException if the credentials couldn't be saved
+     */
+    public void commit()
+           throws MigrateException
+    {
+        credentials.commit();
+    }
+}
@@ -0,0 +1,287 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * MigrationJob.java
+ *
+ * One queued workflow migration.  AHP sessions are pooled and handed
+ * from workflow to workflow, so a Migration object can't double as
+ * the status of a given workflow anymore.  This holds what the status
+ * page needs, and borrows the Migration only while it is running.
+ *
+ * A job goes through two stages: the AHP fetch, which needs the
+ * session, and the Jenkins write, which doesn't.  detach() marks the
+ * hand-off between them and finish() the end of the whole thing.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import net.epicforce.migrate.ahp.Migration;
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpInstance;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
+
+
+public class MigrationJob
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // What we're migrating, and where from
+    private final AhpInstance       ahp;
+    private final long              workflowId;
+    private final JenkinsContext    context;
+
+    // The batch we were submitted with
+    private final MigrationBatch    batch;
+
+    // Our ID in the migration journal, or 0 if we're not in it
+    private volatile long           journalId = 0;
+
+    // The session running us, while we're running
+    private volatile Migration          migration = null;
+
+    // What we know once we're done.  fetched is set when the AHP side
+    // is over and done when the Jenkins side is too.
+    private volatile boolean            fetched = false;
+    private volatile boolean            done = false;
+    private volatile String             workflowName = null;
+    private volatile MigrateException   error = null;
+
+    // Set if a shutdown cut us off part way, so we didn't really
+    // finish even if we're done
+    private volatile boolean            interrupted = false;
+
+    // Timings, wall clock milliseconds
+    private final long                  queuedAt = System.currentTimeMillis();
+    private volatile long               startedAt = 0;
+    private volatile long               finishedAt = 0;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param ahp           The instance to migrate from
+     * @param workflowId    The AHP workflow ID
+     * @param context       The context to migrate into
+     * @param batch         The batch this job belongs to
+     */
+    public MigrationJob(AhpInstance ahp, long workflowId,
+                        JenkinsContext context, MigrationBatch batch)
+    {
+        this.ahp = ahp;
+        this.workflowId = workflowId;
+        this.context = context;
+        this.batch = batch;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the instance we migrate from
+     */
+    public AhpInstance getAhpInstance()
+    {
+        return ahp;
+    }
+
+    /**
+     * @return the AHP workflow ID
+     */
+    public long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return our context
+     */
+    public JenkinsContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * @return our batch
+     */
+    public MigrationBatch getBatch()
+    {
+        return batch;
+    }
+
+    /**
+     * @return our migration journal ID, or 0 if not journaled
+     */
+    public long getJournalId()
+    {
+        return journalId;
+    }
+
+    /**
+     * @param journalId     our migration journal ID
+     */
+    public void setJournalId(long journalId)
+    {
+        this.journalId = journalId;
+    }
+
+    /**
+     * @return the session running us, or null if we are not running
+     */
+    public Migration getMigration()
+    {
+        return migration;
+    }
+
+    /**
+     * @return the workflow name, or null if it hasn't been loaded
+     */
+    public String getWorkflowName()
+    {
+        Migration m = migration;
+
+        if(m != null) {
+            return m.getWorkflowName();
+        }
+
+        return workflowName;
+    }
+
+    /**
+     * @return when we were submitted
+     */
+    public long getQueuedAt()
+    {
+        return queuedAt;
+    }
+
+    /**
+     * @return when we started running, or 0 if we haven't
+     */
+    public long getStartedAt()
+    {
+        return startedAt;
+    }
+
+    /**
+     * @return when we finished, or 0 if we haven't
+     */
+    public long getFinishedAt()
+    {
+        return finishedAt;
+    }
+
+    /**
+     * @return true once we're finished with AHP
+     */
+    public boolean isFetched()
+    {
+        return fetched;
+    }
+
+    /**
+     * @return true once this job is over, one way or another
+     */
+    public boolean isDone()
+    {
+        return done;
+    }
+
+    /**
+     * @return our error, or null
+     */
+    public MigrateException getError()
+    {
+        Migration m = migration;
+
+        if((error == null) && (m != null)) {
+            return m.getError();
+        }
+
+        return error;
+    }
+
+    /**
+     * Set an error on the job.  The first error wins; anything after
+     * it is usually fallout.
+     *
+     * @param error     The error
+     */
+    public void setError(MigrateException error)
+    {
+        if(this.error == null) {
+            this.error = error;
+        }
+    }
+
+    /**
+     * @return true if a shutdown cut us off part way
+     */
+    public boolean isInterrupted()
+    {
+        return interrupted;
+    }
+
+    /**
+     * Note that a shutdown cut us off part way.  We still get closed
+     * out as usual, but the journal keeps us for next time.
+     */
+    public void setInterrupted()
+    {
+        interrupted = true;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Attach the session that is about to run us.
+     *
+     * @param migration     A prepared Migration
+     */
+    public void start(Migration migration)
+    {
+        startedAt = System.currentTimeMillis();
+        this.migration = migration;
+    }
+
+    /**
+     * Copy what we need off our session so it can be given back to
+     * the pool.  After this, we are waiting on the Jenkins write.
+     */
+    public void detach()
+    {
+        Migration m = migration;
+
+        if(m != null) {
+            workflowName = m.getWorkflowName();
+
+            if(error == null) {
+                error = m.getError();
+            }
+        }
+
+        // Flag fetched before letting go, so status never sees us
+        // as queued again.
+        fetched = true;
+        migration = null;
+    }
+
+    /**
+     * Mark the job over, one way or another.
+     */
+    public void finish()
+    {
+        detach();
+
+        if(!done) {
+            finishedAt = System.currentTimeMillis();
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * MigrationJournal.java
+ *
+ * An append-only log of what the engine has been asked to do and how
+ * far it got, so a Jenkins restart in the middle of a big batch
+ * doesn't lose the rest of it.
+ *
+ * Each line is one event:
+ *
+ *   B <batch> <AhpInstance.toString()>      a batch was submitted
+ *   S <job> <batch> <workflow id>           a workflow was queued
+ *   R <job>                                 it started running
+ *   F <job> <ok|error>                      it finished
+ *
+ * A workflow with an S line and no F line still needs doing.  Lines
+ * are written by a background thread in groups, with one fsync per
+ * group, so journaling never holds up a migration.  The cost is that
+ * a crash can lose the last group; at worst that means a workflow is
+ * migrated twice.
+ *
+ * When nothing is pending the file is truncated, and on startup it is
+ * rewritten with only the pending work, so it never grows for long.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpInstance;
+
+
+public class MigrationJournal implements Runnable
+{
+    private static final Logger LOG =
+                            Logger.getLogger(MigrationJournal.class.getName());
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Put on the queue to tell the writer to stop
+    private static final Entry CLOSE = new Entry("", 0);
+
+    // Where we write
+    private final File              file;
+
+    // Lines waiting to be written
+    private final BlockingQueue<Entry> queue =
+                                        new LinkedBlockingQueue<Entry>();
+
+    // Batch and job IDs.  They only need to be unique within the file.
+    private final AtomicLong        nextId = new AtomicLong(1);
+
+    // Set if the writer hit an error and stopped; we don't queue
+    // anything after that.
+    private volatile boolean        broken = false;
+
+    // Workflows queued and not finished, as far as the writer has
+    // written.  Only touched by the writer thread.
+    private int                     pending = 0;
+
+    // Our writer, once opened
+    private Thread                  writerThread = null;
+    private FileOutputStream        out = null;
+    private Writer                  writer = null;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param file      The journal file.  Its directory is made if
+     *                  need be.
+     */
+    public MigrationJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Read whatever the journal holds from last time, compact it down
+     * to the unfinished work, and start the writer.
+     *
+     * @return batches with work left to do; may be empty
+     * @throws IOException if the journal can't be read or written
+     */
+    public synchronized List<Pending> open()
+           throws IOException
+    {
+        List<Pending> ret = replay();
+
+        // Rewrite with just what's left
+        File dir = file.getParentFile();
+
+        if((dir != null) && (!dir.isDirectory()) && (!dir.mkdirs())) {
+            throw new IOException("Could not make directory " + dir);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try(Writer w = new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(tmp), StandardCharsets.UTF_8
+        ))) {
+            for(Pending p : ret) {
+                w.write(batchLine(p.batchId, p.ahp));
+
+                for(int i = 0; i < p.jobIds.size(); i++) {
+                    w.write(jobLine(p.jobIds.get(i), p.batchId,
+                                    p.workflowIds.get(i))
+                    );
+                    pending++;
+                }
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE
+        );
+
+        out = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out,
+                                                    StandardCharsets.UTF_8));
+
+        writerThread = (new NamingThreadFactory(new DaemonThreadFactory(),
+                                                "AHP2Jenkins.MigrationJournal"
+                        )
+        ).newThread(this);
+        writerThread.start();
+
+        return ret;
+    }
+
+    /**
+     * Journal a new batch, handing out journal IDs to its jobs.
+     *
+     * @param ahp       Instance the batch runs against
+     * @param jobs      The batch's jobs
+     */
+    public void submitted(AhpInstance ahp, List<MigrationJob> jobs)
+    {
+        long batchId = nextId.getAndIncrement();
+        StringBuilder sb = new StringBuilder(64 * (jobs.size() + 1));
+
+        sb.append(batchLine(batchId, ahp));
+
+        for(MigrationJob job : jobs) {
+            job.setJournalId(nextId.getAndIncrement());
+            sb.append(jobLine(job.getJournalId(), batchId,
+                              job.getWorkflowId())
+            );
+        }
+
+        // One entry, so the batch line and its jobs land together
+        enqueue(new Entry(sb.toString(), jobs.size()));
+    }
+
+    /**
+     * Journal a job starting.
+     *
+     * @param job       The job
+     */
+    public void started(MigrationJob job)
+    {
+        if(job.getJournalId() > 0) {
+            enqueue(new Entry("R " + job.getJournalId() + "\n", 0));
+        }
+    }
+
+    /**
+     * Journal a job finishing.
+     *
+     * @param job       The job
+     */
+    public void finished(MigrationJob job)
+    {
+        if(job.getJournalId() > 0) {
+            enqueue(new Entry("F " + job.getJournalId() + " " +
+                              ((job.getError() == null) ? "ok" : "error") +
+                              "\n", -1)
+            );
+        }
+    }
+
+    /**
+     * Hand something to the writer, unless it has given up.
+     *
+     * @param e     What to write
+     */
+    private void enqueue(Entry e)
+    {
+        if(!broken) {
+            queue.offer(e);
+        }
+    }
+
+    /**
+     * Write out everything queued and stop the writer.
+     */
+    public void close()
+    {
+        Thread t;
+
+        synchronized(this) {
+            t = writerThread;
+            writerThread = null;
+        }
+
+        if(t == null) {
+            return;
+        }
+
+        queue.offer(CLOSE);
+
+        while(t.isAlive()) {
+            try {
+                t.join();
+            } catch(InterruptedException e) {
+                t.interrupt();
+            }
+        }
+    }
+
+    /**
+     * The writer.  Takes whatever has piled up, writes it, and syncs
+     * once for the lot.
+     */
+    public void run()
+    {
+        List<Entry> group = new ArrayList<Entry>();
+        boolean closing = false;
+
+        try {
+            while(!closing) {
+                group.clear();
+
+                try {
+                    group.add(queue.take());
+                } catch(InterruptedException e) {
+                    // Finish what's there, then stop
+                    closing = true;
+                }
+
+                queue.drainTo(group);
+
+                for(Entry e : group) {
+                    if(e == CLOSE) {
+                        closing = true;
+                        continue;
+                    }
+
+                    writer.write(e.text);
+                    pending += e.pendingDelta;
+                }
+
+                writer.flush();
+
+                // Nothing left to resume?  Then there's no need to keep
+                // any of it.
+                if(pending <= 0) {
+                    pending = 0;
+                    out.getChannel().truncate(0);
+                }
+
+                out.getChannel().force(false);
+            }
+        } catch(IOException e) {
+            broken = true;
+            queue.clear();
+
+            LOG.log(Level.SEVERE, "Could not write migration journal; " +
+                                  "work in progress won't survive a restart",
+                    e
+            );
+        } finally {
+            try {
+                writer.close();
+            } catch(IOException e) {
+                LOG.log(Level.WARNING, "Could not close migration journal", e);
+            }
+        }
+    }
+
+    /**
+     * Read the journal and work out what never finished.
+     *
+     * @return unfinished batches
+     * @throws IOException on read failure
+     */
+    private List<Pending> replay()
+            throws IOException
+    {
+        Map<Long, Pending> batches = new LinkedHashMap<Long, Pending>();
+        Map<Long, Long> jobs = new LinkedHashMap<Long, Long>();
+        Map<Long, Long> jobBatch = new LinkedHashMap<Long, Long>();
+        long maxId = 0;
+
+        if(!file.isFile()) {
+            return new ArrayList<Pending>();
+        }
+
+        try(BufferedReader r = Files.newBufferedReader(file.toPath(),
+                                                    StandardCharsets.UTF_8)) {
+            String line;
+
+            while((line = r.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+
+                // A torn last line or garbage is just skipped
+                try {
+                    long id = Long.parseLong(parts[1]);
+                    maxId = Math.max(maxId, id);
+
+                    switch(parts[0]) {
+                        case "B":
+                            batches.put(id, new Pending(id, new AhpInstance(
+                                        line.substring(line.indexOf(' ',
+                                                        2) + 1)
+                            )));
+                            break;
+                        case "S":
+                            jobs.put(id, Long.parseLong(parts[3]));
+                            jobBatch.put(id, Long.parseLong(parts[2]));
+                            break;
+                        case "R":
+                            break;
+                        case "F":
+                            jobs.remove(id);
+                            break;
+                        default:
+                            LOG.log(Level.WARNING,
+                                    "Skipping bad journal line: " + line
+                            );
+                    }
+                } catch(RuntimeException e) {
+                    LOG.log(Level.WARNING,
+                            "Skipping bad journal line: " + line
+                    );
+                }
+            }
+        }
+
+        nextId.set(maxId + 1);
+
+        for(Map.Entry<Long, Long> e : jobs.entrySet()) {
+            Pending p = batches.get(jobBatch.get(e.getKey()));
+
+            if(p == null) {
+                LOG.log(Level.WARNING, "Journal job " + e.getKey() +
+                                       " has no batch; skipping it"
+                );
+                continue;
+            }
+
+            p.jobIds.add(e.getKey());
+            p.workflowIds.add(e.getValue());
+        }
+
+        List<Pending> ret = new ArrayList<Pending>();
+
+        for(Pending p : batches.values()) {
+            if(!p.jobIds.isEmpty()) {
+                ret.add(p);
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @param batchId   Batch ID
+     * @param ahp       Instance
+     * @return a B line
+     */
+    private static String batchLine(long batchId, AhpInstance ahp)
+    {
+        return "B " + batchId + " " + ahp.toString() + "\n";
+    }
+
+    /**
+     * @param jobId         Job ID
+     * @param batchId       Batch ID
+     * @param workflowId    AHP workflow ID
+     * @return an S line
+     */
+    private static String jobLine(long jobId, long batchId, long workflowId)
+    {
+        return "S " + jobId + " " + batchId + " " + workflowId + "\n";
+    }
+
+    /**
+     * Something for the writer to write.
+     */
+    private static class Entry
+    {
+        final String    text;
+
+        // How this changes the count of unfinished workflows
+        final int       pendingDelta;
+
+        /**
+         * @param text          Lines to write
+         * @param pendingDelta  Change in unfinished workflows
+         */
+        Entry(String text, int pendingDelta)
+        {
+            this.text = text;
+            this.pendingDelta = pendingDelta;
+        }
+    }
+
+    /**
+     * A batch from the journal with work left over.
+     */
+    public static class Pending
+    {
+        final long          batchId;
+        final AhpInstance   ahp;
+        final List<Long>    jobIds = new ArrayList<Long>();
+        final List<Long>    workflowIds = new ArrayList<Long>();
+
+        /**
+         * @param batchId   Batch ID
+         * @param ahp       Instance it runs against
+         */
+        Pending(long batchId, AhpInstance ahp)
+        {
+            this.batchId = batchId;
+            this.ahp = ahp;
+        }
+
+        /**
+         * @return instance the batch runs against
+         */
+        public AhpInstance getAhpInstance()
+        {
+            return ahp;
+        }
+
+        /**
+         * @return journal IDs of the unfinished jobs
+         */
+        public List<Long> getJobIds()
+        {
+            return jobIds;
+        }
+
+        /**
+         * @return AHP workflow IDs of the unfinished jobs, in the same
+         *         order as getJobIds
+         */
+        public List<Long> getWorkflowIds()
+        {
+            return workflowIds;
+        }
+    }
+}
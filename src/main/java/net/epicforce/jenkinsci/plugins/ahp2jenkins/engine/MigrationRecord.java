@@ -0,0 +1,229 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * MigrationRecord.java
+ *
+ * What we remember about a finished migration.  A MigrationJob holds
+ * on to its whole JenkinsContext (every property map, the code blocks,
+ * the generated pipeline) which is a lot to keep around just to show
+ * a line on the status page.  Once a job is done we boil it down to
+ * one of these and let the rest go.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.Collections;
+import java.util.List;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.code.BeanshellTranslator;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.context.JenkinsContext;
+
+
+public final class MigrationRecord
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private final String    workflowName;
+    private final long      workflowId;
+    private final String    jenkinsJobName;
+
+    // Null on success
+    private final String    error;
+
+    // True if the job was already up to date and left alone
+    private final boolean   upToDate;
+
+    // Beanshell scripts turned into Groovy, and ones left for the
+    // interpreter at build time
+    private final List<String> bshTranslated;
+    private final List<String> bshInterpreted;
+
+    // Wall clock times, in milliseconds.  startedAt is 0 if the job
+    // never got as far as running.
+    private final long      queuedAt;
+    private final long      startedAt;
+    private final long      finishedAt;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param workflowName      Workflow name, or null if never loaded
+     * @param workflowId        AHP workflow ID
+     * @param jenkinsJobName    Jenkins job name, or null if not created
+     * @param error             Error message, or null on success
+     * @param upToDate          True if the job was left alone
+     * @param queuedAt          When it was submitted
+     * @param startedAt         When it started running, or 0
+     * @param finishedAt        When it finished
+     */
+    public MigrationRecord(String workflowName, long workflowId,
+                           String jenkinsJobName, String error,
+                           boolean upToDate, long queuedAt, long startedAt,
+                           long finishedAt)
+    {
+        this(workflowName, workflowId, jenkinsJobName, error, upToDate,
+             queuedAt, startedAt, finishedAt,
+             Collections.<String>emptyList(), Collections.<String>emptyList()
+        );
+    }
+
+    /**
+     * @param workflowName      Workflow name, or null if never loaded
+     * @param workflowId        AHP workflow ID
+     * @param jenkinsJobName    Jenkins job name, or null if not created
+     * @param error             Error message, or null on success
+     * @param upToDate          True if the job was left alone
+     * @param queuedAt          When it was submitted
+     * @param startedAt         When it started running, or 0
+     * @param finishedAt        When it finished
+     * @param bshTranslated     Beanshell translated to Groovy
+     * @param bshInterpreted    Beanshell left for the interpreter
+     */
+    public MigrationRecord(String workflowName, long workflowId,
+                           String jenkinsJobName, String error,
+                           boolean upToDate, long queuedAt, long startedAt,
+                           long finishedAt, List<String> bshTranslated,
+                           List<String> bshInterpreted)
+    {
+        this.bshTranslated = bshTranslated;
+        this.bshInterpreted = bshInterpreted;
+        this.workflowName = workflowName;
+        this.workflowId = workflowId;
+        this.jenkinsJobName = jenkinsJobName;
+        this.error = error;
+        this.upToDate = upToDate;
+        this.queuedAt = queuedAt;
+        this.startedAt = startedAt;
+        this.finishedAt = finishedAt;
+    }
+
+    /**
+     * Boil down a finished job.
+     *
+     * @param job       A job that is done
+     * @return its record
+     */
+    public static MigrationRecord of(MigrationJob job)
+    {
+        JenkinsContext jc = job.getContext();
+        MigrateException e = job.getError();
+        BeanshellTranslator bsh = (jc == null) ? null :
+                                                 jc.getBeanshellTranslator();
+
+        return new MigrationRecord(job.getWorkflowName(), job.getWorkflowId(),
+                                   (jc == null) ? null : jc.getJenkinsJobName(),
+                                   (e == null) ? null : e.getMessage(),
+                                   (jc != null) && jc.isUpToDate(),
+                                   job.getQueuedAt(), job.getStartedAt(),
+                                   job.getFinishedAt(),
+                                   (bsh == null) ?
+                                        Collections.<String>emptyList() :
+                                        bsh.getTranslated(),
+                                   (bsh == null) ?
+                                        Collections.<String>emptyList() :
+                                        bsh.getInterpreted()
+        );
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return workflow name, or null if it was never loaded
+     */
+    public String getWorkflowName()
+    {
+        return workflowName;
+    }
+
+    /**
+     * @return AHP workflow ID
+     */
+    public long getWorkflowId()
+    {
+        return workflowId;
+    }
+
+    /**
+     * @return Jenkins job name, or null if none was created
+     */
+    public String getJenkinsJobName()
+    {
+        return jenkinsJobName;
+    }
+
+    /**
+     * @return error message, or null on success
+     */
+    public String getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return true if the job was already up to date and left alone
+     */
+    public boolean isUpToDate()
+    {
+        return upToDate;
+    }
+
+    /**
+     * @return when it was submitted
+     */
+    public long getQueuedAt()
+    {
+        return queuedAt;
+    }
+
+    /**
+     * @return when it started running, or 0 if it never did
+     */
+    public long getStartedAt()
+    {
+        return startedAt;
+    }
+
+    /**
+     * @return when it finished
+     */
+    public long getFinishedAt()
+    {
+        return finishedAt;
+    }
+
+    /**
+     * @return beanshell scripts translated to Groovy
+     */
+    public List<String> getBeanshellTranslated()
+    {
+        return bshTranslated;
+    }
+
+    /**
+     * @return beanshell scripts left for the interpreter
+     */
+    public List<String> getBeanshellInterpreted()
+    {
+        return bshInterpreted;
+    }
+
+    /**
+     * @return how long it ran, in milliseconds; 0 if it never ran
+     */
+    public long getRunTime()
+    {
+        if(startedAt == 0) {
+            return 0;
+        }
+
+        return finishedAt - startedAt;
+    }
+}
@@ -0,0 +1,162 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * StageMetrics.java
+ *
+ * Counters for one stage of the migration pipeline, so we can tell
+ * whether it is AHP or Jenkins holding things up.  A stage that is
+ * always busy with a long queue behind it is the bottleneck.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class StageMetrics
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // What we call this stage
+    private final String            name;
+
+    // Work in progress and finished
+    private final AtomicInteger     active = new AtomicInteger(0);
+    private final AtomicLong        completed = new AtomicLong(0);
+    private final AtomicLong        failed = new AtomicLong(0);
+
+    // Time spent, milliseconds
+    private final AtomicLong        totalMs = new AtomicLong(0);
+    private final AtomicLong        maxMs = new AtomicLong(0);
+
+    // The pool running the stage, for queue depth and size
+    private volatile ThreadPoolExecutor pool = null;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param name      Stage name, for display
+     */
+    public StageMetrics(String name)
+    {
+        this.name = name;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @param pool      The pool running this stage
+     */
+    public void setPool(ThreadPoolExecutor pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * @return stage name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return pool size, or 0 if there's no pool yet
+     */
+    public int getThreads()
+    {
+        ThreadPoolExecutor p = pool;
+
+        return (p == null) ? 0 : p.getMaximumPoolSize();
+    }
+
+    /**
+     * @return work waiting for this stage
+     */
+    public int getQueued()
+    {
+        ThreadPoolExecutor p = pool;
+
+        return (p == null) ? 0 : p.getQueue().size();
+    }
+
+    /**
+     * @return work this stage is doing right now
+     */
+    public int getActive()
+    {
+        return active.get();
+    }
+
+    /**
+     * @return work this stage has finished
+     */
+    public long getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * @return work this stage has finished with an error
+     */
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * @return mean time per item, milliseconds
+     */
+    public long getAverageMs()
+    {
+        long n = completed.get();
+
+        return (n == 0) ? 0 : (totalMs.get() / n);
+    }
+
+    /**
+     * @return longest time for one item, milliseconds
+     */
+    public long getMaxMs()
+    {
+        return maxMs.get();
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Call when an item enters the stage.
+     */
+    public void begin()
+    {
+        active.incrementAndGet();
+    }
+
+    /**
+     * Call when an item leaves the stage.
+     *
+     * @param elapsedMs     How long it took
+     * @param isFailed      Whether it failed
+     */
+    public void end(long elapsedMs, boolean isFailed)
+    {
+        active.decrementAndGet();
+        completed.incrementAndGet();
+        totalMs.addAndGet(elapsedMs);
+        maxMs.accumulateAndGet(elapsedMs, Math::max);
+
+        if(isFailed) {
+            failed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.metrics;
+
+/*
+ * A2jMetrics.java
+ *
+ * Counters for the a2j and a2jAll steps on this controller, since it
+ * started: how many calls, how long they took, how often the property
+ * resolver already had what it needed, and what went wrong when they
+ * failed.  Calls are split by whether they had beanshell in them,
+ * since that's where the time goes.
+ *
+ * Shown on the A2jMetricsLink management page, and as JSON under its
+ * api/ URL.  Each build also gets a summary of its own calls; see
+ * A2jRunAction.
+ *
+ * Nothing here is saved; a restart starts the counts over.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import hudson.model.Run;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyCycleException;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertyNotFoundException;
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.property.PropertySyntaxException;
+
+import bsh.EvalError;
+
+
+@ExportedBean
+public final class A2jMetrics
+{
+    private static final Logger LOG =
+                                Logger.getLogger(A2jMetrics.class.getName());
+
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // Upper bounds of the latency buckets, milliseconds.  Anything
+    // slower goes in one last bucket.
+    private static final long[] BUCKETS = {
+        1, 5, 10, 50, 100, 500, 1000, 5000, 30000
+    };
+
+    /*****************************************************************
+     * ENUMS
+     ****************************************************************/
+
+    /*
+     * What sort of call it was
+     */
+    public enum Kind
+    {
+        // Properties only; runs synchronously, on the step's own thread
+        PROPERTIES,
+
+        // Had beanshell in it, or in one of its properties; runs on
+        // the beanshell pool
+        BEANSHELL
+    }
+
+    /*
+     * Why a call failed
+     */
+    public enum Cause
+    {
+        SYNTAX,         // Malformed ${...}
+        CYCLE,          // Properties referring to each other
+        UNRESOLVED,     // A property that isn't there
+        BEANSHELL,      // The script itself failed
+        TIMEOUT,        // Over the wall clock budget
+        CPU_BUDGET,     // Over the CPU budget
+        OVERLOADED,     // Too much beanshell queued up
+        ABORTED,        // The build was stopped
+        OTHER           // Anything else
+    }
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    private static final A2jMetrics INSTANCE = new A2jMetrics();
+
+    // Per kind of call
+    private final Map<Kind, KindStats>      kinds =
+                                    new EnumMap<Kind, KindStats>(Kind.class);
+
+    // Failures by cause
+    private final Map<Cause, AtomicLong>    failures =
+                                    new EnumMap<Cause, AtomicLong>(Cause.class);
+
+    // Property lookups the resolver already had, and didn't
+    private final AtomicLong                cacheHits = new AtomicLong(0);
+    private final AtomicLong                cacheMisses = new AtomicLong(0);
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    private A2jMetrics()
+    {
+        for(Kind k : Kind.values()) {
+            kinds.put(k, new KindStats(k));
+        }
+
+        for(Cause c : Cause.values()) {
+            failures.put(c, new AtomicLong(0));
+        }
+    }
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * @return the controller's metrics
+     */
+    public static A2jMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Record a finished a2j or a2jAll call, here and against the build
+     * it belongs to.  Never throws; a problem counting isn't worth
+     * failing a build over.
+     *
+     * @param context       The step's context
+     * @param kind          What sort of call
+     * @param startedAt     System.nanoTime() when it started
+     * @param hits          Resolver cache hits during the call
+     * @param misses        Resolver cache misses during the call
+     * @param failure       Why it failed, or null if it didn't
+     */
+    public static void record(StepContext context, Kind kind,
+                              long startedAt, long hits, long misses,
+                              Cause failure)
+    {
+        long nanos = System.nanoTime() - startedAt;
+
+        INSTANCE.add(kind, nanos, hits, misses, failure);
+
+        try {
+            Run<?, ?> run = context.get(Run.class);
+
+            if(run != null) {
+                A2jRunAction.forRun(run).add(kind, nanos, failure != null);
+            }
+        } catch(IOException | InterruptedException | RuntimeException e) {
+            LOG.log(Level.FINE, "Could not record a2j call against build", e);
+        }
+    }
+
+    /**
+     * Work out why a call failed from what it threw.
+     *
+     * @param e         What was thrown
+     * @return the cause
+     */
+    public static Cause classify(Throwable e)
+    {
+        // Beanshell errors come wrapped
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof PropertySyntaxException) {
+                return Cause.SYNTAX;
+            }
+
+            if(t instanceof PropertyCycleException) {
+                return Cause.CYCLE;
+            }
+
+            if(t instanceof PropertyNotFoundException) {
+                return Cause.UNRESOLVED;
+            }
+
+            if(t instanceof EvalError) {
+                return Cause.BEANSHELL;
+            }
+
+            if(t instanceof InterruptedException) {
+                return Cause.ABORTED;
+            }
+        }
+
+        return Cause.OTHER;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return stats for each kind of call
+     */
+    @Exported
+    public List<KindStats> getCalls()
+    {
+        return Collections.unmodifiableList(
+                                    new ArrayList<KindStats>(kinds.values())
+        );
+    }
+
+    /**
+     * @return cause name -> failures
+     */
+    @Exported
+    public Map<String, Long> getFailures()
+    {
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+
+        for(Map.Entry<Cause, AtomicLong> e : failures.entrySet()) {
+            ret.put(e.getKey().name(), e.getValue().get());
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return lookups the resolver already had the answer for
+     */
+    @Exported
+    public long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return lookups the resolver had to work out
+     */
+    @Exported
+    public long getCacheMisses()
+    {
+        return cacheMisses.get();
+    }
+
+    /**
+     * @return the histogram bucket names, in order
+     */
+    public List<String> getBucketNames()
+    {
+        List<String> ret = new ArrayList<String>(BUCKETS.length + 1);
+
+        for(long b : BUCKETS) {
+            ret.add("<=" + b + "ms");
+        }
+
+        ret.add(">" + BUCKETS[BUCKETS.length - 1] + "ms");
+        return ret;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Count a call.
+     *
+     * @param kind          What sort of call
+     * @param nanos         How long it took
+     * @param hits          Resolver cache hits during it
+     * @param misses        Resolver cache misses during it
+     * @param failure       Why it failed, or null
+     */
+    public void add(Kind kind, long nanos, long hits, long misses,
+                    Cause failure)
+    {
+        kinds.get(kind).add(nanos, failure != null);
+        cacheHits.addAndGet(hits);
+        cacheMisses.addAndGet(misses);
+
+        if(failure != null) {
+            failures.get(failure).incrementAndGet();
+        }
+    }
+
+    /*****************************************************************
+     * CLASSES
+     ****************************************************************/
+
+    /*
+     * Counts and latency histogram for one kind of call
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class KindStats
+    {
+        private final Kind              kind;
+        private final AtomicLong        calls = new AtomicLong(0);
+        private final AtomicLong        failed = new AtomicLong(0);
+        private final AtomicLong        totalNanos = new AtomicLong(0);
+        private final AtomicLong        maxNanos = new AtomicLong(0);
+        private final AtomicLongArray   buckets =
+                                    new AtomicLongArray(BUCKETS.length + 1);
+
+        KindStats(Kind kind)
+        {
+            this.kind = kind;
+        }
+
+        void add(long nanos, boolean failure)
+        {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+
+            if(failure) {
+                failed.incrementAndGet();
+            }
+
+            long max;
+
+            while(nanos > (max = maxNanos.get())) {
+                if(maxNanos.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+
+            long ms = nanos / 1000000L;
+            int i = 0;
+
+            while((i < BUCKETS.length) && (ms > BUCKETS[i])) {
+                i++;
+            }
+
+            buckets.incrementAndGet(i);
+        }
+
+        /**
+         * @return PROPERTIES or BEANSHELL
+         */
+        @Exported
+        public String getKind()
+        {
+            return kind.name();
+        }
+
+        /**
+         * @return calls made
+         */
+        @Exported
+        public long getCalls()
+        {
+            return calls.get();
+        }
+
+        /**
+         * @return calls that failed
+         */
+        @Exported
+        public long getFailed()
+        {
+            return failed.get();
+        }
+
+        /**
+         * @return total time, milliseconds
+         */
+        @Exported
+        public long getTotalMillis()
+        {
+            return totalNanos.get() / 1000000L;
+        }
+
+        /**
+         * @return mean time, milliseconds
+         */
+        @Exported
+        public long getMeanMillis()
+        {
+            long c = calls.get();
+
+            return (c == 0) ? 0 : (totalNanos.get() / c / 1000000L);
+        }
+
+        /**
+         * @return slowest call, milliseconds
+         */
+        @Exported
+        public long getMaxMillis()
+        {
+            return maxNanos.get() / 1000000L;
+        }
+
+        /**
+         * @return bucket name -> calls, fastest first
+         */
+        @Exported
+        public Map<String, Long> getHistogram()
+        {
+            Map<String, Long> ret = new LinkedHashMap<String, Long>();
+            List<String> names = INSTANCE.getBucketNames();
+
+            for(int i = 0; i < names.size(); i++) {
+                ret.put(names.get(i), buckets.get(i));
+            }
+
+            return ret;
+        }
+
+        /**
+         * @return calls per bucket, fastest first, for the page
+         */
+        public List<Long> getBucketCounts()
+        {
+            return new ArrayList<Long>(getHistogram().values());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.metrics;
+
+/*
+ * A2jMetricsLink.java
+ *
+ * The "Manage Jenkins" page for A2jMetrics.  The numbers are also
+ * available as JSON or XML from api/, for whatever does the graphs.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.ManagementLink;
+
+import jenkins.model.Jenkins;
+
+
+@Extension
+public class A2jMetricsLink extends ManagementLink
+{
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the metrics, for the page
+     */
+    public A2jMetrics getMetrics()
+    {
+        return A2jMetrics.getInstance();
+    }
+
+    /**
+     * The machine readable version.  Administrators only, like the
+     * page.
+     *
+     * @return api for the metrics
+     */
+    public Api getApi()
+    {
+        Jenkins.getActiveInstance().checkPermission(Jenkins.ADMINISTER);
+        return new Api(A2jMetrics.getInstance());
+    }
+
+    @Override
+    public String getIconFileName()
+    {
+        return "/plugin/ahp2jenkins/img/ahp.png";
+    }
+
+    @Override
+    public String getDisplayName()
+    {
+        return "a2j Step Metrics";
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "How the a2j and a2jAll steps from migrated Anthill Pro " +
+               "workflows are performing on this controller.";
+    }
+
+    @Override
+    public String getUrlName()
+    {
+        return "a2j-metrics";
+    }
+}
@@ -0,0 +1,166 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.metrics;
+
+/*
+ * A2jRunAction.java
+ *
+ * How many a2j and a2jAll calls a build made and how long they took
+ * all together, so it's easy to see when a migrated pipeline is
+ * spending its time resolving properties.  Shows up as a link on the
+ * build page; saved with the build.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import hudson.model.Run;
+
+import jenkins.model.RunAction2;
+
+
+public class A2jRunAction implements RunAction2
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The build we belong to
+    private transient Run<?, ?> run;
+
+    // Calls, how many had beanshell, how many failed, and the time
+    // taken, nanoseconds
+    private long    calls = 0;
+    private long    beanshellCalls = 0;
+    private long    failures = 0;
+    private long    totalNanos = 0;
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Get a build's action, adding it if it doesn't have one.
+     *
+     * @param run       The build
+     * @return its action
+     */
+    public static A2jRunAction forRun(Run<?, ?> run)
+    {
+        synchronized(run) {
+            A2jRunAction ret = run.getAction(A2jRunAction.class);
+
+            if(ret == null) {
+                ret = new A2jRunAction();
+                run.addAction(ret);
+            }
+
+            return ret;
+        }
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the build
+     */
+    public Run<?, ?> getRun()
+    {
+        return run;
+    }
+
+    /**
+     * @return a2j and a2jAll calls made
+     */
+    public synchronized long getCalls()
+    {
+        return calls;
+    }
+
+    /**
+     * @return calls with beanshell in them
+     */
+    public synchronized long getBeanshellCalls()
+    {
+        return beanshellCalls;
+    }
+
+    /**
+     * @return calls that failed
+     */
+    public synchronized long getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * @return total time spent in calls, milliseconds
+     */
+    public synchronized long getTotalMillis()
+    {
+        return totalNanos / 1000000L;
+    }
+
+    /**
+     * @return mean time per call, milliseconds
+     */
+    public synchronized long getMeanMillis()
+    {
+        return (calls == 0) ? 0 : (totalNanos / calls / 1000000L);
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Count a call.
+     *
+     * @param kind      What sort of call
+     * @param nanos     How long it took
+     * @param failed    True if it failed
+     */
+    public synchronized void add(A2jMetrics.Kind kind, long nanos,
+                                 boolean failed)
+    {
+        calls++;
+        totalNanos += nanos;
+
+        if(kind == A2jMetrics.Kind.BEANSHELL) {
+            beanshellCalls++;
+        }
+
+        if(failed) {
+            failures++;
+        }
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run)
+    {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run)
+    {
+        this.run = run;
+    }
+
+    @Override
+    public String getIconFileName()
+    {
+        return "/plugin/ahp2jenkins/img/ahp.png";
+    }
+
+    @Override
+    public String getDisplayName()
+    {
+        return "a2j Summary";
+    }
+
+    @Override
+    public String getUrlName()
+    {
+        return "a2j";
+    }
+}
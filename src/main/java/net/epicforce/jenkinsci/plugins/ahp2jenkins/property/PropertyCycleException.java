@@ -0,0 +1,60 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyCycleException.java
+ *
+ * Properties that refer to each other in a loop, so none of them can
+ * ever be resolved.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class PropertyCycleException extends MigrateException
+{
+    private static final long serialVersionUID = 1L;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The loop, starting and ending with the same property
+    private final List<String>  cycle;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param cycle     Property names around the loop, first and last
+     *                  the same
+     */
+    public PropertyCycleException(List<String> cycle)
+    {
+        super("Properties refer to each other in a loop: " +
+              String.join(" -> ", cycle)
+        );
+
+        this.cycle = Collections.unmodifiableList(
+                                            new ArrayList<String>(cycle)
+        );
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return property names around the loop, first and last the same
+     */
+    public List<String> getCycle()
+    {
+        return cycle;
+    }
+}
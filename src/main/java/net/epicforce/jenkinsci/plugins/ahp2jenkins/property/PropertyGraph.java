@@ -0,0 +1,181 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyGraph.java
+ *
+ * Which properties refer to which.  Built while migrating, as we find
+ * the properties a workflow needs, and used to check for loops and to
+ * work out an order to resolve them in: everything a property refers
+ * to comes before it, so at build time each one can be resolved once,
+ * without recursion.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class PropertyGraph
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Property name -> names it refers to, in the order we found them
+    private final Map<String, Set<String>> edges =
+                                    new LinkedHashMap<String, Set<String>>();
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Note a property, even if it doesn't refer to anything.
+     *
+     * @param name      Property name
+     */
+    public void addNode(String name)
+    {
+        if(!edges.containsKey(name)) {
+            edges.put(name, new LinkedHashSet<String>(2));
+        }
+    }
+
+    /**
+     * Note that one property refers to another.
+     *
+     * @param from      The property doing the referring
+     * @param to        The property it refers to
+     */
+    public void addEdge(String from, String to)
+    {
+        addNode(from);
+        addNode(to);
+        edges.get(from).add(to);
+    }
+
+    /**
+     * @param name      Property name
+     * @return what it refers to; empty if nothing or if we don't know it
+     */
+    public Set<String> getDependencies(String name)
+    {
+        Set<String> ret = edges.get(name);
+
+        if(ret == null) {
+            return Collections.emptySet();
+        }
+
+        return Collections.unmodifiableSet(ret);
+    }
+
+    /**
+     * @return how many properties we know of
+     */
+    public int size()
+    {
+        return edges.size();
+    }
+
+    /**
+     * Work out a resolution order: every property comes after
+     * everything it refers to.  Ties go in the order we found them, so
+     * the same workflow always gets the same order.
+     *
+     * @return property names, dependencies first
+     * @throws PropertyCycleException if properties refer to each other
+     *         in a loop; it names the loop
+     */
+    public List<String> order()
+           throws PropertyCycleException
+    {
+        List<String> ret = new ArrayList<String>(edges.size());
+
+        // Not in the map: not visited yet.  FALSE: on the current path.
+        // TRUE: done.
+        Map<String, Boolean> state = new HashMap<String, Boolean>();
+
+        // Depth first, with our own stack so a long chain of
+        // properties can't overflow the thread's.
+        Deque<String> path = new ArrayDeque<String>();
+        Deque<Iterator<String>> pending = new ArrayDeque<Iterator<String>>();
+
+        for(String root : edges.keySet()) {
+            if(state.containsKey(root)) {
+                continue;
+            }
+
+            state.put(root, Boolean.FALSE);
+            path.push(root);
+            pending.push(edges.get(root).iterator());
+
+            while(!pending.isEmpty()) {
+                Iterator<String> it = pending.peek();
+
+                if(!it.hasNext()) {
+                    // Everything it needs is in; now it can go in.
+                    String done = path.pop();
+
+                    pending.pop();
+                    state.put(done, Boolean.TRUE);
+                    ret.add(done);
+                    continue;
+                }
+
+                String next = it.next();
+                Boolean s = state.get(next);
+
+                if(s == null) {
+                    state.put(next, Boolean.FALSE);
+                    path.push(next);
+                    pending.push(edges.get(next).iterator());
+                } else if(!s) {
+                    throw new PropertyCycleException(cycle(path, next));
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Pull a loop out of the current path.
+     *
+     * @param path      Current path, most recent first
+     * @param back      The property we came back around to
+     * @return the loop, starting and ending with 'back'
+     */
+    private static List<String> cycle(Deque<String> path, String back)
+    {
+        List<String> ret = new ArrayList<String>();
+
+        // The path is a stack; walk it oldest first
+        Iterator<String> it = path.descendingIterator();
+        boolean in = false;
+
+        while(it.hasNext()) {
+            String name = it.next();
+
+            if(name.equals(back)) {
+                in = true;
+            }
+
+            if(in) {
+                ret.add(name);
+            }
+        }
+
+        ret.add(back);
+        return ret;
+    }
+}
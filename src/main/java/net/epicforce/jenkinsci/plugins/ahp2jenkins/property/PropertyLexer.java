@@ -0,0 +1,525 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyLexer.java
+ *
+ * Splits an AHP property string into plain text and references:
+ *
+ *   ${property:name} ${p:name}      a property
+ *   ${agent:name} ${a:name}         an agent property
+ *   ${p?:name} ${a?:name}           ...that may be missing
+ *   ${bsh:script}                   beanshell
+ *
+ * A bare ${name} is plain text, which is how AHP treats it too; a
+ * ${type:...} with a type we don't know is an error.  Names may
+ * themselves contain references, and beanshell may contain braces and
+ * string literals; both nest.
+ *
+ * This is a cursor: call next() until it returns false, and read the
+ * current token off the accessors.  Nothing is allocated per token
+ * unless you ask for its text, so scanning a string that has no
+ * references costs one pass over it and nothing else.
+ *
+ * Used both when migrating (to find what properties a workflow needs)
+ * and at build time by the a2j step (to resolve them).
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public final class PropertyLexer
+{
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    /**
+     * What a token is.
+     */
+    public enum Kind
+    {
+        TEXT,           // plain text
+        PROPERTY,       // ${property:...} / ${p:...}
+        AGENT,          // ${agent:...} / ${a:...}
+        BSH             // ${bsh:...}
+    }
+
+    // What beanshell property lookups look like
+    private static final String LOOKUP = "PropertyLookup.getValue(";
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // What we're reading, and where we are in it
+    private String      input;
+    private int         pos;
+
+    // The current token.  For text, the body is the text itself; for
+    // a reference, it's the name or script between the ':' and the
+    // closing brace.
+    private Kind        kind;
+    private boolean     optional;
+    private int         start;
+    private int         end;
+    private int         bodyStart;
+    private int         bodyEnd;
+
+    // Set by isReferenceAt: the reference it found, so next() doesn't
+    // have to work it out again.
+    private int         refAt = -1;
+    private Kind        refKind;
+    private int         refColon;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param input     The string to read; null reads as empty
+     */
+    public PropertyLexer(String input)
+    {
+        reset(input);
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the string we're reading
+     */
+    public String getInput()
+    {
+        return input;
+    }
+
+    /**
+     * @return the current token's kind
+     */
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return true if the current token is a reference
+     */
+    public boolean isReference()
+    {
+        return kind != Kind.TEXT;
+    }
+
+    /**
+     * @return true if the current reference may be missing (${p?:...})
+     */
+    public boolean isOptional()
+    {
+        return optional;
+    }
+
+    /**
+     * @return offset of the current token's first character
+     */
+    public int getStart()
+    {
+        return start;
+    }
+
+    /**
+     * @return offset just past the current token
+     */
+    public int getEnd()
+    {
+        return end;
+    }
+
+    /**
+     * @return offset of the current token's body
+     */
+    public int getBodyStart()
+    {
+        return bodyStart;
+    }
+
+    /**
+     * @return offset just past the current token's body
+     */
+    public int getBodyEnd()
+    {
+        return bodyEnd;
+    }
+
+    /**
+     * @return the current token's body: the text, the property name,
+     *         or the beanshell script
+     */
+    public String getBody()
+    {
+        return input.substring(bodyStart, bodyEnd);
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Start over on a new string, so one lexer can be reused.
+     *
+     * @param input     The string to read; null reads as empty
+     * @return this
+     */
+    public PropertyLexer reset(String input)
+    {
+        this.input = (input == null) ? "" : input;
+        pos = 0;
+        kind = null;
+        refAt = -1;
+        return this;
+    }
+
+    /**
+     * Move to the next token.
+     *
+     * @return false if there are no more
+     * @throws PropertySyntaxException on a reference that is cut off,
+     *         empty, or of an unknown type
+     */
+    public boolean next()
+           throws PropertySyntaxException
+    {
+        final String s = input;
+        final int len = s.length();
+
+        if(pos >= len) {
+            return false;
+        }
+
+        // Text runs until the next reference.  If the last call ended
+        // on text, we already know where that is.
+        int textEnd = pos;
+
+        while(refAt != pos) {
+            textEnd = s.indexOf("${", textEnd);
+
+            if(textEnd < 0) {
+                textEnd = len;
+                break;
+            }
+
+            if(isReferenceAt(textEnd)) {
+                break;
+            }
+
+            // Not one of ours; it's text
+            textEnd += 2;
+        }
+
+        if(textEnd > pos) {
+            setToken(Kind.TEXT, false, pos, textEnd, pos, textEnd);
+            pos = textEnd;
+            return true;
+        }
+
+        // We're on a reference; isReferenceAt worked out what kind.
+        int colon = refColon;
+        boolean opt = (s.charAt(colon - 1) == '?');
+        Kind k = refKind;
+
+        int close = (k == Kind.BSH) ? scriptEnd(colon + 1) : nameEnd(colon + 1);
+
+        if(close == (colon + 1)) {
+            throw new PropertySyntaxException("Empty property reference",
+                                              s, pos
+            );
+        }
+
+        setToken(k, opt, pos, close + 1, colon + 1, close);
+        pos = close + 1;
+        return true;
+    }
+
+    /**
+     * Skip to the next reference.
+     *
+     * @return false if there are no more
+     * @throws PropertySyntaxException as next()
+     */
+    public boolean nextReference()
+           throws PropertySyntaxException
+    {
+        while(next()) {
+            if(kind != Kind.TEXT) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param s         A string
+     * @return true if it has any references in it at all
+     * @throws PropertySyntaxException on an unknown reference type
+     */
+    public static boolean hasReferences(String s)
+           throws PropertySyntaxException
+    {
+        if(s == null) {
+            return false;
+        }
+
+        PropertyLexer lex = new PropertyLexer(s);
+
+        for(int i = s.indexOf("${"); i >= 0; i = s.indexOf("${", i + 2)) {
+            if(lex.isReferenceAt(i)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param s         A string
+     * @return true if it has beanshell in it
+     * @throws PropertySyntaxException on a malformed reference
+     */
+    public static boolean hasBeanshell(String s)
+           throws PropertySyntaxException
+    {
+        if(s == null) {
+            return false;
+        }
+
+        PropertyLexer lex = new PropertyLexer(s);
+
+        while(lex.nextReference()) {
+            if(lex.kind == Kind.BSH) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Find the properties a beanshell script looks up by name, as in
+     * PropertyLookup.getValue("name").  Lookups by anything other than
+     * a string literal can't be known until the script runs, and are
+     * skipped.
+     *
+     * @param script    Beanshell script
+     * @return property names, in order; may be empty
+     */
+    public static List<String> lookups(String script)
+    {
+        List<String> ret = new ArrayList<String>(2);
+
+        for(int i = script.indexOf(LOOKUP); i >= 0;
+            i = script.indexOf(LOOKUP, i + 1)) {
+            int nameStart = i + LOOKUP.length();
+
+            if((nameStart >= script.length()) ||
+               (script.charAt(nameStart) != '"')) {
+                continue;
+            }
+
+            int nameEnd = script.indexOf('"', nameStart + 1);
+
+            // Must be a plain literal, closed right after
+            if((nameEnd > nameStart + 1) &&
+               (nameEnd + 1 < script.length()) &&
+               (script.charAt(nameEnd + 1) == ')')) {
+                ret.add(script.substring(nameStart + 1, nameEnd));
+            }
+        }
+
+        return ret;
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * Check whether a ${ starts one of our references, as opposed to
+     * a shell variable or some such.  Throws if it looks like one of
+     * ours but has a type we don't know.  On success, refKind and
+     * refColon describe it.
+     *
+     * @param at        Offset of the '$'
+     * @return true if it's a reference
+     * @throws PropertySyntaxException on an unknown reference type
+     */
+    private boolean isReferenceAt(int at)
+            throws PropertySyntaxException
+    {
+        final String s = input;
+        final int len = s.length();
+        int i = at + 2;
+
+        // A type is a short run of letters, maybe with a '?'
+        while((i < len) && Character.isLetter(s.charAt(i))) {
+            i++;
+        }
+
+        int typeEnd = i;
+
+        if((i < len) && (s.charAt(i) == '?')) {
+            i++;
+        }
+
+        if((typeEnd == at + 2) || (i >= len) || (s.charAt(i) != ':')) {
+            return false;
+        }
+
+        Kind k = typeOf(s, at + 2, typeEnd);
+
+        if(k == null) {
+            throw new PropertySyntaxException(
+                "Unknown property type: " + s.substring(at + 2, typeEnd),
+                s, at + 2
+            );
+        }
+
+        refAt = at;
+        refKind = k;
+        refColon = i;
+        return true;
+    }
+
+    /**
+     * @param s         Input
+     * @param from      Start of the type name
+     * @param to        End of the type name, not counting any '?'
+     * @return its kind, or null if it isn't one of ours
+     */
+    private static Kind typeOf(String s, int from, int to)
+    {
+        switch(to - from) {
+            case 1:
+                switch(s.charAt(from)) {
+                    case 'p':
+                        return Kind.PROPERTY;
+                    case 'a':
+                        return Kind.AGENT;
+                    default:
+                        return null;
+                }
+            case 3:
+                return s.startsWith("bsh", from) ? Kind.BSH : null;
+            case 5:
+                return s.startsWith("agent", from) ? Kind.AGENT : null;
+            case 8:
+                return s.startsWith("property", from) ? Kind.PROPERTY : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Find the closing brace of a property name.  Names can contain
+     * references, so ${ opens another level.
+     *
+     * @param from      Start of the name
+     * @return offset of the closing brace
+     * @throws PropertySyntaxException if there isn't one
+     */
+    private int nameEnd(int from)
+            throws PropertySyntaxException
+    {
+        final String s = input;
+        final int len = s.length();
+        int depth = 1;
+
+        for(int i = from; i < len; i++) {
+            char c = s.charAt(i);
+
+            if((c == '$') && (i + 1 < len) && (s.charAt(i + 1) == '{')) {
+                depth++;
+                i++;
+            } else if((c == '}') && (--depth == 0)) {
+                return i;
+            }
+        }
+
+        throw new PropertySyntaxException("Unterminated property reference",
+                                          s, pos
+        );
+    }
+
+    /**
+     * Find the closing brace of a beanshell script.  Braces nest, and
+     * braces inside string or character literals don't count.
+     *
+     * @param from      Start of the script
+     * @return offset of the closing brace
+     * @throws PropertySyntaxException if there isn't one
+     */
+    private int scriptEnd(int from)
+            throws PropertySyntaxException
+    {
+        final String s = input;
+        final int len = s.length();
+        int depth = 1;
+
+        for(int i = from; i < len; i++) {
+            char c = s.charAt(i);
+
+            switch(c) {
+                case '{':
+                    depth++;
+                    break;
+                case '}':
+                    if(--depth == 0) {
+                        return i;
+                    }
+
+                    break;
+                case '"':
+                case '\'':
+                    // Skip the literal, minding escapes
+                    int open = i;
+
+                    for(i++; (i < len) && (s.charAt(i) != c); i++) {
+                        if(s.charAt(i) == '\\') {
+                            i++;
+                        }
+                    }
+
+                    if(i >= len) {
+                        throw new PropertySyntaxException(
+                            "Unterminated string in beanshell", s, open
+                        );
+                    }
+
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        throw new PropertySyntaxException("Unterminated beanshell reference",
+                                          s, pos
+        );
+    }
+
+    /**
+     * Set the current token.
+     */
+    private void setToken(Kind kind, boolean optional, int start, int end,
+                          int bodyStart, int bodyEnd)
+    {
+        this.kind = kind;
+        this.optional = optional;
+        this.start = start;
+        this.end = end;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+    }
+}
@@ -0,0 +1,50 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyNotFoundException.java
+ *
+ * A property reference that isn't optional, to a property the build
+ * doesn't have.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class PropertyNotFoundException extends MigrateException
+{
+    private static final long serialVersionUID = 1L;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Which property
+    private final String    name;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param name      The property we couldn't find
+     */
+    public PropertyNotFoundException(String name)
+    {
+        super("Could not resolve property: " + name);
+        this.name = name;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the property we couldn't find
+     */
+    public String getName()
+    {
+        return name;
+    }
+}
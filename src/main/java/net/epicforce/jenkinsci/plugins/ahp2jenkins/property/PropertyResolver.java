@@ -0,0 +1,308 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyResolver.java
+ *
+ * Resolves ${p:...} and ${a:...} references at build time, against
+ * the build's environment (which is where the job's parameters end
+ * up).  Property values can refer to other properties, to any depth.
+ *
+ * Each property is resolved once and remembered; the memory can be
+ * handed in, so it can outlive one resolver (see
+ * ResolvedPropertyCache).  If we have the
+ * resolution order worked out at migration time, a property's
+ * dependencies are resolved first, in that order, so resolving never
+ * recurses more than a level deep however long the chain.  Without
+ * one (jobs migrated before we kept it, or names that only exist at
+ * build time) we recurse, watching for loops.
+ *
+ * Beanshell is left as-is for the beanshell pass.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class PropertyResolver
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Where raw property values come from
+    private final Map<String, String>   env;
+
+    // Property name -> position in the resolution order, or null if
+    // we don't have an order
+    private final Map<String, Integer>  rank;
+
+    // What we've resolved so far
+    private final Map<String, String>   resolved;
+
+    // How often get() found a property already resolved, and how
+    // often it had to work one out
+    private long                        hits = 0;
+    private long                        misses = 0;
+
+    // What we're in the middle of resolving, in order, for spotting
+    // loops
+    private final Set<String>           resolving =
+                                        new LinkedHashSet<String>();
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param env       Property name -> raw value
+     * @param order     Resolution order from migration, everything
+     *                  before what refers to it; null if we don't
+     *                  have one
+     */
+    public PropertyResolver(Map<String, String> env, List<String> order)
+    {
+        this(env, order, new HashMap<String, String>());
+    }
+
+    /**
+     * @param env       Property name -> raw value
+     * @param order     Resolution order from migration, or null
+     * @param resolved  Where to remember resolved values; may already
+     *                  have some in it, which must have come from the
+     *                  same env.  Must be safe for concurrent use if
+     *                  it's shared between threads.
+     */
+    public PropertyResolver(Map<String, String> env, List<String> order,
+                            Map<String, String> resolved)
+    {
+        this.env = env;
+        this.resolved = resolved;
+
+        if(order == null) {
+            rank = null;
+        } else {
+            rank = new HashMap<String, Integer>(order.size() * 2);
+
+            for(int i = 0; i < order.size(); i++) {
+                rank.put(order.get(i), i);
+            }
+        }
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return lookups answered from what was already resolved
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return lookups that had to resolve the property
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Replace every property reference in a string with its value.
+     *
+     * @param value     The string
+     * @return the string with properties resolved
+     * @throws MigrateException if a property can't be resolved; a
+     *         PropertyCycleException if that's because of a loop
+     */
+    public String resolve(String value)
+           throws MigrateException
+    {
+        PropertyLexer lex = new PropertyLexer(value);
+        StringBuilder sb = null;
+
+        while(lex.next()) {
+            switch(lex.getKind()) {
+                case PROPERTY:
+                case AGENT:
+                    // Copy what came before, the first time we need to
+                    if(sb == null) {
+                        sb = new StringBuilder(value.length() + 32);
+                        sb.append(value, 0, lex.getStart());
+                    }
+
+                    String name = lex.getBody();
+
+                    // Names can be built from other properties
+                    if(PropertyLexer.hasReferences(name)) {
+                        name = resolve(name);
+                    }
+
+                    sb.append(get(name, lex.isOptional()));
+                    break;
+                default:
+                    if(sb != null) {
+                        sb.append(value, lex.getStart(), lex.getEnd());
+                    }
+            }
+        }
+
+        // Nothing to replace, so nothing copied
+        return (sb == null) ? value : sb.toString();
+    }
+
+    /**
+     * Get a property's resolved value.
+     *
+     * @param name      Property name
+     * @param optional  True to get "" for a missing property rather
+     *                  than an error
+     * @return its value
+     * @throws MigrateException if it can't be resolved; a
+     *         PropertyNotFoundException if it doesn't exist
+     */
+    public String get(String name, boolean optional)
+           throws MigrateException
+    {
+        String ret = resolved.get(name);
+
+        if(ret != null) {
+            hits++;
+            return ret;
+        }
+
+        misses++;
+
+        String raw = env.get(name);
+
+        if(raw == null) {
+            if(optional) {
+                return "";
+            }
+
+            throw new PropertyNotFoundException(name);
+        }
+
+        if((rank != null) && rank.containsKey(name)) {
+            resolveDependencies(name);
+        }
+
+        return resolveOne(name, raw);
+    }
+
+    /**
+     * Resolve one property, whose dependencies may or may not be
+     * resolved yet.
+     *
+     * @param name      Property name
+     * @param raw       Its raw value
+     * @return its value
+     * @throws MigrateException if it can't be resolved
+     */
+    private String resolveOne(String name, String raw)
+            throws MigrateException
+    {
+        if(!resolving.add(name)) {
+            // Came back around to something we're working on
+            List<String> cycle = new ArrayList<String>();
+            boolean in = false;
+
+            for(String n : resolving) {
+                in = in || n.equals(name);
+
+                if(in) {
+                    cycle.add(n);
+                }
+            }
+
+            cycle.add(name);
+            throw new PropertyCycleException(cycle);
+        }
+
+        String ret;
+
+        try {
+            ret = resolve(raw);
+        } finally {
+            resolving.remove(name);
+        }
+
+        resolved.put(name, ret);
+        return ret;
+    }
+
+    /**
+     * Resolve everything a property depends on, in resolution order,
+     * so each one finds its own dependencies already done.
+     *
+     * @param name      Property name; must have a rank
+     * @throws MigrateException if something can't be resolved
+     */
+    private void resolveDependencies(String name)
+            throws MigrateException
+    {
+        // Find everything it needs, however indirectly
+        Set<String> needed = new HashSet<String>();
+        Deque<String> todo = new ArrayDeque<String>();
+        PropertyLexer lex = new PropertyLexer(null);
+
+        todo.push(name);
+
+        while(!todo.isEmpty()) {
+            String n = todo.pop();
+            String raw = env.get(n);
+
+            if((!needed.add(n)) || resolved.containsKey(n) || (raw == null)) {
+                continue;
+            }
+
+            lex.reset(raw);
+
+            while(lex.nextReference()) {
+                // Built names and beanshell are sorted out as we go
+                if((lex.getKind() != PropertyLexer.Kind.BSH) &&
+                   (!PropertyLexer.hasReferences(lex.getBody()))) {
+                    todo.push(lex.getBody());
+                }
+            }
+        }
+
+        needed.remove(name);
+
+        // Earliest first.  Anything without a rank gets resolved when
+        // it's reached.
+        List<String> ordered = new ArrayList<String>(needed.size());
+
+        for(String n : needed) {
+            if(rank.containsKey(n) && (!resolved.containsKey(n)) &&
+               env.containsKey(n)) {
+                ordered.add(n);
+            }
+        }
+
+        ordered.sort((a, b) -> Integer.compare(rank.get(a), rank.get(b)));
+
+        for(String n : ordered) {
+            if(!resolved.containsKey(n)) {
+                resolveOne(n, env.get(n));
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertySyntaxException.java
+ *
+ * A property string we couldn't make sense of.  Carries where in the
+ * string things went wrong, since property strings can be long and
+ * "something is wrong with this" isn't much help.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import net.epicforce.migrate.ahp.exception.MigrateException;
+
+
+public class PropertySyntaxException extends MigrateException
+{
+    private static final long serialVersionUID = 1L;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // The string, and the character offset of the problem
+    private final String    input;
+    private final int       offset;
+
+    /*****************************************************************
+     * CONSTRUCTORS
+     ****************************************************************/
+
+    /**
+     * @param message       What went wrong
+     * @param input         The string we were reading
+     * @param offset        Where in it things went wrong
+     */
+    public PropertySyntaxException(String message, String input, int offset)
+    {
+        super(message + " at offset " + offset + " in property string: " +
+              input
+        );
+
+        this.input = input;
+        this.offset = offset;
+    }
+
+    /*****************************************************************
+     * ACCESSORS
+     ****************************************************************/
+
+    /**
+     * @return the string we were reading
+     */
+    public String getInput()
+    {
+        return input;
+    }
+
+    /**
+     * @return character offset of the problem
+     */
+    public int getOffset()
+    {
+        return offset;
+    }
+}
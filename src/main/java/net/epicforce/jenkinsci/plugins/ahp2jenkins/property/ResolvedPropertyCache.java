@@ -0,0 +1,173 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * ResolvedPropertyCache.java
+ *
+ * Resolved property values for one build, shared by every a2j step
+ * in it.  Migrated pipelines call a2j many times per build (a maven
+ * step alone can make eight calls), mostly on the same handful of
+ * properties, so after the first call most lookups are just a map
+ * hit.
+ *
+ * Values are kept per environment: a withEnv block, or a different
+ * node, gives the steps in it a different environment and so a
+ * different set of values.  Each environment is compared in full
+ * before its values are reused, so a change to any variable means a
+ * fresh start.
+ *
+ * None of this is saved with the build; it's only good while the
+ * build is running.  That's why it isn't an action on the build:
+ * actions go in build.xml, even invisible ones with nothing in them,
+ * and would be left there as old data if this plugin went away.
+ * Instead each running build's cache is kept here, and dropped when
+ * the build finishes.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+
+public class ResolvedPropertyCache
+{
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    // How many different environments to keep values for.  Builds
+    // rarely have more than a few; past this, the oldest is dropped.
+    private static final int MAX_ENVIRONMENTS = 8;
+
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    // Build -> its cache.  Weak, so a build we never hear the end of
+    // can't keep its cache around once Jenkins lets go of the build.
+    private static final Map<Run<?, ?>, ResolvedPropertyCache> caches =
+            Collections.synchronizedMap(
+                        new WeakHashMap<Run<?, ?>, ResolvedPropertyCache>()
+    );
+
+    // Environments we have values for, most recently used first
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    /*****************************************************************
+     * STATIC METHODS
+     ****************************************************************/
+
+    /**
+     * Get a build's cache, making it if it doesn't have one.
+     *
+     * @param run       The build
+     * @return its cache
+     */
+    public static ResolvedPropertyCache forRun(Run<?, ?> run)
+    {
+        synchronized(caches) {
+            ResolvedPropertyCache ret = caches.get(run);
+
+            if(ret == null) {
+                ret = new ResolvedPropertyCache();
+                caches.put(run, ret);
+            }
+
+            return ret;
+        }
+    }
+
+    /*****************************************************************
+     * METHODS
+     ****************************************************************/
+
+    /**
+     * Get the resolved values for an environment.  The returned map
+     * is shared with every other step using the same environment, and
+     * is safe to use from several threads at once.
+     *
+     * @param env       The environment the values come from
+     * @return resolved property name -> value; empty the first time
+     */
+    public synchronized Map<String, String> getResolved(
+                                                Map<String, String> env)
+    {
+        int hash = env.hashCode();
+        Iterator<Entry> it = entries.iterator();
+
+        while(it.hasNext()) {
+            Entry e = it.next();
+
+            if((e.hash == hash) && e.env.equals(env)) {
+                // Move to the front
+                if(entries.getFirst() != e) {
+                    it.remove();
+                    entries.addFirst(e);
+                }
+
+                return e.resolved;
+            }
+        }
+
+        Entry e = new Entry(hash, env);
+        entries.addFirst(e);
+
+        if(entries.size() > MAX_ENVIRONMENTS) {
+            entries.removeLast();
+        }
+
+        return e.resolved;
+    }
+
+    /*****************************************************************
+     * CLASSES
+     ****************************************************************/
+
+    /*
+     * Drops a build's cache once the build is over.
+     */
+    @Extension
+    public static final class Cleanup extends RunListener<Run<?, ?>>
+    {
+        /**
+         * @param run       The finished build
+         */
+        @Override
+        public void onFinalized(Run<?, ?> run)
+        {
+            caches.remove(run);
+        }
+    }
+
+    /*****************************************************************
+     * PRIVATE CLASSES
+     ****************************************************************/
+
+    /*
+     * One environment and what's been resolved against it.
+     */
+    private static final class Entry
+    {
+        final int                   hash;
+        final Map<String, String>   env;
+        final Map<String, String>   resolved =
+                                    new ConcurrentHashMap<String, String>();
+
+        Entry(int hash, Map<String, String> env)
+        {
+            this.hash = hash;
+
+            // Our own copy, so later changes to theirs don't fool us
+            this.env = new HashMap<String, String>(env);
+        }
+    }
+}
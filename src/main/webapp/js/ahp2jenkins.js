@@ -34,6 +34,21 @@ jQuery(document).ready(function() {
         }
     });
 
+    // Drop cached system properties for the instance
+    jQuery('#refreshSystemProperties').click(function(ev) {
+        ev.preventDefault();
+
+        var instance = getInstance();
+
+        if(instance) {
+            rpc.doRefreshSystemProperties(instance, function() {
+                alert('System properties will be reloaded from Anthill Pro.');
+            });
+        }
+
+        return false;
+    });
+
     // Perform project search
     jQuery('#projectSearch').click(function(ev) {
         ev.preventDefault();
@@ -178,9 +193,60 @@ jQuery(document).ready(function() {
                 });
             }
 
+            checkStages();
+            checkScriptCache();
             setTimeout(checkStatus, 5000);
         });
     }
 
+    // Function to populate pipeline stage table
+    function checkStages()
+    {
+        rpc.doStageMetrics(function(ret) {
+            var stages = ret.responseObject();
+            var stageTab = jQuery('#ahpStages tbody');
+            stageTab.empty();
+
+            if((!stages) || (!stages.length)) {
+                stageTab.append(
+                    '<tr><td colspan="8">No migrations yet!</td></tr>'
+                );
+                return;
+            }
+
+            jQuery.each(stages, function(k, val) {
+                var newRow = jQuery('<tr />');
+
+                for(var i = 0; i < val.length; i++) {
+                    var newCell = jQuery('<td />');
+                    newCell.text(val[i]);
+                    newRow.append(newCell);
+                }
+
+                stageTab.append(newRow);
+            });
+        });
+    }
+
+    // Function to populate beanshell script cache table
+    function checkScriptCache()
+    {
+        rpc.doScriptCacheStats(function(ret) {
+            var stats = ret.responseObject();
+            var cacheTab = jQuery('#ahpScriptCache tbody');
+            var newRow = jQuery('<tr />');
+
+            cacheTab.empty();
+
+            for(var i = 0; i < stats.length; i++) {
+                var newCell = jQuery('<td />');
+                newCell.text(stats[i]);
+                newRow.append(newCell);
+            }
+
+            cacheTab.append(newRow);
+        });
+    }
+
     checkStatus();
 });
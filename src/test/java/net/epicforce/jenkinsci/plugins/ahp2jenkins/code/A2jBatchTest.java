@@ -0,0 +1,94 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.code;
+
+/*
+ * A2jBatchTest.java
+ *
+ * Collecting values for a2jAll, and quoting them into Groovy.  Quoting
+ * has to survive anything an AHP value can have in it, since what we
+ * get wrong ends up as a broken or, worse, different pipeline.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class A2jBatchTest
+{
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void quotePlain()
+    {
+        assertEquals("''", quote(""));
+        assertEquals("'master'", quote("master"));
+        assertEquals("'a \"b\" c'", quote("a \"b\" c"));
+    }
+
+    @Test
+    public void quoteEscapes()
+    {
+        assertEquals("'it\\'s'", quote("it's"));
+        assertEquals("'C:\\\\build\\\\'", quote("C:\\build\\"));
+        assertEquals("'a\\nb\\r\\nc'", quote("a\nb\r\nc"));
+        assertEquals("'\\\\\\''", quote("\\'"));
+    }
+
+    @Test
+    public void quoteLeavesReferences()
+    {
+        // Single quotes don't interpolate, so these reach a2j as-is
+        assertEquals("'${p:x} $HOME ${bsh:\"a\"}'",
+                     quote("${p:x} $HOME ${bsh:\"a\"}")
+        );
+    }
+
+    @Test
+    public void quoteAppends()
+    {
+        StringBuilder sb = new StringBuilder("x = ");
+
+        assertTrue(A2jBatch.quote(sb, "y") == sb);
+        assertEquals("x = 'y'", sb.toString());
+    }
+
+    @Test
+    public void constants()
+            throws Exception
+    {
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("'.'", batch.add("."));
+        assertEquals("'${HOME}'", batch.add("${HOME}"));
+        assertTrue(batch.isEmpty());
+        assertEquals("", batch.getDeclaration());
+    }
+
+    @Test
+    public void declaration()
+            throws Exception
+    {
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("v[0]", batch.add("${p:a}"));
+        assertEquals("v[1]", batch.add("it's ${p:b}\n"));
+        assertEquals("v[0]", batch.add("${p:a}"));
+        assertEquals("def v = a2jAll(['${p:a}', 'it\\'s ${p:b}\\n'])\n",
+                     batch.getDeclaration()
+        );
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    private static String quote(String value)
+    {
+        return A2jBatch.quote(new StringBuilder(), value).toString();
+    }
+}
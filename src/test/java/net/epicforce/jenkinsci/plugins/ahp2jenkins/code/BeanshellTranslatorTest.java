@@ -0,0 +1,193 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.code;
+
+/*
+ * BeanshellTranslatorTest.java
+ *
+ * Turning ${bsh:...} into Groovy, and leaving it alone when we can't.
+ * Giving up has to leave the batch as it was, whether it's one script
+ * or one of several in a value.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class BeanshellTranslatorTest
+{
+    /*****************************************************************
+     * CONSTANTS
+     ****************************************************************/
+
+    private static final String MAKE_SAFE =
+                ".replaceAll('[^\\\\p{javaJavaIdentifierPart}]', '_')";
+
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void lookup()
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("v[0]",
+                     t.translate("PropertyLookup.getValue(\"x\")", batch)
+        );
+        assertEquals("def v = a2jAll(['${p?:x}'])\n",
+                     batch.getDeclaration()
+        );
+    }
+
+    @Test
+    public void sameLookupTwice()
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("(v[0] + '/' + v[0])",
+                     t.translate(" PropertyLookup.getValue ( \"x\" ) + \"/\" " +
+                                 "+ PropertyLookup.getValue(\"x\"); ",
+                                 batch
+                     )
+        );
+        assertEquals("def v = a2jAll(['${p?:x}'])\n",
+                     batch.getDeclaration()
+        );
+    }
+
+    @Test
+    public void makeSafe()
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("(('app-' + v[0]))" + MAKE_SAFE,
+                     t.translate("PathHelper.makeSafe(\"app-\" + " +
+                                 "PropertyLookup.getValue(\"name\"))",
+                                 batch
+                     )
+        );
+        assertEquals("('a b')" + MAKE_SAFE,
+                     t.translate("PathHelper.makeSafe(\"a b\")", batch)
+        );
+    }
+
+    @Test
+    public void stringLiterals()
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("'it\\'s \"x\"\\n\\\\'",
+                     t.translate("\"it's \\\"x\\\"\\n\\\\\"", batch)
+        );
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void untranslatable()
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+
+        for(String script : Arrays.asList(
+                "PropertyLookup.getValue(name)",
+                "PropertyLookup.getValue(\"\")",
+                "PropertyLookup.getValue(\"a${b}\")",
+                "PropertyLookup.getValue(\"x\") + foo()",
+                "PathHelper.makeSafe(PropertyLookup.getValue(\"x\")",
+                "\"a\\u0041\"",
+                "\"open",
+                "\"a\"; \"b\"",
+                "if(x) { \"a\"; }")) {
+            A2jBatch batch = new A2jBatch("v");
+
+            assertNull(script, t.translate(script, batch));
+            assertTrue(script, batch.isEmpty());
+        }
+    }
+
+    @Test
+    public void rollbackKeepsEarlierValues()
+            throws Exception
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v");
+
+        assertEquals("v[0]", batch.add("${p:keep}"));
+        assertNull(t.translate("PropertyLookup.getValue(\"x\") + " +
+                               "PropertyLookup.getValue(y)",
+                               batch
+                   )
+        );
+        assertEquals("def v = a2jAll(['${p:keep}'])\n",
+                     batch.getDeclaration()
+        );
+    }
+
+    @Test
+    public void valueWithBeanshell()
+            throws Exception
+    {
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v", t);
+        String first = "PropertyLookup.getValue(\"x\")";
+        String second = "PathHelper.makeSafe(\"a\")";
+
+        assertEquals("(v[0] + v[1] + '/' + ('a')" + MAKE_SAFE + ")",
+                     batch.add("${p:dir}-${bsh:" + first + "}/${bsh:" +
+                               second + "}"
+                     )
+        );
+        assertEquals("def v = a2jAll(['${p:dir}-', '${p?:x}'])\n",
+                     batch.getDeclaration()
+        );
+        assertEquals(Arrays.asList(first, second), t.getTranslated());
+        assertTrue(t.getInterpreted().isEmpty());
+    }
+
+    @Test
+    public void valueWithUntranslatableBeanshell()
+            throws Exception
+    {
+        // The first script translates, but the second doesn't, so the
+        // whole value goes to a2j and nothing the first one added may
+        // be left behind
+        BeanshellTranslator t = new BeanshellTranslator();
+        A2jBatch batch = new A2jBatch("v", t);
+        String first = "PropertyLookup.getValue(\"x\")";
+        String second = "foo()";
+        String third = "PropertyLookup.getValue(\"z\")";
+        String value = "${p:dir}/${bsh:" + first + "}/${bsh:" + second +
+                       "}/${bsh:" + third + "}";
+
+        assertEquals("v[0]", batch.add(value));
+        assertEquals("def v = a2jAll(['" + value + "'])\n",
+                     batch.getDeclaration()
+        );
+        assertTrue(t.getTranslated().isEmpty());
+        assertEquals(Arrays.asList(first, second, third),
+                     t.getInterpreted()
+        );
+    }
+
+    @Test
+    public void noTranslator()
+            throws Exception
+    {
+        A2jBatch batch = new A2jBatch("v");
+        String value = "${bsh:PropertyLookup.getValue(\"x\")}";
+
+        assertEquals("v[0]", batch.add(value));
+        assertEquals("def v = a2jAll(['" + value + "'])\n",
+                     batch.getDeclaration()
+        );
+    }
+}
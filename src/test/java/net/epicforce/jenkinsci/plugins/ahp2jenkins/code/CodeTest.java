@@ -0,0 +1,186 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.code;
+
+/*
+ * CodeTest.java
+ *
+ * Code.render() has to come out exactly as the regex-per-block
+ * version it replaced did, or every migrated job's fingerprint
+ * changes.  That version is kept here as the reference.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class CodeTest
+{
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void singleLine()
+    {
+        check(new String[] { "node {" }, new int[] { 0 });
+        check(new String[] { "echo 'hi'" }, new int[] { 2 });
+    }
+
+    @Test
+    public void blankLines()
+    {
+        check(new String[] { "a\n\nb", "", "\n", "\n\n" },
+              new int[] { 1, 1, 2, 3 }
+        );
+    }
+
+    @Test
+    public void trailingNewlines()
+    {
+        check(new String[] { "a\n", "b\n\n", "c\r\n", "d\r" },
+              new int[] { 1, 2, 1, 1 }
+        );
+    }
+
+    @Test
+    public void crlf()
+    {
+        check(new String[] { "a\r\nb\r\nc", "\r\n\r\n", "x\r\ry", "p\n\rq" },
+              new int[] { 1, 2, 1, 3 }
+        );
+    }
+
+    @Test
+    public void otherLineTerminators()
+    {
+        check(new String[] { "a\u0085b", "c d e" },
+              new int[] { 1, 1 }
+        );
+    }
+
+    @Test
+    public void deeperThanTheIndentTable()
+    {
+        check(new String[] { "deep\ndeeper", "x" }, new int[] { 20, 17 });
+    }
+
+    @Test
+    public void tabModifiers()
+    {
+        Code code = new Code();
+
+        code.add("node {", 1);
+        code.add("stage('a') {", 1);
+        code.add("echo 'a'\necho 'b'");
+        code.add("}", 0, -1);
+        code.add("}", 0, -1);
+
+        assertEquals("node {\n" +
+                     "    stage('a') {\n" +
+                     "        echo 'a'\n" +
+                     "        echo 'b'\n" +
+                     "    }\n" +
+                     "}\n",
+                     code.get()
+        );
+    }
+
+    @Test
+    public void renderMatchesGet()
+            throws Exception
+    {
+        Code code = new Code();
+
+        code.add("a {\r\nb\n", 1);
+        code.add("\n");
+        code.add("c", 0, -1);
+
+        StringWriter w = new StringWriter();
+        code.render(w);
+
+        assertEquals(code.get(), w.toString());
+    }
+
+    @Test
+    public void randomBlocks()
+    {
+        String[] parts = { "a", "def x", "\n", "\r", "\r\n", " ", "}",
+                           " ", "" };
+        Random r = new Random(42);
+
+        for(int t = 0; t < 2000; t++) {
+            int n = r.nextInt(10);
+            String[] blocks = new String[n];
+            int[] levels = new int[n];
+
+            for(int i = 0; i < n; i++) {
+                StringBuilder sb = new StringBuilder();
+
+                for(int k = r.nextInt(6); k > 0; k--) {
+                    sb.append(parts[r.nextInt(parts.length)]);
+                }
+
+                blocks[i] = sb.toString();
+                levels[i] = r.nextInt(6);
+            }
+
+            check(blocks, levels);
+        }
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * Render blocks at the given levels both ways and compare.
+     */
+    private static void check(String[] blocks, int[] levels)
+    {
+        Code code = new Code();
+
+        for(int i = 0; i < blocks.length; i++) {
+            code.add(blocks[i], 0, levels[i]);
+        }
+
+        assertEquals(reference(blocks, levels), code.get());
+    }
+
+    /**
+     * How Code.get() used to do it.
+     */
+    private static String reference(String[] blocks, int[] levels)
+    {
+        StringBuilder sb = new StringBuilder();
+        StringBuilder tabbing = new StringBuilder(32);
+        int tabLevel = 0;
+        Pattern startOfLine = Pattern.compile("^", Pattern.MULTILINE);
+
+        for(int i = 0; i < blocks.length; i++) {
+            if(tabLevel != levels[i]) {
+                tabLevel = levels[i];
+                int tabCount = tabLevel * 4;
+
+                if(tabCount < tabbing.length()) {
+                    tabbing.setLength(tabCount);
+                } else {
+                    while(tabbing.length() < tabCount) {
+                        tabbing.append(" ");
+                    }
+                }
+            }
+
+            sb.append(startOfLine.matcher(blocks[i])
+                                 .replaceAll(tabbing.toString())
+            ).append("\n");
+        }
+
+        return sb.toString();
+    }
+}
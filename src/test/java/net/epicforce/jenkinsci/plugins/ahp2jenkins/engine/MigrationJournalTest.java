@@ -0,0 +1,282 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.engine;
+
+/*
+ * MigrationJournalTest.java
+ *
+ * Crash recovery: replaying a journal left behind, including one cut
+ * off part way through a line, compacting it to what's left, and
+ * letting it go once nothing is pending.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.epicforce.jenkinsci.plugins.ahp2jenkins.config.AhpInstance;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class MigrationJournalTest
+{
+    /*****************************************************************
+     * PROPERTIES
+     ****************************************************************/
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AhpInstance ahp = new AhpInstance("ahp.example.com",
+                                                    "8443", "user", "ks"
+    );
+
+    private final AhpInstance other = new AhpInstance("other.example.com",
+                                                      "8443", "user", ""
+    );
+
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void noFile()
+            throws Exception
+    {
+        File file = new File(tmp.getRoot(), "sub/journal");
+        MigrationJournal journal = new MigrationJournal(file);
+
+        try {
+            assertTrue(journal.open().isEmpty());
+        } finally {
+            journal.close();
+        }
+
+        assertTrue(file.isFile());
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void replay()
+            throws Exception
+    {
+        File file = journalFile(
+            "B 1 " + ahp,
+            "S 2 1 100",
+            "S 3 1 101",
+            "S 4 1 102",
+            "R 2",
+            "F 2 ok",
+            "R 3",
+            "B 5 " + other,
+            "S 6 5 200",
+            "R 6",
+            "F 6 error",
+            "S 7 1 103",
+            "X 8 what is this",
+            "S 9 1"
+        );
+        MigrationJournal journal = new MigrationJournal(file);
+        List<MigrationJournal.Pending> pending;
+
+        try {
+            pending = journal.open();
+        } finally {
+            journal.close();
+        }
+
+        // Started but not finished still needs doing; batch 5 is done
+        assertEquals(1, pending.size());
+        assertEquals(ahp, pending.get(0).getAhpInstance());
+        assertEquals(Arrays.asList(3L, 4L, 7L), pending.get(0).getJobIds());
+        assertEquals(Arrays.asList(101L, 102L, 103L),
+                     pending.get(0).getWorkflowIds()
+        );
+
+        // Compacted down to just that
+        assertEquals(Arrays.asList("B 1 " + ahp, "S 3 1 101", "S 4 1 102",
+                                   "S 7 1 103"),
+                     lines(file)
+        );
+    }
+
+    @Test
+    public void truncatedTail()
+            throws Exception
+    {
+        // The last group didn't make it out whole
+        File file = tmp.newFile("journal");
+
+        Files.write(file.toPath(),
+                    ("B 1 " + ahp + "\nS 2 1 100\nS 3 1 101\nF 2 o")
+                        .getBytes(StandardCharsets.UTF_8)
+        );
+
+        MigrationJournal journal = new MigrationJournal(file);
+        List<MigrationJournal.Pending> pending;
+
+        try {
+            pending = journal.open();
+        } finally {
+            journal.close();
+        }
+
+        // The torn F still counts; it has everything we need
+        assertEquals(Arrays.asList(3L), pending.get(0).getJobIds());
+
+        file = journalFile("B 1 " + ahp, "S 2 1 100", "F");
+        journal = new MigrationJournal(file);
+
+        try {
+            pending = journal.open();
+        } finally {
+            journal.close();
+        }
+
+        assertEquals(Arrays.asList(2L), pending.get(0).getJobIds());
+    }
+
+    @Test
+    public void newIdsFollowOldOnes()
+            throws Exception
+    {
+        File file = journalFile("B 1 " + ahp, "S 12 1 100", "S 3 1 101");
+        MigrationJournal journal = new MigrationJournal(file);
+        MigrationJob job = job(200);
+
+        try {
+            journal.open();
+            journal.submitted(other, Arrays.asList(job));
+        } finally {
+            journal.close();
+        }
+
+        // Batch 13, then the job
+        assertEquals(14L, job.getJournalId());
+        assertEquals(Arrays.asList("B 1 " + ahp, "S 12 1 100", "S 3 1 101",
+                                   "B 13 " + other, "S 14 13 200"),
+                     lines(file)
+        );
+    }
+
+    @Test
+    public void pendingUntilAllFinished()
+            throws Exception
+    {
+        File file = new File(tmp.getRoot(), "journal");
+        MigrationJob a = job(100);
+        MigrationJob b = job(101);
+        MigrationJournal journal = new MigrationJournal(file);
+
+        try {
+            journal.open();
+            journal.submitted(ahp, Arrays.asList(a, b));
+            journal.started(a);
+            journal.started(b);
+            journal.finished(a);
+        } finally {
+            journal.close();
+        }
+
+        // Start up again with b left over
+        journal = new MigrationJournal(file);
+        List<MigrationJournal.Pending> pending;
+
+        try {
+            pending = journal.open();
+
+            assertEquals(1, pending.size());
+            assertEquals(Arrays.asList(b.getJournalId()),
+                         pending.get(0).getJobIds()
+            );
+            assertEquals(Arrays.asList(101L),
+                         pending.get(0).getWorkflowIds()
+            );
+
+            // Resumed jobs keep their IDs
+            MigrationJob resumed = job(101);
+
+            resumed.setJournalId(b.getJournalId());
+            journal.started(resumed);
+            journal.finished(resumed);
+        } finally {
+            journal.close();
+        }
+
+        // Nothing pending, so nothing kept
+        assertEquals(0, file.length());
+
+        journal = new MigrationJournal(file);
+
+        try {
+            assertTrue(journal.open().isEmpty());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void unjournaledJobs()
+            throws Exception
+    {
+        File file = journalFile("B 1 " + ahp, "S 2 1 100");
+        MigrationJournal journal = new MigrationJournal(file);
+        MigrationJob job = job(100);
+
+        try {
+            journal.open();
+
+            // No ID, so nothing to say about it
+            journal.started(job);
+            journal.finished(job);
+        } finally {
+            journal.close();
+        }
+
+        assertEquals(Arrays.asList("B 1 " + ahp, "S 2 1 100"), lines(file));
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * @return a journal file holding the given lines
+     */
+    private File journalFile(String... lines)
+            throws Exception
+    {
+        File file = new File(tmp.getRoot(), "journal");
+
+        Files.write(file.toPath(), Arrays.asList(lines),
+                    StandardCharsets.UTF_8
+        );
+
+        return file;
+    }
+
+    /**
+     * @return the lines in a file
+     */
+    private static List<String> lines(File file)
+            throws Exception
+    {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a job for a workflow, not in any journal yet
+     */
+    private MigrationJob job(long workflowId)
+    {
+        return new MigrationJob(ahp, workflowId, null, null);
+    }
+}
@@ -0,0 +1,202 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyGraphTest.java
+ *
+ * Resolution order and loop reporting.  The order gets saved with each
+ * migrated job, so it has to be the same every time for the same
+ * workflow.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PropertyGraphTest
+{
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void empty()
+            throws Exception
+    {
+        assertEquals(Arrays.asList(), new PropertyGraph().order());
+    }
+
+    @Test
+    public void dependenciesFirst()
+            throws Exception
+    {
+        PropertyGraph g = new PropertyGraph();
+
+        g.addEdge("url", "host");
+        g.addEdge("url", "port");
+        g.addEdge("host", "domain");
+        g.addEdge("mail", "domain");
+        g.addNode("alone");
+
+        List<String> order = g.order();
+
+        assertEquals(Arrays.asList("domain", "host", "port", "url", "mail",
+                                   "alone"),
+                     order
+        );
+        assertDependenciesFirst(g, order);
+    }
+
+    @Test
+    public void orderIsStable()
+            throws Exception
+    {
+        // Same graph, twice over, and the same graph built again
+        PropertyGraph g = chain();
+        List<String> first = g.order();
+
+        assertEquals(first, g.order());
+        assertEquals(first, chain().order());
+    }
+
+    @Test
+    public void tiesInOrderFound()
+            throws Exception
+    {
+        PropertyGraph g = new PropertyGraph();
+
+        g.addNode("c");
+        g.addNode("a");
+        g.addNode("b");
+        g.addEdge("x", "b");
+        g.addEdge("x", "a");
+
+        assertEquals(Arrays.asList("c", "a", "b", "x"), g.order());
+    }
+
+    @Test
+    public void longChain()
+            throws Exception
+    {
+        // Deep enough to overflow a recursive walk
+        PropertyGraph g = new PropertyGraph();
+
+        for(int i = 0; i < 100000; i++) {
+            g.addEdge("p" + i, "p" + (i + 1));
+        }
+
+        List<String> order = g.order();
+
+        assertEquals(100001, order.size());
+        assertEquals("p100000", order.get(0));
+        assertEquals("p0", order.get(100000));
+    }
+
+    @Test
+    public void selfReference()
+    {
+        PropertyGraph g = new PropertyGraph();
+
+        g.addEdge("a", "a");
+        assertCycle(g, "a", "a");
+    }
+
+    @Test
+    public void cycle()
+    {
+        PropertyGraph g = new PropertyGraph();
+
+        g.addEdge("a", "b");
+        g.addEdge("b", "c");
+        g.addEdge("c", "a");
+        assertCycle(g, "a", "b", "c", "a");
+    }
+
+    @Test
+    public void cycleOffThePath()
+    {
+        // The loop is only part of how we got there, and only that part
+        // gets reported
+        PropertyGraph g = new PropertyGraph();
+
+        g.addEdge("root", "ok");
+        g.addEdge("root", "x");
+        g.addEdge("x", "y");
+        g.addEdge("y", "z");
+        g.addEdge("z", "y");
+        assertCycle(g, "y", "z", "y");
+    }
+
+    @Test
+    public void dependencies()
+    {
+        PropertyGraph g = new PropertyGraph();
+
+        g.addEdge("a", "b");
+        g.addEdge("a", "c");
+        g.addEdge("a", "b");
+
+        assertEquals(Arrays.asList("b", "c"),
+                     Arrays.asList(g.getDependencies("a").toArray())
+        );
+        assertTrue(g.getDependencies("b").isEmpty());
+        assertTrue(g.getDependencies("nope").isEmpty());
+        assertEquals(3, g.size());
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * A few properties hanging off each other, some shared.
+     */
+    private static PropertyGraph chain()
+    {
+        PropertyGraph g = new PropertyGraph();
+
+        g.addEdge("deploy.dir", "base.dir");
+        g.addEdge("deploy.dir", "env");
+        g.addEdge("base.dir", "root");
+        g.addEdge("log.dir", "base.dir");
+        g.addEdge("log.dir", "env");
+        g.addEdge("env", "stage");
+        g.addNode("version");
+        return g;
+    }
+
+    /**
+     * Check everything comes after what it refers to.
+     */
+    private static void assertDependenciesFirst(PropertyGraph g,
+                                                List<String> order)
+    {
+        for(int i = 0; i < order.size(); i++) {
+            for(String dep : g.getDependencies(order.get(i))) {
+                assertTrue(dep + " before " + order.get(i),
+                           order.indexOf(dep) < i
+                );
+            }
+        }
+    }
+
+    /**
+     * Check order() reports the given loop.
+     */
+    private static void assertCycle(PropertyGraph g, String... cycle)
+    {
+        try {
+            g.order();
+            fail("No loop found");
+        } catch(PropertyCycleException e) {
+            assertEquals(Arrays.asList(cycle), e.getCycle());
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyLexerTest.java
+ *
+ * Tokenizing property strings: the reference types, nesting in names
+ * and beanshell, and where errors say they happened.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PropertyLexerTest
+{
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void plainText()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("TEXT:no references here"),
+                     tokens("no references here")
+        );
+        assertEquals(Arrays.asList(), tokens(""));
+        assertEquals(Arrays.asList(), tokens(null));
+    }
+
+    @Test
+    public void referenceTypes()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("PROPERTY:a", "PROPERTY:b", "AGENT:c",
+                                   "AGENT:d", "BSH:e"),
+                     tokens("${p:a}${property:b}${a:c}${agent:d}${bsh:e}")
+        );
+    }
+
+    @Test
+    public void textAroundReferences()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("TEXT:x ", "PROPERTY:a", "TEXT: y"),
+                     tokens("x ${p:a} y")
+        );
+    }
+
+    @Test
+    public void shellVariablesAreText()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("TEXT:${HOME}/$${x}/${} and ",
+                                   "PROPERTY:a"),
+                     tokens("${HOME}/$${x}/${} and ${p:a}")
+        );
+        assertFalse(PropertyLexer.hasReferences("echo ${HOME} ${1:x}"));
+    }
+
+    @Test
+    public void optional()
+            throws Exception
+    {
+        PropertyLexer lex = new PropertyLexer("${p?:a}${p:b}${a?:c}");
+
+        assertTrue(lex.next());
+        assertTrue(lex.isOptional());
+        assertTrue(lex.next());
+        assertFalse(lex.isOptional());
+        assertTrue(lex.next());
+        assertTrue(lex.isOptional());
+        assertEquals(PropertyLexer.Kind.AGENT, lex.getKind());
+        assertFalse(lex.next());
+    }
+
+    @Test
+    public void offsets()
+            throws Exception
+    {
+        PropertyLexer lex = new PropertyLexer("ab${p:name}c");
+
+        assertTrue(lex.nextReference());
+        assertEquals(2, lex.getStart());
+        assertEquals(11, lex.getEnd());
+        assertEquals(6, lex.getBodyStart());
+        assertEquals(10, lex.getBodyEnd());
+    }
+
+    @Test
+    public void nestedNames()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("PROPERTY:db.${p:env.${a:os}}",
+                                   "TEXT:/x"),
+                     tokens("${p:db.${p:env.${a:os}}}/x")
+        );
+    }
+
+    @Test
+    public void beanshellBraces()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("BSH:if(x) { y(); } else { z(); }",
+                                   "TEXT:!"),
+                     tokens("${bsh:if(x) { y(); } else { z(); }}!")
+        );
+    }
+
+    @Test
+    public void beanshellStrings()
+            throws Exception
+    {
+        assertEquals(Arrays.asList("BSH:\"}\" + '{' + \"a\\\"}\"",
+                                   "TEXT:;"),
+                     tokens("${bsh:\"}\" + '{' + \"a\\\"}\"};")
+        );
+    }
+
+    @Test
+    public void hasBeanshell()
+            throws Exception
+    {
+        assertTrue(PropertyLexer.hasBeanshell("a ${bsh:\"}\"} b"));
+        assertFalse(PropertyLexer.hasBeanshell("a ${p:bsh} b"));
+        assertFalse(PropertyLexer.hasBeanshell(null));
+    }
+
+    @Test
+    public void reset()
+            throws Exception
+    {
+        PropertyLexer lex = new PropertyLexer("${p:a}");
+
+        assertTrue(lex.nextReference());
+        assertFalse(lex.nextReference());
+
+        lex.reset("x${a:b}");
+        assertTrue(lex.nextReference());
+        assertEquals("b", lex.getBody());
+        assertEquals(PropertyLexer.Kind.AGENT, lex.getKind());
+    }
+
+    @Test
+    public void lookups()
+    {
+        assertEquals(Arrays.asList("a", "b"),
+                     PropertyLexer.lookups(
+                        "PropertyLookup.getValue(\"a\") + " +
+                        "PropertyLookup.getValue(name) + " +
+                        "PropertyLookup.getValue(\"\") + " +
+                        "PropertyLookup.getValue(\"b\")"
+                     )
+        );
+        assertEquals(Arrays.asList(),
+                     PropertyLexer.lookups(
+                        "PropertyLookup.getValue(\"a\" + x)"
+                     )
+        );
+    }
+
+    @Test
+    public void unknownType()
+    {
+        assertError("ab${zz:x}", 4, "Unknown property type: zz");
+    }
+
+    @Test
+    public void unterminatedName()
+    {
+        assertError("ab${p:x", 2, "Unterminated property reference");
+        assertError("${p:a${p:b}", 0, "Unterminated property reference");
+    }
+
+    @Test
+    public void unterminatedBeanshell()
+    {
+        assertError("x ${bsh:{ a(); }", 2, "Unterminated beanshell reference");
+    }
+
+    @Test
+    public void unterminatedString()
+    {
+        assertError("x ${bsh:\"abc}", 8, "Unterminated string in beanshell");
+        assertError("${bsh:'\\'}", 6, "Unterminated string in beanshell");
+    }
+
+    @Test
+    public void emptyReference()
+    {
+        assertError("x${p:}", 1, "Empty property reference");
+        assertError("xy${bsh:}", 2, "Empty property reference");
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * @return KIND:body for each token
+     */
+    private static List<String> tokens(String s)
+            throws PropertySyntaxException
+    {
+        List<String> ret = new ArrayList<String>();
+        PropertyLexer lex = new PropertyLexer(s);
+
+        while(lex.next()) {
+            ret.add(lex.getKind() + ":" + lex.getBody());
+        }
+
+        return ret;
+    }
+
+    /**
+     * Lex all of s and check it fails where and how we expect.
+     */
+    private static void assertError(String s, int offset, String message)
+    {
+        try {
+            tokens(s);
+            fail("No error for " + s);
+        } catch(PropertySyntaxException e) {
+            assertEquals(offset, e.getOffset());
+            assertEquals(s, e.getInput());
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
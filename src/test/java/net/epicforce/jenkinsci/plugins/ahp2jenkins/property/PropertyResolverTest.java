@@ -0,0 +1,262 @@
+package net.epicforce.jenkinsci.plugins.ahp2jenkins.property;
+
+/*
+ * PropertyResolverTest.java
+ *
+ * Resolving property strings, both with a resolution order from
+ * migration and without one (older jobs).  Either way should give the
+ * same answers.
+ *
+ * @author sconley (sconley@epicforce.net)
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PropertyResolverTest
+{
+    /*****************************************************************
+     * TESTS
+     ****************************************************************/
+
+    @Test
+    public void noReferences()
+            throws Exception
+    {
+        String value = "plain ${HOME} value";
+
+        for(PropertyResolver r : resolvers(env())) {
+            assertSame(value, r.resolve(value));
+        }
+    }
+
+    @Test
+    public void chained()
+            throws Exception
+    {
+        for(PropertyResolver r : resolvers(env())) {
+            assertEquals("/opt/app/prod/logs",
+                         r.resolve("${p:log.dir}")
+            );
+            assertEquals("[/opt/app/prod|prod]",
+                         r.resolve("[${p:deploy.dir}|${a:stage}]")
+            );
+        }
+    }
+
+    @Test
+    public void builtNames()
+            throws Exception
+    {
+        Map<String, String> env = env();
+
+        env.put("db.prod", "db1.example.com");
+
+        for(PropertyResolver r : resolvers(env)) {
+            assertEquals("db1.example.com", r.resolve("${p:db.${p:stage}}"));
+        }
+    }
+
+    @Test
+    public void optional()
+            throws Exception
+    {
+        for(PropertyResolver r : resolvers(env())) {
+            assertEquals("[]", r.resolve("[${p?:missing}]"));
+        }
+    }
+
+    @Test
+    public void missing()
+            throws Exception
+    {
+        Map<String, String> env = env();
+
+        env.put("broken", "${p:root}/${p:missing}");
+
+        for(PropertyResolver r : resolvers(env)) {
+            try {
+                r.resolve("x ${p:broken}");
+                fail("Resolved a missing property");
+            } catch(PropertyNotFoundException e) {
+                assertEquals("missing", e.getName());
+            }
+        }
+    }
+
+    @Test
+    public void beanshellLeftAlone()
+            throws Exception
+    {
+        for(PropertyResolver r : resolvers(env())) {
+            assertEquals("prod ${bsh:\"}\" + x}",
+                         r.resolve("${p:stage} ${bsh:\"}\" + x}")
+            );
+        }
+    }
+
+    @Test
+    public void cycleWithoutOrder()
+            throws Exception
+    {
+        Map<String, String> env = new HashMap<String, String>();
+
+        env.put("a", "x${p:b}");
+        env.put("b", "y${p:c}");
+        env.put("c", "z${p:b}");
+
+        try {
+            new PropertyResolver(env, null).resolve("${p:a}");
+            fail("No loop found");
+        } catch(PropertyCycleException e) {
+            assertEquals(Arrays.asList("b", "c", "b"), e.getCycle());
+        }
+    }
+
+    @Test
+    public void cycleWithBadOrder()
+            throws Exception
+    {
+        // An order can't have a loop in it, but if the properties
+        // changed since migration, we still mustn't go round forever
+        Map<String, String> env = new HashMap<String, String>();
+
+        env.put("a", "${p:b}");
+        env.put("b", "${p:a}");
+
+        try {
+            new PropertyResolver(env, Arrays.asList("b", "a"))
+                .resolve("${p:a}");
+            fail("No loop found");
+        } catch(PropertyCycleException e) {
+            // What's reported depends on where we came in; just check
+            // it's a loop
+            List<String> cycle = e.getCycle();
+
+            assertEquals(cycle.get(0), cycle.get(cycle.size() - 1));
+        }
+    }
+
+    @Test
+    public void resolvedOnce()
+            throws Exception
+    {
+        for(PropertyResolver r : resolvers(env())) {
+            r.resolve("${p:log.dir} ${p:log.dir} ${p:deploy.dir}");
+
+            // log.dir and everything under it is worked out once;
+            // after that it's all lookups
+            long misses = r.getMisses();
+
+            r.resolve("${p:log.dir} ${p:deploy.dir} ${p:root}");
+            assertEquals(misses, r.getMisses());
+            assertTrue(r.getHits() >= 4);
+        }
+    }
+
+    @Test
+    public void sharedMemory()
+            throws Exception
+    {
+        Map<String, String> resolved = new HashMap<String, String>();
+
+        new PropertyResolver(env(), order(env()), resolved)
+            .resolve("${p:log.dir}");
+
+        assertEquals("/opt/app/prod/logs", resolved.get("log.dir"));
+        assertEquals("/opt/app/prod", resolved.get("deploy.dir"));
+        assertEquals("/opt/app", resolved.get("root"));
+
+        // A new resolver picks up where that one left off
+        PropertyResolver r = new PropertyResolver(env(), null, resolved);
+
+        assertEquals("/opt/app/prod", r.resolve("${p:deploy.dir}"));
+        assertEquals(0, r.getMisses());
+    }
+
+    @Test
+    public void longChainWithOrder()
+            throws Exception
+    {
+        // Deep enough that resolving it recursively would be asking
+        // for trouble; with an order it's one level at a time
+        Map<String, String> env = new HashMap<String, String>();
+        List<String> order = new ArrayList<String>();
+        int n = 50000;
+
+        env.put("p" + n, "end");
+
+        for(int i = n - 1; i >= 0; i--) {
+            env.put("p" + i, "${p:p" + (i + 1) + "}");
+        }
+
+        for(int i = n; i >= 0; i--) {
+            order.add("p" + i);
+        }
+
+        assertEquals("end",
+                     new PropertyResolver(env, order).resolve("${p:p0}")
+        );
+    }
+
+    /*****************************************************************
+     * PRIVATE METHODS
+     ****************************************************************/
+
+    /**
+     * Some properties referring to each other.
+     */
+    private static Map<String, String> env()
+    {
+        Map<String, String> env = new HashMap<String, String>();
+
+        env.put("root", "/opt/app");
+        env.put("stage", "prod");
+        env.put("deploy.dir", "${p:root}/${p:stage}");
+        env.put("log.dir", "${p:deploy.dir}/logs");
+        return env;
+    }
+
+    /**
+     * Work out a resolution order for env the way migration does.
+     */
+    private static List<String> order(Map<String, String> env)
+            throws Exception
+    {
+        PropertyGraph g = new PropertyGraph();
+        PropertyLexer lex = new PropertyLexer(null);
+
+        for(Map.Entry<String, String> e : env.entrySet()) {
+            g.addNode(e.getKey());
+            lex.reset(e.getValue());
+
+            while(lex.nextReference()) {
+                g.addEdge(e.getKey(), lex.getBody());
+            }
+        }
+
+        return g.order();
+    }
+
+    /**
+     * A resolver without an order, and one with.
+     */
+    private static List<PropertyResolver> resolvers(Map<String, String> env)
+            throws Exception
+    {
+        return Arrays.asList(new PropertyResolver(env, null),
+                             new PropertyResolver(env, order(env))
+        );
+    }
+}